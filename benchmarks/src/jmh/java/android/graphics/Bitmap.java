@@ -0,0 +1,156 @@
+package android.graphics;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * An android.graphics.Bitmap for running the library on a plain JVM, backed by a BufferedImage.
+ * The framework Bitmap lives in native memory managed by Skia, which does not exist here.
+ * <p/>
+ * The framework class is filtered out of android-all by the benchmarks build (see
+ * build.gradle), so this is the only android.graphics.Bitmap on the classpath.
+ * <p/>
+ * Only what the library uses is implemented. JPEG and PNG are encoded with javax.imageio, WEBP
+ * can not be encoded. The benchmarks therefore measure the library around the codec, with the
+ * JVM codec in place of Skia; the codec itself is measured on a device by the EncodeBenchmark
+ * instrumented test of the gcs module.
+ */
+public final class Bitmap {
+
+    static {
+        // Encode and decode in memory, instead of through temporary files.
+        ImageIO.setUseCache(false);
+    }
+
+    public enum Config {
+        ALPHA_8, RGB_565, ARGB_4444, ARGB_8888, RGBA_F16, HARDWARE
+    }
+
+    public enum CompressFormat {
+        JPEG, PNG, WEBP
+    }
+
+    private final BufferedImage image;
+    private final Config config;
+    private boolean recycled;
+
+
+    Bitmap(BufferedImage image, Config config) {
+        this.image = image;
+        this.config = config != null ? config : Config.ARGB_8888;
+    }
+
+    public static Bitmap createBitmap(int width, int height, Config config) {
+        return new Bitmap(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), config);
+    }
+
+    public static Bitmap createBitmap(int[] colors, int width, int height, Config config) {
+        Bitmap bitmap = createBitmap(width, height, config);
+        bitmap.image.setRGB(0, 0, width, height, colors, 0, width);
+        return bitmap;
+    }
+
+    public static Bitmap createScaledBitmap(Bitmap src, int dstWidth, int dstHeight, boolean filter) {
+        BufferedImage scaled = new BufferedImage(dstWidth, dstHeight, BufferedImage.TYPE_INT_RGB);
+
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, filter
+                    ? RenderingHints.VALUE_INTERPOLATION_BILINEAR
+                    : RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+            graphics.drawImage(src.image, 0, 0, dstWidth, dstHeight, null);
+        }
+        finally {
+            graphics.dispose();
+        }
+
+        return new Bitmap(scaled, src.config);
+    }
+
+    public int getWidth() {
+        return image.getWidth();
+    }
+
+    public int getHeight() {
+        return image.getHeight();
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+
+    public int getByteCount() {
+        int bytesPerPixel = config == Config.ALPHA_8 ? 1 : config == Config.ARGB_8888 ? 4 : config == Config.RGBA_F16 ? 8 : 2;
+        return getWidth() * getHeight() * bytesPerPixel;
+    }
+
+    public int getAllocationByteCount() {
+        return getByteCount();
+    }
+
+    /**
+     * Encodes this image to the given stream, without closing it. Returns false for WEBP, which
+     * javax.imageio can not encode.
+     *
+     * @param format
+     * @param quality
+     * @param stream
+     *
+     * @return
+     */
+    public boolean compress(CompressFormat format, int quality, OutputStream stream) {
+        if (format == CompressFormat.WEBP) {
+            return false;
+        }
+
+        String formatName = format == CompressFormat.JPEG ? "jpeg" : "png";
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(formatName);
+        if (!writers.hasNext()) {
+            return false;
+        }
+
+        ImageWriter writer = writers.next();
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (format == CompressFormat.JPEG) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality / 100f);
+            }
+
+            ImageOutputStream output = ImageIO.createImageOutputStream(stream);
+            try {
+                writer.setOutput(output);
+                writer.write(null, new IIOImage(image, null, null), param);
+            }
+            finally {
+                output.close();
+            }
+
+            return true;
+        }
+        catch ( IOException e ) {
+            return false;
+        }
+        finally {
+            writer.dispose();
+        }
+    }
+
+    public void recycle() {
+        recycled = true;
+    }
+
+    public boolean isRecycled() {
+        return recycled;
+    }
+}
@@ -0,0 +1,117 @@
+package android.graphics;
+
+import java.awt.image.BufferedImage;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * An android.graphics.BitmapFactory for running the library on a plain JVM, decoding JPEG and
+ * PNG with javax.imageio into a {@link Bitmap}. The framework BitmapFactory decodes with the
+ * native Skia library, which does not exist here.
+ * <p/>
+ * The framework class is filtered out of android-all by the benchmarks build (see
+ * build.gradle), so this is the only android.graphics.BitmapFactory on the classpath.
+ * <p/>
+ * Like the framework one, a stream that can not be decoded returns null. Bounds only decoding
+ * and inSampleSize are supported, the other options are ignored.
+ */
+public class BitmapFactory {
+
+    public static class Options {
+        public boolean inJustDecodeBounds;
+        public int inSampleSize;
+        public Bitmap.Config inPreferredConfig = Bitmap.Config.ARGB_8888;
+        public boolean inMutable;
+        public Bitmap inBitmap;
+        public byte[] inTempStorage;
+
+        public int outWidth;
+        public int outHeight;
+        public String outMimeType;
+    }
+
+
+    public static Bitmap decodeStream(InputStream is) {
+        return decodeStream(is, null, null);
+    }
+
+    public static Bitmap decodeStream(InputStream is, Rect outPadding, Options opts) {
+        if (is == null) {
+            return null;
+        }
+
+        try {
+            ImageInputStream input = ImageIO.createImageInputStream(is);
+            try {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+                if (!readers.hasNext()) {
+                    return null;
+                }
+
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(input, true, true);
+                    return decode(reader, opts);
+                }
+                finally {
+                    reader.dispose();
+                }
+            }
+            finally {
+                input.close();
+            }
+        }
+        catch ( IOException e ) {
+            return null;
+        }
+    }
+
+    public static Bitmap decodeFile(String pathName) {
+        return decodeFile(pathName, null);
+    }
+
+    public static Bitmap decodeFile(String pathName, Options opts) {
+        try {
+            InputStream stream = new FileInputStream(pathName);
+            try {
+                return decodeStream(stream, null, opts);
+            }
+            finally {
+                stream.close();
+            }
+        }
+        catch ( IOException e ) {
+            return null;
+        }
+    }
+
+
+    private static Bitmap decode(ImageReader reader, Options opts) throws IOException {
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        int sampleSize = opts != null && opts.inSampleSize > 1 ? opts.inSampleSize : 1;
+
+        if (opts != null) {
+            opts.outWidth = (width + sampleSize - 1) / sampleSize;
+            opts.outHeight = (height + sampleSize - 1) / sampleSize;
+            opts.outMimeType = "image/" + reader.getFormatName().toLowerCase();
+
+            if (opts.inJustDecodeBounds) {
+                return null;
+            }
+        }
+
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceSubsampling(sampleSize, sampleSize, 0, 0);
+
+        BufferedImage image = reader.read(0, param);
+        return new Bitmap(image, opts != null ? opts.inPreferredConfig : null);
+    }
+}
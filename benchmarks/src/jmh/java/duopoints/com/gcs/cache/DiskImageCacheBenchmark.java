@@ -0,0 +1,84 @@
+package duopoints.com.gcs.cache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The cost of the {@link DiskImageCache}: looking up a cached image, alone and with threads
+ * contending for the cache, and writing a 64KB image into it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DiskImageCacheBenchmark {
+    private static final int ENTRIES = 100;
+    private static final int ENTRY_SIZE = 64 * 1024;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    private File directory;
+    private DiskImageCache cache;
+    private byte[] data;
+
+
+    @Setup
+    public void setup() throws IOException {
+        directory = File.createTempFile("cache", "benchmark");
+        if (!directory.delete() || !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+
+        data = new byte[ENTRY_SIZE];
+        new Random(ENTRY_SIZE).nextBytes(data);
+
+        // Room for twice the entries, so writing the benchmark entries evicts nothing.
+        cache = new DiskImageCache(directory, 2L * ENTRIES * ENTRY_SIZE);
+        for (int i = 0; i < ENTRIES; i++) {
+            cache.put("images/" + i + ".png", 1, new ByteArrayInputStream(data));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public DiskImageCache.Entry get() {
+        return cache.get("images/" + (next.incrementAndGet() % ENTRIES) + ".png");
+    }
+
+    @Benchmark
+    @Threads(8)
+    public DiskImageCache.Entry getConcurrent() {
+        return cache.get("images/" + (next.incrementAndGet() % ENTRIES) + ".png");
+    }
+
+    @Benchmark
+    @Threads(1)
+    public DiskImageCache.Entry put() throws IOException {
+        // Replaces one of a fixed set of entries, so the cache does not grow.
+        return cache.put("written/" + (next.incrementAndGet() % ENTRIES) + ".png", 1, new ByteArrayInputStream(data));
+    }
+}
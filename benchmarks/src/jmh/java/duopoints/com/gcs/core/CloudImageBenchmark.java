@@ -0,0 +1,162 @@
+package duopoints.com.gcs.core;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import com.google.api.client.json.jackson2.JacksonFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import duopoints.com.gcs.utils.MediaManipulation;
+
+/**
+ * The cost of {@link CloudImageCRUD#insertCloudImage} and {@link CloudImageCRUD#readCloudImage}
+ * against the {@link FakeGcsTransport}, for images from VGA up to a 12 megapixel photo, in JPEG
+ * and PNG, by a single thread and by 4 threads at once.
+ * <p/>
+ * On the JVM, Bitmaps are encoded and decoded by javax.imageio instead of Skia (see
+ * android.graphics.Bitmap in this module), so the encoding and decoding part of these numbers
+ * is not that of a device. Inserting an already encoded File does not encode at all.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CloudImageBenchmark {
+    private static final String OBJECT = "images/benchmark";
+
+    @Param({"640x480", "1920x1080", "4032x3024"})
+    String dimensions;
+
+    @Param({"jpg", "png"})
+    String format;
+
+    private GoogleStorage googleStorage;
+    private MediaManipulation.SupportedImageFormats imageFormat;
+    private Bitmap image;
+    private File encodedFile;
+
+
+    @Setup
+    public void setup() throws IOException {
+        int width = Integer.parseInt(dimensions.substring(0, dimensions.indexOf('x')));
+        int height = Integer.parseInt(dimensions.substring(dimensions.indexOf('x') + 1));
+
+        imageFormat = MediaManipulation.SupportedImageFormats.valueOf(format);
+        image = createPhotoLikeImage(width, height);
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        if (!image.compress(MediaManipulation.getCompressFormat(imageFormat), 90, encoded)) {
+            throw new IOException("Could not encode the " + format + " image");
+        }
+
+        encodedFile = File.createTempFile("image", "." + format);
+        OutputStream out = new FileOutputStream(encodedFile);
+        try {
+            encoded.writeTo(out);
+        }
+        finally {
+            out.close();
+        }
+
+        FakeGcsTransport transport = new FakeGcsTransport();
+        transport.put(OBJECT, encoded.toByteArray());
+        googleStorage = GoogleStorage.build("benchmark", transport.createCredential(JacksonFactory.getDefaultInstance()));
+    }
+
+    @TearDown
+    public void tearDown() {
+        image.recycle();
+        encodedFile.delete();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean insertBitmap() throws IOException {
+        return CloudImageCRUD.insertCloudImage(googleStorage, OBJECT + "/inserted", image, imageFormat);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean insertEncodedFile() throws IOException {
+        return CloudImageCRUD.insertCloudImage(googleStorage, OBJECT + "/inserted", encodedFile, imageFormat);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean insertEncodedFileConcurrent() throws IOException {
+        return CloudImageCRUD.insertCloudImage(googleStorage, OBJECT + "/" + Thread.currentThread().getId(), encodedFile, imageFormat);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Bitmap read() throws IOException {
+        return recycled(CloudImageCRUD.readCloudImage(googleStorage, OBJECT, null));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Bitmap readConcurrent() throws IOException {
+        return recycled(CloudImageCRUD.readCloudImage(googleStorage, OBJECT, null));
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Bitmap readSampled() throws IOException {
+        // A thumbnail, decoded with an inSampleSize instead of at full resolution.
+        return recycled(CloudImageCRUD.readCloudImage(googleStorage, OBJECT, 320, 240, null, null));
+    }
+
+
+    private static Bitmap recycled(Bitmap image) throws IOException {
+        if (image == null) {
+            throw new IOException("The image could not be read");
+        }
+
+        image.recycle();
+        return image;
+    }
+
+    /**
+     * Returns an image with smooth gradients and fine noise, which compresses more like a photo
+     * than a flat or random image does.
+     */
+    private static Bitmap createPhotoLikeImage(int width, int height) {
+        int[] pixels = new int[width * height];
+        int noise = 12345;
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                noise = noise * 1103515245 + 12345;
+                int grain = (noise >>> 28) - 8;
+
+                int red = clamp(255 * x / width + grain);
+                int green = clamp(255 * y / height + grain);
+                int blue = clamp(128 + (int) (64 * Math.sin(x / 40.0) * Math.cos(y / 30.0)) + grain);
+
+                pixels[y * width + x] = Color.rgb(red, green, blue);
+            }
+        }
+
+        return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}
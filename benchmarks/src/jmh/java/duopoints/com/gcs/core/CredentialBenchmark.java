@@ -0,0 +1,152 @@
+package duopoints.com.gcs.core;
+
+import android.content.ContextWrapper;
+import android.content.res.Resources;
+
+import com.google.api.client.auth.oauth2.Credential;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of {@link CredentialBuilder#build()} on the first call of a process: loading the
+ * p12 key, setting up the transport (a given one, or a pooled one created from a
+ * {@link TransportConfig}) and opening the token store.
+ * <p/>
+ * The key is a throwaway self-signed one (src/jmh/resources/benchmark-key.p12), served as the
+ * raw resource of a Context that only has what the builder uses. Every invocation starts from a
+ * new builder, as CredentialBuilder is a singleton that returns the Credential it built before.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CredentialBenchmark {
+    private static final int KEY_RESOURCE_ID = 1;
+    private static final String ACCOUNT_ID = "benchmark@benchmark.iam.gserviceaccount.com";
+
+    @Param({"transporter", "transportConfig"})
+    String transport;
+
+    private BenchmarkContext context;
+    private FakeGcsTransport fakeTransport;
+
+
+    @Setup
+    public void setup() throws IOException {
+        File filesDir = File.createTempFile("credential", "benchmark");
+        if (!filesDir.delete() || !filesDir.mkdirs()) {
+            throw new IOException("Could not create " + filesDir);
+        }
+
+        context = new BenchmarkContext(readKey(), filesDir);
+        fakeTransport = new FakeGcsTransport();
+    }
+
+    @Setup(Level.Invocation)
+    public void newBuilder() throws ReflectiveOperationException {
+        Field singleton = CredentialBuilder.class.getDeclaredField("singleton");
+        singleton.setAccessible(true);
+        singleton.set(null, null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        delete(context.getFilesDir());
+    }
+
+    @Benchmark
+    public Credential build() throws IOException, GeneralSecurityException {
+        CredentialBuilder builder = CredentialBuilder.setup(context, KEY_RESOURCE_ID, ACCOUNT_ID);
+
+        if ("transportConfig".equals(transport)) {
+            builder.transportConfig(new TransportConfig.Builder().maxConnectionsPerRoute(8).build());
+        } else {
+            builder.transporter(fakeTransport);
+        }
+
+        return builder.build();
+    }
+
+
+    private static byte[] readKey() throws IOException {
+        InputStream in = CredentialBenchmark.class.getResourceAsStream("/benchmark-key.p12");
+        if (in == null) {
+            throw new IOException("benchmark-key.p12 is not on the classpath");
+        }
+
+        try {
+            ByteArrayOutputStream key = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ( (read = in.read(buffer)) != -1 ) {
+                key.write(buffer, 0, read);
+            }
+            return key.toByteArray();
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+
+    /**
+     * A Context with the key as its only raw resource, and a files directory for the token store.
+     */
+    private static class BenchmarkContext extends ContextWrapper {
+        private final Resources resources;
+        private final File filesDir;
+
+        BenchmarkContext(final byte[] key, File filesDir) {
+            super(null);
+            this.filesDir = filesDir;
+            this.resources = new Resources(BenchmarkContext.class.getClassLoader()) {
+                @Override
+                public String getResourceName(int resid) {
+                    return "benchmark:raw/benchmark_key";
+                }
+
+                @Override
+                public InputStream openRawResource(int id) {
+                    return new ByteArrayInputStream(key);
+                }
+            };
+        }
+
+        @Override
+        public Resources getResources() {
+            return resources;
+        }
+
+        @Override
+        public File getFilesDir() {
+            return filesDir;
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package duopoints.com.gcs.core;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import duopoints.com.gcs.utils.Crc32c;
+
+/**
+ * An in-memory cloud storage behind a {@link MockHttpTransport}, answering the requests the
+ * library makes: object metadata, media downloads with Range headers, multipart and resumable
+ * uploads and listings by prefix. Requests never leave the process, so the benchmarks measure the client
+ * side only.
+ * <p/>
+ * Every n-th request can be failed with a 503, to measure the cost of retries.
+ */
+class FakeGcsTransport extends MockHttpTransport {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final String SESSION_URL = "https://fake-gcs/upload/session/";
+    private static final Pattern JSON_NAME = Pattern.compile("\"name\"\\s*:\\s*\"([^\"]*)\"");
+
+    private final Map<String, StoredObject> objects = new ConcurrentHashMap<>();
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong generations = new AtomicLong();
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private volatile int failEvery;
+
+
+    /**
+     * Returns a Credential with a fixed access token that sends its requests to this transport.
+     *
+     * @param jsonFactory
+     *
+     * @return
+     */
+    Credential createCredential(JsonFactory jsonFactory) {
+        return new Credential.Builder(BearerToken.authorizationHeaderAccessMethod())
+                .setTransport(this)
+                .setJsonFactory(jsonFactory)
+                .build()
+                .setAccessToken("benchmark")
+                .setExpiresInSeconds(Long.valueOf(24 * 60 * 60));
+    }
+
+    /**
+     * Stores the given object, as if it had been uploaded.
+     *
+     * @param name
+     * @param data
+     */
+    void put(String name, byte[] data) {
+        objects.put(name, new StoredObject(name, data, generations.incrementAndGet()));
+    }
+
+    /**
+     * Fails every n-th request with a 503. 0 fails nothing.
+     *
+     * @param failEvery
+     */
+    void setFailEvery(int failEvery) {
+        this.failEvery = failEvery;
+    }
+
+    @Override
+    public LowLevelHttpRequest buildRequest(final String method, final String url) throws IOException {
+        return new MockLowLevelHttpRequest(url) {
+            @Override
+            public LowLevelHttpResponse execute() throws IOException {
+                int fail = failEvery;
+                if (fail > 0 && requests.incrementAndGet() % fail == 0) {
+                    return new MockLowLevelHttpResponse().setStatusCode(503);
+                }
+
+                return handle(method, new GenericUrl(url), this);
+            }
+        };
+    }
+
+
+    private LowLevelHttpResponse handle(String method, GenericUrl url, MockLowLevelHttpRequest request) throws IOException {
+        List<String> path = url.getPathParts();
+        String last = path.get(path.size() - 1);
+
+        if (url.build().startsWith(SESSION_URL)) {
+            return uploadChunk(sessions.get(last), request);
+        }
+
+        if ("POST".equals(method) && "resumable".equals(url.getFirst("uploadType"))) {
+            Matcher name = JSON_NAME.matcher(request.getContentAsString());
+            if (!name.find()) {
+                return new MockLowLevelHttpResponse().setStatusCode(400);
+            }
+
+            String id = Long.toString(generations.incrementAndGet());
+            sessions.put(id, new UploadSession(id, name.group(1)));
+
+            return new MockLowLevelHttpResponse().addHeader("Location", SESSION_URL + id);
+        }
+
+        if ("POST".equals(method) && "multipart".equals(url.getFirst("uploadType"))) {
+            return insertMultipart(request);
+        }
+
+        if ("GET".equals(method) && "o".equals(last)) {
+            return list(url);
+        }
+
+        if ("GET".equals(method)) {
+            StoredObject object = objects.get(last);
+            if (object == null) {
+                return new MockLowLevelHttpResponse().setStatusCode(404);
+            }
+
+            if ("media".equals(url.getFirst("alt"))) {
+                return media(object, request.getFirstHeaderValue("Range"));
+            }
+
+            return json(object.toJson());
+        }
+
+        return new MockLowLevelHttpResponse().setStatusCode(400);
+    }
+
+    private LowLevelHttpResponse uploadChunk(UploadSession session, MockLowLevelHttpRequest request) throws IOException {
+        if (session == null) {
+            return new MockLowLevelHttpResponse().setStatusCode(404);
+        }
+
+        ByteArrayOutputStream received = session.received;
+
+        String contentRange = request.getFirstHeaderValue("Content-Range");
+        long total = Long.parseLong(contentRange.substring(contentRange.lastIndexOf('/') + 1));
+
+        if (!contentRange.startsWith("bytes */")) {
+            request.getStreamingContent().writeTo(received);
+        }
+
+        if (received.size() < total) {
+            MockLowLevelHttpResponse response = new MockLowLevelHttpResponse().setStatusCode(308);
+            if (received.size() > 0) {
+                response.addHeader("Range", "bytes=0-" + (received.size() - 1));
+            }
+            return response;
+        }
+
+        sessions.remove(session.id);
+        put(session.name, received.toByteArray());
+
+        return json(objects.get(session.name).toJson());
+    }
+
+    /**
+     * A multipart/related body of two parts, the JSON metadata of the object and its media.
+     */
+    private LowLevelHttpResponse insertMultipart(MockLowLevelHttpRequest request) throws IOException {
+        String contentType = request.getContentType();
+        String boundary = contentType.substring(contentType.indexOf("boundary=") + "boundary=".length());
+
+        // ISO-8859-1 maps every byte to a single char, so the media survives the round trip.
+        String body = new String(requestBody(request), ISO_8859_1);
+        String[] parts = body.split("--" + Pattern.quote(boundary));
+        if (parts.length < 3) {
+            return new MockLowLevelHttpResponse().setStatusCode(400);
+        }
+
+        Matcher name = JSON_NAME.matcher(parts[1]);
+        if (!name.find()) {
+            return new MockLowLevelHttpResponse().setStatusCode(400);
+        }
+
+        // Part headers, an empty line, the media, and the line break before the next boundary.
+        String media = parts[2].substring(parts[2].indexOf("\r\n\r\n") + 4, parts[2].length() - 2);
+        put(name.group(1), media.getBytes(ISO_8859_1));
+
+        return json(objects.get(name.group(1)).toJson());
+    }
+
+    private static byte[] requestBody(MockLowLevelHttpRequest request) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        request.getStreamingContent().writeTo(body);
+
+        if (!"gzip".equals(request.getContentEncoding())) {
+            return body.toByteArray();
+        }
+
+        ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        InputStream gzip = new GZIPInputStream(new ByteArrayInputStream(body.toByteArray()));
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ( (read = gzip.read(buffer)) != -1 ) {
+                decompressed.write(buffer, 0, read);
+            }
+        }
+        finally {
+            gzip.close();
+        }
+
+        return decompressed.toByteArray();
+    }
+
+    private LowLevelHttpResponse media(StoredObject object, String range) {
+        if (range == null) {
+            return new MockLowLevelHttpResponse().setContent(object.data);
+        }
+
+        // "bytes=first-last"
+        int dash = range.indexOf('-');
+        int first = Integer.parseInt(range.substring("bytes=".length(), dash));
+        int last = Math.min(Integer.parseInt(range.substring(dash + 1)), object.data.length - 1);
+
+        return new MockLowLevelHttpResponse()
+                .setStatusCode(206)
+                .setContent(Arrays.copyOfRange(object.data, first, last + 1));
+    }
+
+    private LowLevelHttpResponse list(GenericUrl url) {
+        Object maxResults = url.getFirst("maxResults");
+        int pageSize = maxResults != null ? Integer.parseInt(maxResults.toString()) : 1000;
+
+        Object pageToken = url.getFirst("pageToken");
+        int offset = pageToken != null ? Integer.parseInt(pageToken.toString()) : 0;
+
+        Object prefix = url.getFirst("prefix");
+        List<String> matching = new ArrayList<>();
+        for (String name : objects.keySet()) {
+            if (prefix == null || name.startsWith(prefix.toString())) {
+                matching.add(name);
+            }
+        }
+
+        String[] names = matching.toArray(new String[matching.size()]);
+        Arrays.sort(names);
+
+        StringBuilder page = new StringBuilder("{\"items\":[");
+        int end = Math.min(names.length, offset + pageSize);
+        for (int i = offset; i < end; i++) {
+            if (i > offset) {
+                page.append(',');
+            }
+            page.append(objects.get(names[i]).toJson());
+        }
+        page.append(']');
+
+        if (end < names.length) {
+            page.append(",\"nextPageToken\":\"").append(end).append('"');
+        }
+
+        return json(page.append('}').toString());
+    }
+
+    private static LowLevelHttpResponse json(String body) {
+        return new MockLowLevelHttpResponse()
+                .setContentType("application/json; charset=UTF-8")
+                .setContent(body.getBytes(UTF_8));
+    }
+
+
+    private static class UploadSession {
+        final String id;
+        final String name;
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+        UploadSession(String id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    private static class StoredObject {
+        final String name;
+        final byte[] data;
+        final long generation;
+        final String crc32c;
+
+        StoredObject(String name, byte[] data, long generation) {
+            this.name = name;
+            this.data = data;
+            this.generation = generation;
+
+            Crc32c checksum = new Crc32c();
+            checksum.update(data, 0, data.length);
+            this.crc32c = checksum.toBase64();
+        }
+
+        String toJson() {
+            return "{\"kind\":\"storage#object\",\"name\":\"" + name + "\",\"bucket\":\"benchmark\""
+                    + ",\"size\":\"" + data.length + "\",\"generation\":\"" + generation + "\""
+                    + ",\"metageneration\":\"1\",\"contentType\":\"application/octet-stream\""
+                    + ",\"crc32c\":\"" + crc32c + "\"}";
+        }
+    }
+}
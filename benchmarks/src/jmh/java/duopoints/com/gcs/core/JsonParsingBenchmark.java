@@ -0,0 +1,87 @@
+package duopoints.com.gcs.core;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.storage.model.Objects;
+import com.google.api.services.storage.model.StorageObject;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of parsing the responses of the cloud storage with each JsonFactory: a full object
+ * resource (as returned without a fields mask), the same object limited to
+ * {@link CloudImageCRUD#STAT_FIELDS}, and a listing page of 1000 objects limited to
+ * {@link ObjectListing#DEFAULT_FIELDS}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JsonParsingBenchmark {
+    private static final String FULL_OBJECT = "{\"kind\":\"storage#object\","
+            + "\"id\":\"benchmark/images/profile.png/1517578114000000\","
+            + "\"selfLink\":\"https://www.googleapis.com/storage/v1/b/benchmark/o/images%2Fprofile.png\","
+            + "\"name\":\"images/profile.png\",\"bucket\":\"benchmark\",\"generation\":\"1517578114000000\","
+            + "\"metageneration\":\"1\",\"contentType\":\"image/png\",\"timeCreated\":\"2018-02-02T13:28:34.000Z\","
+            + "\"updated\":\"2018-02-02T13:28:34.000Z\",\"storageClass\":\"STANDARD\","
+            + "\"timeStorageClassUpdated\":\"2018-02-02T13:28:34.000Z\",\"size\":\"482133\","
+            + "\"md5Hash\":\"1B2M2Y8AsgTpgAmY7PhCfg==\","
+            + "\"mediaLink\":\"https://www.googleapis.com/download/storage/v1/b/benchmark/o/images%2Fprofile.png?generation=1517578114000000&alt=media\","
+            + "\"acl\":[{\"kind\":\"storage#objectAccessControl\",\"id\":\"benchmark/images/profile.png/1517578114000000/project-owners-1234\","
+            + "\"selfLink\":\"https://www.googleapis.com/storage/v1/b/benchmark/o/images%2Fprofile.png/acl/project-owners-1234\","
+            + "\"bucket\":\"benchmark\",\"object\":\"images/profile.png\",\"generation\":\"1517578114000000\","
+            + "\"entity\":\"project-owners-1234\",\"role\":\"OWNER\",\"projectTeam\":{\"projectNumber\":\"1234\",\"team\":\"owners\"},"
+            + "\"etag\":\"CIDg7Y2Ys9kCEAE=\"}],"
+            + "\"owner\":{\"entity\":\"user-service-account\"},\"crc32c\":\"AAAAAA==\",\"etag\":\"CIDg7Y2Ys9kCEAE=\"}";
+
+    private static final String MASKED_OBJECT = "{\"name\":\"images/profile.png\",\"size\":\"482133\","
+            + "\"contentType\":\"image/png\",\"generation\":\"1517578114000000\",\"metageneration\":\"1\","
+            + "\"updated\":\"2018-02-02T13:28:34.000Z\"}";
+
+    @Param({"jackson", "gson"})
+    String factory;
+
+    private JsonFactory jsonFactory;
+    private String listingPage;
+
+
+    @Setup
+    public void setup() {
+        jsonFactory = "gson".equals(factory) ? GsonFactory.getDefaultInstance() : JacksonFactory.getDefaultInstance();
+
+        StringBuilder page = new StringBuilder("{\"items\":[");
+        for (int i = 0; i < 1000; i++) {
+            if (i > 0) {
+                page.append(',');
+            }
+            page.append("{\"name\":\"images/").append(i).append(".png\",\"size\":\"482133\",\"generation\":\"")
+                    .append(1517578114000000L + i).append("\"}");
+        }
+        listingPage = page.append("],\"nextPageToken\":\"CgtpbWFnZXMvOTk5\"}").toString();
+    }
+
+    @Benchmark
+    public StorageObject fullObject() throws IOException {
+        return jsonFactory.fromString(FULL_OBJECT, StorageObject.class);
+    }
+
+    @Benchmark
+    public StorageObject maskedObject() throws IOException {
+        return jsonFactory.fromString(MASKED_OBJECT, StorageObject.class);
+    }
+
+    @Benchmark
+    public Objects maskedListingPage() throws IOException {
+        return jsonFactory.fromString(listingPage, Objects.class);
+    }
+}
@@ -0,0 +1,108 @@
+package duopoints.com.gcs.core;
+
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.Sleeper;
+import com.google.api.services.storage.model.StorageObject;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The client side cost of a request against the {@link FakeGcsTransport}: building, signing,
+ * executing and parsing a metadata request ({@link CloudImageCRUD#statCloudImage}), with and
+ * without a {@link RetryPolicy}, and with every 10th request failing and retried.
+ * Also the cost of listing 5000 objects a page at a time.
+ * <p/>
+ * Retries back off with a Sleeper that does not sleep, so only the work of the retry is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RequestBenchmark {
+    private static final String OBJECT = "images/profile.png";
+
+    @Param({"none", "retry", "retryFailing"})
+    String policy;
+
+    private GoogleStorage googleStorage;
+    private RetryPolicy previousPolicy;
+
+
+    @Setup
+    public void setup() {
+        FakeGcsTransport transport = new FakeGcsTransport();
+        transport.put(OBJECT, new byte[64 * 1024]);
+        for (int i = 0; i < 5000; i++) {
+            transport.put("listing/" + i, new byte[1]);
+        }
+
+        previousPolicy = GoogleStorage.getRetryPolicy();
+
+        RetryPolicy retryPolicy = null;
+        if (!"none".equals(policy)) {
+            // Never opens, the failures are injected on purpose.
+            retryPolicy = new RetryPolicy.Builder().failureThreshold(Integer.MAX_VALUE).build();
+            retryPolicy.setSleeper(new Sleeper() {
+                @Override
+                public void sleep(long millis) {
+                    // Measures the retry, not the back off.
+                }
+            });
+        }
+        GoogleStorage.setRetryPolicy(retryPolicy);
+
+        if ("retryFailing".equals(policy)) {
+            transport.setFailEvery(10);
+        }
+
+        googleStorage = GoogleStorage.build("benchmark", transport.createCredential(JacksonFactory.getDefaultInstance()));
+    }
+
+    @TearDown
+    public void tearDown() {
+        GoogleStorage.setRetryPolicy(previousPolicy);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public StorageObject stat() throws IOException {
+        return CloudImageCRUD.statCloudImage(googleStorage, OBJECT);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public StorageObject statConcurrent() throws IOException {
+        return CloudImageCRUD.statCloudImage(googleStorage, OBJECT);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int list() throws IOException {
+        ObjectListing listing = googleStorage.listObjects("listing/", null);
+
+        int count = 0;
+        try {
+            while ( listing.hasNextPage() ) {
+                List<StorageObject> page = listing.nextPage();
+                count += page.size();
+            }
+        }
+        finally {
+            listing.close();
+        }
+
+        return count;
+    }
+}
@@ -0,0 +1,106 @@
+package duopoints.com.gcs.core;
+
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.storage.model.StorageObject;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The client side throughput of the chunked transfers against the {@link FakeGcsTransport}:
+ * a {@link ResumableUpload} of a staged file, and a {@link SegmentedDownload} with one or more
+ * segments in flight, for objects from a single chunk up to many.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TransferBenchmark {
+    private static final String OBJECT = "transfer/object.bin";
+
+    @Param({"262144", "4194304", "16777216"})
+    int size;
+
+    @Param({"1", "4"})
+    int parallelism;
+
+    private GoogleStorage googleStorage;
+    private File directory;
+    private File source;
+    private File destination;
+    private File stateFile;
+
+
+    @Setup
+    public void setup() throws IOException {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+
+        FakeGcsTransport transport = new FakeGcsTransport();
+        transport.put(OBJECT, data);
+        googleStorage = GoogleStorage.build("benchmark", transport.createCredential(JacksonFactory.getDefaultInstance()));
+
+        directory = File.createTempFile("transfer", "benchmark");
+        if (!directory.delete() || !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+
+        source = new File(directory, "source.bin");
+        OutputStream out = new FileOutputStream(source);
+        try {
+            out.write(data);
+        }
+        finally {
+            out.close();
+        }
+
+        destination = new File(directory, "destination.bin");
+        stateFile = new File(directory, "state");
+    }
+
+    @Setup(Level.Invocation)
+    public void freshState() {
+        // Every transfer starts from scratch, instead of resuming the previous one.
+        stateFile.delete();
+        destination.delete();
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public StorageObject upload() throws IOException {
+        return new ResumableUpload(googleStorage.getStorage(), googleStorage.getBucketName(),
+                OBJECT, source, "application/octet-stream", stateFile).upload();
+    }
+
+    @Benchmark
+    public StorageObject download() throws IOException {
+        return new SegmentedDownload(googleStorage, OBJECT, destination, stateFile)
+                .setSegmentSize(1024 * 1024)
+                .setParallelism(parallelism)
+                .download();
+    }
+}
@@ -0,0 +1,53 @@
+package duopoints.com.gcs.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of a decode buffer from a shared {@link BufferPool} against allocating a new one,
+ * with a single thread and with threads contending for the pool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BufferPoolBenchmark {
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final BufferPool pool = new BufferPool(BUFFER_SIZE, 4);
+
+
+    @Benchmark
+    @Threads(1)
+    public byte[] pooled() {
+        byte[] buffer = pool.acquire();
+        pool.release(buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    @Threads(8)
+    public byte[] pooledContended() {
+        byte[] buffer = pool.acquire();
+        pool.release(buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public byte[] allocated() {
+        return new byte[BUFFER_SIZE];
+    }
+
+    @Benchmark
+    @Threads(8)
+    public byte[] allocatedContended() {
+        return new byte[BUFFER_SIZE];
+    }
+}
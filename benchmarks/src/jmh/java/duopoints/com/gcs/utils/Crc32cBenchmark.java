@@ -0,0 +1,59 @@
+package duopoints.com.gcs.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * The throughput of {@link Crc32c}, computed for every uploaded part and downloaded object,
+ * of the platform CRC32C returned by {@link Crc32c#create()} where the JVM has one, and of the
+ * intrinsic java.util.zip.CRC32 as a baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class Crc32cBenchmark {
+
+    @Param({"4096", "262144", "4194304"})
+    int size;
+
+    private byte[] data;
+
+
+    @Setup
+    public void setup() {
+        data = new byte[size];
+        new Random(size).nextBytes(data);
+    }
+
+    @Benchmark
+    public long crc32c() {
+        Crc32c checksum = new Crc32c();
+        checksum.update(data, 0, data.length);
+        return checksum.getValue();
+    }
+
+    @Benchmark
+    public long crc32cPlatform() {
+        Checksum checksum = Crc32c.create();
+        checksum.update(data, 0, data.length);
+        return checksum.getValue();
+    }
+
+    @Benchmark
+    public long crc32Baseline() {
+        CRC32 checksum = new CRC32();
+        checksum.update(data, 0, data.length);
+        return checksum.getValue();
+    }
+}
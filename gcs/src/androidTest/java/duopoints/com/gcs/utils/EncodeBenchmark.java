@@ -0,0 +1,210 @@
+package duopoints.com.gcs.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.SystemClock;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Compares {@link EncodeOptions} for an actual image: the number of bytes each would send over
+ * the network, and how long the encoding (including any downscale and quality search) takes.
+ * <p/>
+ * Runs on a device as an instrumented test, as Bitmap encoding needs the Android framework:
+ * <pre>
+ * ./gradlew :gcs:connectedAndroidTest -Pandroid.testInstrumentationRunnerArguments.class=duopoints.com.gcs.utils.EncodeBenchmark
+ * </pre>
+ * The results are logged with the tag "EncodeBenchmark". {@link #run(Bitmap, Collection, int)}
+ * can be copied into an application to compare the options with its own images.
+ */
+@RunWith(AndroidJUnit4.class)
+public class EncodeBenchmark {
+    private static final String TAG = "EncodeBenchmark";
+    private static final int ITERATIONS = 5;
+
+
+    @Test
+    public void compareFormats() throws IOException {
+        Bitmap image = createPhotoLikeImage(1920, 1080);
+        try {
+            for (MediaManipulation.SupportedImageFormats format : MediaManipulation.SupportedImageFormats.values()) {
+                for (Result result : run(image, defaultSettings(format), ITERATIONS)) {
+                    Log.i(TAG, result.toString());
+                }
+            }
+        }
+        finally {
+            image.recycle();
+        }
+    }
+
+    /**
+     * Returns a set of options worth comparing for the given format: the default, quality 90,
+     * 80 and 70, lossless (for webp) and a 1080p downscale at quality 80.
+     *
+     * @param format
+     *
+     * @return
+     */
+    public static List<EncodeOptions> defaultSettings(MediaManipulation.SupportedImageFormats format) {
+        List<EncodeOptions> settings = new ArrayList<>(Arrays.asList(
+                EncodeOptions.of(format),
+                new EncodeOptions.Builder(format).quality(90).build(),
+                new EncodeOptions.Builder(format).quality(80).build(),
+                new EncodeOptions.Builder(format).quality(70).build(),
+                new EncodeOptions.Builder(format).quality(80).maxSize(1920, 1080).build()));
+
+        if (format == MediaManipulation.SupportedImageFormats.webp) {
+            settings.add(new EncodeOptions.Builder(format).lossless(true).build());
+        }
+
+        return settings;
+    }
+
+    /**
+     * Encodes the given image with every given option the given number of times, and returns
+     * the encoded size and the average encode time of every option.
+     *
+     * @param image
+     * @param settings
+     * @param iterations
+     *
+     * @return
+     * @throws IOException
+     */
+    public static List<Result> run(Bitmap image, Collection<EncodeOptions> settings, int iterations) throws IOException {
+        if (image == null) {
+            throw new IllegalArgumentException("Given Bitmap was null! Error!");
+        }
+
+        if (settings == null) {
+            throw new IllegalArgumentException("Given settings was null! Error!");
+        }
+
+        if (iterations < 1) {
+            throw new IllegalArgumentException("Given iterations must be positive! Error!");
+        }
+
+
+        List<Result> results = new ArrayList<>(settings.size());
+
+        for (EncodeOptions options : settings) {
+            long bytes = 0;
+            int quality = 0;
+            long totalMillis = 0;
+
+            for (int i = 0; i < iterations; i++) {
+                long start = SystemClock.elapsedRealtime();
+
+                Bitmap scaled = options.scale(image);
+                try {
+                    quality = options.findQuality(scaled);
+                    bytes = options.encodedSize(scaled, quality);
+                }
+                finally {
+                    if (scaled != image) {
+                        scaled.recycle();
+                    }
+                }
+
+                totalMillis += SystemClock.elapsedRealtime() - start;
+            }
+
+            results.add(new Result(options, bytes, quality, totalMillis / iterations));
+        }
+
+        return results;
+    }
+
+
+    /**
+     * Returns an image with smooth gradients and fine noise, which compresses more like a photo
+     * than a flat or random image does.
+     *
+     * @param width
+     * @param height
+     *
+     * @return
+     */
+    static Bitmap createPhotoLikeImage(int width, int height) {
+        int[] pixels = new int[width * height];
+        int noise = 12345;
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                noise = noise * 1103515245 + 12345;
+                int grain = (noise >>> 28) - 8;
+
+                int red = clamp(255 * x / width + grain);
+                int green = clamp(255 * y / height + grain);
+                int blue = clamp(128 + (int) (64 * Math.sin(x / 40.0) * Math.cos(y / 30.0)) + grain);
+
+                pixels[y * width + x] = Color.rgb(red, green, blue);
+            }
+        }
+
+        return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+
+    /**
+     * The outcome of a single option.
+     */
+    public static class Result {
+        private final EncodeOptions options;
+        private final long encodedBytes;
+        private final int quality;
+        private final long encodeMillis;
+
+
+        Result(EncodeOptions options, long encodedBytes, int quality, long encodeMillis) {
+            this.options = options;
+            this.encodedBytes = encodedBytes;
+            this.quality = quality;
+            this.encodeMillis = encodeMillis;
+        }
+
+        public EncodeOptions getOptions() {
+            return options;
+        }
+
+        /**
+         * The number of bytes the encoded image sends over the network.
+         */
+        public long getEncodedBytes() {
+            return encodedBytes;
+        }
+
+        /**
+         * The quality the image was encoded with, after any quality search.
+         */
+        public int getQuality() {
+            return quality;
+        }
+
+        /**
+         * The average time the encoding took, in milliseconds.
+         */
+        public long getEncodeMillis() {
+            return encodeMillis;
+        }
+
+        @Override
+        public String toString() {
+            return options + ": " + encodedBytes + " bytes at quality " + quality + " in " + encodeMillis + " ms";
+        }
+    }
+}
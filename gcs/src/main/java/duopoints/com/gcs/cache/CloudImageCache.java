@@ -0,0 +1,334 @@
+package duopoints.com.gcs.cache;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.services.storage.Storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import duopoints.com.gcs.core.CloudImageCRUD;
+import duopoints.com.gcs.core.GoogleStorage;
+import duopoints.com.gcs.core.MetricsListener;
+import duopoints.com.gcs.utils.GcsLog;
+import duopoints.com.gcs.utils.TransferChecksums;
+
+/**
+ * A two-tier cache in front of {@link CloudImageCRUD#readCloudImage(GoogleStorage, String, BitmapFactory.Options)}.
+ * <p/>
+ * Decoded Bitmaps are kept in a memory LRU cache bounded by their byte size, and the downloaded
+ * (encoded) objects in a byte budgeted {@link DiskImageCache}. Entries are keyed by bucket and
+ * object path, and remember the generation of the cloud object they were read from.
+ * <p/>
+ * An entry validated less than {@link #setMaxAge(long)} ago is returned without any network
+ * access. An older entry is revalidated with a conditional read (ifGenerationNotMatch), which
+ * only downloads the object if it has changed, and otherwise costs a single 304 response.
+ * The metageneration is not taken into account, as metadata changes do not change the image.
+ * <p/>
+ * Hit, miss and eviction counters are available for monitoring the effectiveness of the cache.
+ */
+public class CloudImageCache {
+    private static final String TAG = "CloudImageCache";
+
+    private static final String DISK_CACHE_DIR = "gcs-images";
+    private static final String GENERATION_HEADER = "x-goog-generation";
+
+    public static final long DEFAULT_MAX_AGE_MILLIS = 60 * 1000;
+
+    private final LruCache<String, MemoryEntry> memoryCache;
+    private final DiskImageCache diskCache;
+
+    private volatile long maxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+
+    private final AtomicLong memoryHitCount = new AtomicLong();
+    private final AtomicLong diskHitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong notModifiedCount = new AtomicLong();
+    private final AtomicLong memoryEvictionCount = new AtomicLong();
+
+
+    /**
+     * Creates a cache with its disk tier in the application cache directory.
+     *
+     * @param context
+     * @param memoryCacheBytes The maximum byte size of all Bitmaps kept in memory.
+     * @param diskCacheBytes   The maximum byte size of all objects kept on disk.
+     */
+    public CloudImageCache(Context context, int memoryCacheBytes, long diskCacheBytes) {
+        this(new File(validContext(context).getCacheDir(), DISK_CACHE_DIR), memoryCacheBytes, diskCacheBytes);
+    }
+
+    /**
+     * @param diskCacheDirectory The directory owned by the disk tier.
+     * @param memoryCacheBytes   The maximum byte size of all Bitmaps kept in memory.
+     * @param diskCacheBytes     The maximum byte size of all objects kept on disk.
+     */
+    public CloudImageCache(File diskCacheDirectory, int memoryCacheBytes, long diskCacheBytes) {
+        if (memoryCacheBytes < 1) {
+            throw new IllegalArgumentException("Given memoryCacheBytes must be positive! Error!");
+        }
+
+        this.memoryCache = new LruCache<String, MemoryEntry>(memoryCacheBytes) {
+            @Override
+            protected int sizeOf(String key, MemoryEntry entry) {
+                return entry.bitmap.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, MemoryEntry oldEntry, MemoryEntry newEntry) {
+                if (evicted) {
+                    memoryEvictionCount.incrementAndGet();
+                }
+            }
+        };
+        this.diskCache = new DiskImageCache(diskCacheDirectory, diskCacheBytes);
+    }
+
+    /**
+     * Sets how long an entry is trusted without asking the cloud storage if it has changed.
+     * 0 revalidates on every read.
+     *
+     * @param maxAgeMillis
+     *
+     * @return
+     */
+    public CloudImageCache setMaxAge(long maxAgeMillis) {
+        if (maxAgeMillis < 0) {
+            throw new IllegalArgumentException("Given maxAgeMillis can not be negative! Error!");
+        }
+
+        this.maxAgeMillis = maxAgeMillis;
+
+        return this;
+    }
+
+    /**
+     * Reads the image at the given imageFullPath through the cache.
+     * <p/>
+     * Returns null if the image does not exist or could not be decoded, like
+     * {@link CloudImageCRUD#readCloudImage(GoogleStorage, String, BitmapFactory.Options)}.
+     *
+     * @param googleStorage
+     * @param imageFullPath
+     *
+     * @return
+     * @throws IOException
+     */
+    public Bitmap readCloudImage(GoogleStorage googleStorage, String imageFullPath) throws IOException {
+        if (googleStorage == null) {
+            throw new IllegalArgumentException("Given GoogleStorage was null! Error!");
+        }
+
+        if ((imageFullPath == null || imageFullPath.length() < 1)) {
+            throw new IllegalArgumentException("Given imageFullPath was null or empty! Error!");
+        }
+
+
+        String key = googleStorage.getBucketName() + "/" + imageFullPath;
+        long now = SystemClock.elapsedRealtime();
+
+        // 1. Memory
+        MemoryEntry memoryEntry = memoryCache.get(key);
+        if (memoryEntry != null && now - memoryEntry.validatedAt <= maxAgeMillis) {
+            memoryHitCount.incrementAndGet();
+            reportHit(MetricsListener.CacheTier.MEMORY);
+            return memoryEntry.bitmap;
+        }
+
+        // 2. Disk
+        DiskImageCache.Entry diskEntry = diskCache.get(key);
+        if (memoryEntry == null && diskEntry != null) {
+            Bitmap image = BitmapFactory.decodeFile(diskEntry.getFile().getPath());
+
+            if (image != null) {
+                // The disk tier does not remember when it was validated, so it is always stale.
+                memoryEntry = new MemoryEntry(image, diskEntry.getGeneration(), 0);
+            } else {
+                diskCache.remove(key);
+                diskEntry = null;
+            }
+        }
+
+        // 3. Network, conditional if there is something cached
+        try {
+            Storage.Objects.Get get = googleStorage.getStorage().objects().get(googleStorage.getBucketName(), imageFullPath);
+
+            if (memoryEntry != null) {
+                get.setIfGenerationNotMatch(memoryEntry.generation);
+            }
+
+            HttpResponse response = get.executeMedia();
+            try {
+                String generationHeader = response.getHeaders().getFirstHeaderStringValue(GENERATION_HEADER);
+                long generation = generationHeader != null ? Long.parseLong(generationHeader) : 0;
+
+                // A corrupted download fails at its end, before it is moved into the cache.
+                InputStream content = TransferChecksums.verify(response, imageFullPath);
+                try {
+                    diskEntry = diskCache.put(key, generation, content);
+                }
+                finally {
+                    content.close();
+                }
+            }
+            finally {
+                response.disconnect();
+            }
+
+            missCount.incrementAndGet();
+
+            MetricsListener metrics = GoogleStorage.getMetricsListener();
+            if (metrics != null) {
+                metrics.onCacheMiss();
+            }
+
+            if (GcsLog.isDebug()) {
+                Log.d(TAG, "Downloaded " + key + " generation " + diskEntry.getGeneration());
+            }
+
+            Bitmap image = BitmapFactory.decodeFile(diskEntry.getFile().getPath());
+            if (image == null) {
+                Log.w(TAG, "Cloud Object (" + imageFullPath + ") could not be decoded.");
+                diskCache.remove(key);
+                memoryCache.remove(key);
+                return null;
+            }
+
+            memoryCache.put(key, new MemoryEntry(image, diskEntry.getGeneration(), SystemClock.elapsedRealtime()));
+            return image;
+        }
+        catch ( HttpResponseException e ) {
+            if (e.getStatusCode() == HttpStatusCodes.STATUS_CODE_NOT_MODIFIED && memoryEntry != null) {
+                notModifiedCount.incrementAndGet();
+
+                if (memoryCache.get(key) != null) {
+                    memoryHitCount.incrementAndGet();
+                    reportHit(MetricsListener.CacheTier.MEMORY);
+                } else {
+                    diskHitCount.incrementAndGet();
+                    reportHit(MetricsListener.CacheTier.DISK);
+                }
+
+                if (GcsLog.isDebug()) {
+                    Log.d(TAG, "Cached " + key + " is still current.");
+                }
+                memoryCache.put(key, new MemoryEntry(memoryEntry.bitmap, memoryEntry.generation, SystemClock.elapsedRealtime()));
+
+                return memoryEntry.bitmap;
+            }
+
+            if (e.getStatusCode() == HttpStatusCodes.STATUS_CODE_NOT_FOUND) {
+                Log.w(TAG, "Cloud Object (" + imageFullPath + ") not found.");
+                memoryCache.remove(key);
+                diskCache.remove(key);
+                return null;
+            }
+
+            throw e;
+        }
+        finally {
+            diskCache.trimToSize();
+        }
+    }
+
+    /**
+     * Removes the given object from both tiers, for example after replacing or deleting it.
+     *
+     * @param googleStorage
+     * @param imageFullPath
+     */
+    public void invalidate(GoogleStorage googleStorage, String imageFullPath) {
+        String key = googleStorage.getBucketName() + "/" + imageFullPath;
+        memoryCache.remove(key);
+        diskCache.remove(key);
+    }
+
+    /**
+     * Empties the memory tier, for example from {@link android.content.ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public void evictMemory() {
+        memoryCache.evictAll();
+    }
+
+    /**
+     * Reads that were served from memory, including memory entries revalidated as unchanged.
+     */
+    public long getMemoryHitCount() {
+        return memoryHitCount.get();
+    }
+
+    /**
+     * Reads that were served from disk, including disk entries revalidated as unchanged.
+     */
+    public long getDiskHitCount() {
+        return diskHitCount.get();
+    }
+
+    /**
+     * Reads that had to download the object.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Revalidations that found the cached object unchanged (304).
+     */
+    public long getNotModifiedCount() {
+        return notModifiedCount.get();
+    }
+
+    public long getMemoryEvictionCount() {
+        return memoryEvictionCount.get();
+    }
+
+    public long getDiskEvictionCount() {
+        return diskCache.evictionCount();
+    }
+
+    public int getMemorySize() {
+        return memoryCache.size();
+    }
+
+    public long getDiskSize() {
+        return diskCache.size();
+    }
+
+
+    private static void reportHit(MetricsListener.CacheTier tier) {
+        MetricsListener metrics = GoogleStorage.getMetricsListener();
+        if (metrics != null) {
+            metrics.onCacheHit(tier);
+        }
+    }
+
+    private static Context validContext(Context context) {
+        if (context == null) {
+            throw new IllegalArgumentException("Given Context was null! Error!");
+        }
+
+        return context;
+    }
+
+    private static class MemoryEntry {
+        final Bitmap bitmap;
+        final long generation;
+        final long validatedAt;
+
+        MemoryEntry(Bitmap bitmap, long generation, long validatedAt) {
+            this.bitmap = bitmap;
+            this.generation = generation;
+            this.validatedAt = validatedAt;
+        }
+    }
+}
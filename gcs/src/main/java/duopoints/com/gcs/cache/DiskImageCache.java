@@ -0,0 +1,254 @@
+package duopoints.com.gcs.cache;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import duopoints.com.gcs.utils.MediaManipulation;
+
+/**
+ * A byte budgeted, least recently used cache of downloaded cloud objects on disk.
+ * <p/>
+ * Every entry is a single file named after the hashed cache key and the generation of the
+ * cloud object it holds ("[hash].[generation]"), so the cache can be rebuilt from the directory
+ * alone after a process restart. Least recently used entries are deleted once the total size
+ * of the cache exceeds its budget.
+ */
+public class DiskImageCache {
+    private static final String TAG = "DiskImageCache";
+
+    private final File directory;
+    private final long maxBytes;
+
+    // Access ordered, so iteration starts with the least recently used entry.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    private long evictionCount;
+
+
+    /**
+     * @param directory The directory the cache owns. Created if it does not exist.
+     * @param maxBytes  The maximum total size of all cached files.
+     */
+    public DiskImageCache(File directory, long maxBytes) {
+        if (directory == null) {
+            throw new IllegalArgumentException("Given directory was null! Error!");
+        }
+
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("Given maxBytes must be positive! Error!");
+        }
+
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Could not create cache directory " + directory);
+        }
+
+        loadEntries();
+    }
+
+    /**
+     * Returns the cached entry with the given key, or null.
+     *
+     * @param key
+     *
+     * @return
+     */
+    public synchronized Entry get(String key) {
+        Entry entry = entries.get(MediaManipulation.hashName(key));
+
+        if (entry != null && !entry.file.isFile()) {
+            // Deleted behind our back.
+            remove(key);
+            return null;
+        }
+
+        return entry;
+    }
+
+    /**
+     * Writes the given stream into the cache as the given generation of the given key,
+     * replacing any older generation. The stream is not closed.
+     * <p/>
+     * The cache is not trimmed here, so the returned entry can be read before it might be
+     * evicted. Call {@link #trimToSize()} when done.
+     *
+     * @param key
+     * @param generation
+     * @param input
+     *
+     * @return
+     * @throws IOException
+     */
+    public Entry put(String key, long generation, InputStream input) throws IOException {
+        String hash = MediaManipulation.hashName(key);
+        File tempFile = File.createTempFile(hash, ".tmp", directory);
+
+        try {
+            OutputStream output = new FileOutputStream(tempFile);
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+
+                while ( (read = input.read(buffer)) != -1 ) {
+                    output.write(buffer, 0, read);
+                }
+            }
+            finally {
+                output.close();
+            }
+
+            Entry entry = new Entry(hash, generation, new File(directory, hash + "." + generation));
+
+            synchronized ( this ) {
+                removeEntry(entries.remove(hash));
+
+                if (!tempFile.renameTo(entry.file)) {
+                    throw new IOException("Could not move downloaded file into cache! Error!");
+                }
+
+                entry.length = entry.file.length();
+                entries.put(hash, entry);
+                size += entry.length;
+            }
+
+            return entry;
+        }
+        finally {
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Removes the entry with the given key, if any.
+     *
+     * @param key
+     */
+    public synchronized void remove(String key) {
+        removeEntry(entries.remove(MediaManipulation.hashName(key)));
+    }
+
+    /**
+     * Deletes least recently used entries until the cache is within its budget.
+     */
+    public synchronized void trimToSize() {
+        Iterator<Entry> iterator = entries.values().iterator();
+
+        while ( size > maxBytes && iterator.hasNext() ) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            removeEntry(entry);
+            evictionCount++;
+        }
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    public long maxSize() {
+        return maxBytes;
+    }
+
+    public synchronized long evictionCount() {
+        return evictionCount;
+    }
+
+
+    private void removeEntry(Entry entry) {
+        if (entry == null) {
+            return;
+        }
+
+        size -= entry.length;
+        if (entry.file.exists() && !entry.file.delete()) {
+            Log.w(TAG, "Could not delete cache file " + entry.file);
+        }
+    }
+
+    /**
+     * Rebuilds the index from the directory, oldest file first. Leftover temporary files and
+     * older generations of the same key are deleted.
+     */
+    private void loadEntries() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        List<File> sorted = new ArrayList<>(files.length);
+        Collections.addAll(sorted, files);
+        Collections.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+
+        for (File file : sorted) {
+            String name = file.getName();
+            int separator = name.indexOf('.');
+
+            try {
+                if (separator < 1 || name.endsWith(".tmp")) {
+                    throw new NumberFormatException(name);
+                }
+
+                Entry entry = new Entry(name.substring(0, separator), Long.parseLong(name.substring(separator + 1)), file);
+                entry.length = file.length();
+
+                removeEntry(entries.put(entry.hash, entry));
+                size += entry.length;
+            }
+            catch ( NumberFormatException e ) {
+                file.delete();
+            }
+        }
+
+        trimToSize();
+    }
+
+
+    /**
+     * A single cached cloud object.
+     */
+    public static class Entry {
+        private final String hash;
+        private final long generation;
+        private final File file;
+        private long length;
+
+        Entry(String hash, long generation, File file) {
+            this.hash = hash;
+            this.generation = generation;
+            this.file = file;
+        }
+
+        public long getGeneration() {
+            return generation;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getLength() {
+            return length;
+        }
+    }
+}
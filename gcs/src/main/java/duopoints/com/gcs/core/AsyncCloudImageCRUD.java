@@ -0,0 +1,272 @@
+package duopoints.com.gcs.core;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import duopoints.com.gcs.utils.CancellationToken;
+import duopoints.com.gcs.utils.EncodeOptions;
+import duopoints.com.gcs.utils.MediaManipulation;
+
+/**
+ * The non-blocking counterpart of {@link CloudImageCRUD}. Every function starts the operation
+ * on a library-managed Executor and returns a {@link CloudTask} right away, which can be waited
+ * on, cancelled or given {@link CloudCallback}s.
+ * <p/>
+ * Callbacks are called on the main thread, unless another Executor is set with
+ * {@link #setCallbackExecutor(Executor)}. Invalid parameters are reported to the callbacks
+ * as an IllegalArgumentException.
+ * <p/>
+ * Cancelling a CloudTask aborts its HTTP transfer: an upload fails on the next write of the
+ * compressed image, and a download is disconnected, even while blocked on the network.
+ * <p/>
+ * NOTE: See full path explanation:
+ * https://github.com/Mithrandir21/GoogleCloudStorage#object-full-path
+ */
+public class AsyncCloudImageCRUD {
+    /**
+     * The number of operations the default Executor runs at the same time.
+     */
+    public static final int DEFAULT_THREAD_COUNT = 4;
+
+    // Idle threads of the default Executor are stopped after this long.
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static ExecutorService executor;
+    private static Executor callbackExecutor;
+
+
+    /**
+     * Sets the ExecutorService the operations run on, instead of the default one of
+     * {@link #DEFAULT_THREAD_COUNT} threads. Operations already started keep running on the
+     * previous ExecutorService. The library never shuts down a given ExecutorService.
+     *
+     * @param executorService
+     */
+    public static synchronized void setExecutor(ExecutorService executorService) {
+        if (executorService == null) {
+            throw new IllegalArgumentException("Given ExecutorService was null! Error!");
+        }
+
+        executor = executorService;
+    }
+
+    /**
+     * Sets the Executor callbacks are called on, instead of the main thread.
+     *
+     * @param callbackExecutor
+     */
+    public static synchronized void setCallbackExecutor(Executor callbackExecutor) {
+        if (callbackExecutor == null) {
+            throw new IllegalArgumentException("Given Executor was null! Error!");
+        }
+
+        AsyncCloudImageCRUD.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * See {@link CloudImageCRUD#insertCloudImage(GoogleStorage, String, Bitmap, MediaManipulation.SupportedImageFormats)}.
+     *
+     * @param googleStorage
+     * @param imageFullPath
+     * @param image
+     * @param format
+     * @param callback      Optional, may be null.
+     *
+     * @return
+     */
+    public static CloudTask<Boolean> insertAsync(GoogleStorage googleStorage, String imageFullPath, Bitmap image, MediaManipulation.SupportedImageFormats format, CloudCallback<? super Boolean> callback) {
+        return insertAsync(googleStorage, imageFullPath, image, encodeOptions(format), callback);
+    }
+
+    /**
+     * See {@link CloudImageCRUD#insertCloudImage(GoogleStorage, String, Bitmap, EncodeOptions)}.
+     *
+     * @param googleStorage
+     * @param imageFullPath
+     * @param image
+     * @param options
+     * @param callback      Optional, may be null.
+     *
+     * @return
+     */
+    public static CloudTask<Boolean> insertAsync(final GoogleStorage googleStorage, final String imageFullPath, final Bitmap image, final EncodeOptions options, CloudCallback<? super Boolean> callback) {
+        return submit(new CloudTask.Operation<Boolean>() {
+            @Override
+            public Boolean execute(CancellationToken cancellationToken) throws Exception {
+                return CloudImageCRUD.insertCloudImage(googleStorage, imageFullPath, image, options, cancellationToken);
+            }
+        }, callback);
+    }
+
+    /**
+     * See {@link CloudImageCRUD#readCloudImage(GoogleStorage, String, BitmapFactory.Options)}.
+     * The result is null if the image does not exist or could not be decoded.
+     *
+     * @param googleStorage
+     * @param imageFullPath
+     * @param options       Optional decode options, may be null.
+     * @param callback      Optional, may be null.
+     *
+     * @return
+     */
+    public static CloudTask<Bitmap> readAsync(final GoogleStorage googleStorage, final String imageFullPath, final BitmapFactory.Options options, CloudCallback<? super Bitmap> callback) {
+        return submit(new CloudTask.Operation<Bitmap>() {
+            @Override
+            public Bitmap execute(CancellationToken cancellationToken) throws Exception {
+                return CloudImageCRUD.readCloudImage(googleStorage, imageFullPath, options, cancellationToken);
+            }
+        }, callback);
+    }
+
+    /**
+     * See {@link CloudImageCRUD#readCloudImage(GoogleStorage, String, int, int, Bitmap.Config, Rect)}.
+     * The result is null if the image does not exist or could not be decoded.
+     *
+     * @param googleStorage
+     * @param imageFullPath
+     * @param targetWidth   The wanted width, or 0 to only constrain the height.
+     * @param targetHeight  The wanted height, or 0 to only constrain the width.
+     * @param config        Optional Bitmap.Config, may be null for the decoder default.
+     * @param crop          Optional region of the image to decode, may be null.
+     * @param callback      Optional, may be null.
+     *
+     * @return
+     */
+    public static CloudTask<Bitmap> readAsync(final GoogleStorage googleStorage, final String imageFullPath, final int targetWidth, final int targetHeight, final Bitmap.Config config, final Rect crop, CloudCallback<? super Bitmap> callback) {
+        return submit(new CloudTask.Operation<Bitmap>() {
+            @Override
+            public Bitmap execute(CancellationToken cancellationToken) throws Exception {
+                return CloudImageCRUD.readCloudImage(googleStorage, imageFullPath, targetWidth, targetHeight, config, crop, cancellationToken);
+            }
+        }, callback);
+    }
+
+    /**
+     * See {@link CloudImageCRUD#replaceCloudImage(GoogleStorage, String, Bitmap, MediaManipulation.SupportedImageFormats, Long, Long)}.
+     * The result is the generation of the new object.
+     *
+     * @param googleStorage
+     * @param imageFullPath
+     * @param newImage
+     * @param format
+     * @param ifGenerationMatch     Optional, may be null.
+     * @param ifMetagenerationMatch Optional, may be null.
+     * @param callback              Optional, may be null.
+     *
+     * @return
+     */
+    public static CloudTask<Long> replaceAsync(GoogleStorage googleStorage, String imageFullPath, Bitmap newImage, MediaManipulation.SupportedImageFormats format, Long ifGenerationMatch, Long ifMetagenerationMatch, CloudCallback<? super Long> callback) {
+        return replaceAsync(googleStorage, imageFullPath, newImage, encodeOptions(format), ifGenerationMatch, ifMetagenerationMatch, callback);
+    }
+
+    /**
+     * See {@link CloudImageCRUD#replaceCloudImage(GoogleStorage, String, Bitmap, EncodeOptions, Long, Long)}.
+     * The result is the generation of the new object.
+     *
+     * @param googleStorage
+     * @param imageFullPath
+     * @param newImage
+     * @param options
+     * @param ifGenerationMatch     Optional, may be null.
+     * @param ifMetagenerationMatch Optional, may be null.
+     * @param callback              Optional, may be null.
+     *
+     * @return
+     */
+    public static CloudTask<Long> replaceAsync(final GoogleStorage googleStorage, final String imageFullPath, final Bitmap newImage, final EncodeOptions options, final Long ifGenerationMatch, final Long ifMetagenerationMatch, CloudCallback<? super Long> callback) {
+        return submit(new CloudTask.Operation<Long>() {
+            @Override
+            public Long execute(CancellationToken cancellationToken) throws Exception {
+                return CloudImageCRUD.replaceCloudImage(googleStorage, imageFullPath, newImage, options, ifGenerationMatch, ifMetagenerationMatch, cancellationToken);
+            }
+        }, callback);
+    }
+
+    /**
+     * See {@link CloudImageCRUD#deleteCloudImage(GoogleStorage, String)}. A deletion that has
+     * already been sent can not be taken back by cancelling.
+     *
+     * @param googleStorage
+     * @param imageFullPath
+     * @param callback      Optional, may be null.
+     *
+     * @return
+     */
+    public static CloudTask<Boolean> deleteAsync(final GoogleStorage googleStorage, final String imageFullPath, CloudCallback<? super Boolean> callback) {
+        return submit(new CloudTask.Operation<Boolean>() {
+            @Override
+            public Boolean execute(CancellationToken cancellationToken) throws Exception {
+                cancellationToken.throwIfCancelled();
+                return CloudImageCRUD.deleteCloudImage(googleStorage, imageFullPath);
+            }
+        }, callback);
+    }
+
+
+    /**
+     * Returns the default EncodeOptions of the given format, or null (reported to the callbacks
+     * as an IllegalArgumentException) for a null format.
+     */
+    private static EncodeOptions encodeOptions(MediaManipulation.SupportedImageFormats format) {
+        return format != null ? EncodeOptions.of(format) : null;
+    }
+
+    private static <T> CloudTask<T> submit(CloudTask.Operation<T> operation, CloudCallback<? super T> callback) {
+        CloudTask<T> task = new CloudTask<>(operation, getCallbackExecutor());
+
+        if (callback != null) {
+            task.addCallback(callback);
+        }
+
+        getExecutor().execute(task.getRunnable());
+
+        return task;
+    }
+
+    static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(DEFAULT_THREAD_COUNT, DEFAULT_THREAD_COUNT,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "AsyncCloudImageCRUD-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            pool.allowCoreThreadTimeOut(true);
+
+            executor = pool;
+        }
+
+        return executor;
+    }
+
+    static synchronized Executor getCallbackExecutor() {
+        if (callbackExecutor == null) {
+            final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+            callbackExecutor = new Executor() {
+                @Override
+                public void execute(Runnable runnable) {
+                    mainHandler.post(runnable);
+                }
+            };
+        }
+
+        return callbackExecutor;
+    }
+}
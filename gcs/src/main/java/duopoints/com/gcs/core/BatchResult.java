@@ -0,0 +1,52 @@
+package duopoints.com.gcs.core;
+
+/**
+ * The outcome of a single item of a batch operation: either a value or the exception that
+ * made the item fail.
+ *
+ * @param <T> The type of value produced by a successful item.
+ */
+public class BatchResult<T> {
+    private final String objectFullPath;
+    private final T value;
+    private final Exception exception;
+
+
+    BatchResult(String objectFullPath, T value, Exception exception) {
+        this.objectFullPath = objectFullPath;
+        this.value = value;
+        this.exception = exception;
+    }
+
+    /**
+     * The full path of the cloud object this result belongs to.
+     *
+     * @return
+     */
+    public String getObjectFullPath() {
+        return objectFullPath;
+    }
+
+    /**
+     * The value of a successful item. May be null, for example for a read of an image that does
+     * not exist.
+     *
+     * @return
+     */
+    public T getValue() {
+        return value;
+    }
+
+    /**
+     * The exception that made the item fail, or null if it succeeded.
+     *
+     * @return
+     */
+    public Exception getException() {
+        return exception;
+    }
+
+    public boolean isSuccess() {
+        return exception == null;
+    }
+}
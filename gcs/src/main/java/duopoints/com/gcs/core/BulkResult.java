@@ -0,0 +1,71 @@
+package duopoints.com.gcs.core;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The outcome of a bulk operation sent as batch requests: the value of every object the
+ * operation succeeded for, and the error of every object it failed for.
+ *
+ * @param <T> The type of value produced for a successful object.
+ */
+public class BulkResult<T> {
+    private final Map<String, T> succeeded = new LinkedHashMap<>();
+    private final Map<String, GoogleJsonError> failed = new LinkedHashMap<>();
+
+
+    BulkResult() {
+    }
+
+    void addSuccess(String objectFullPath, T value) {
+        succeeded.put(objectFullPath, value);
+    }
+
+    void addFailure(String objectFullPath, GoogleJsonError error) {
+        failed.put(objectFullPath, error);
+    }
+
+    /**
+     * The objects the operation succeeded for, with their values (null for deletions),
+     * in the order the cloud storage answered.
+     *
+     * @return
+     */
+    public Map<String, T> getSucceeded() {
+        return Collections.unmodifiableMap(succeeded);
+    }
+
+    /**
+     * The objects the operation failed for, with the error reported by the cloud storage.
+     *
+     * @return
+     */
+    public Map<String, GoogleJsonError> getFailed() {
+        return Collections.unmodifiableMap(failed);
+    }
+
+    /**
+     * Returns true if the operation succeeded for every object.
+     *
+     * @return
+     */
+    public boolean isComplete() {
+        return failed.isEmpty();
+    }
+
+
+    /**
+     * Receives the outcome of every single object of a bulk operation, as soon as the batch it
+     * was part of has been answered.
+     *
+     * @param <T>
+     */
+    public interface Callback<T> {
+        void onSuccess(String objectFullPath, T value);
+
+        void onFailure(String objectFullPath, GoogleJsonError error);
+    }
+}
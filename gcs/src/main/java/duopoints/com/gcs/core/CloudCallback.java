@@ -0,0 +1,16 @@
+package duopoints.com.gcs.core;
+
+/**
+ * Receives the outcome of an asynchronous operation, see {@link AsyncCloudImageCRUD}.
+ * <p/>
+ * Exactly one of the functions is called, on the callback Executor of
+ * {@link AsyncCloudImageCRUD} (the main thread by default). A cancelled operation is reported
+ * to {@link #onFailure(Exception)} with a {@link java.util.concurrent.CancellationException}.
+ *
+ * @param <T> The type of the result of the operation.
+ */
+public interface CloudCallback<T> {
+    void onSuccess(T result);
+
+    void onFailure(Exception e);
+}
@@ -0,0 +1,375 @@
+package duopoints.com.gcs.core;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.google.api.client.http.GenericUrl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import duopoints.com.gcs.utils.MediaManipulation;
+
+/**
+ * Runs many uploads or reads in parallel on a bounded ExecutorService.
+ * <p/>
+ * Three limits apply:
+ * <ul>
+ * <li>The number of threads of the ExecutorService.</li>
+ * <li>The number of concurrent requests to a single host (per cloud storage endpoint).</li>
+ * <li>The number of items in flight. Submitting blocks the calling thread once this many items
+ * are being encoded, transferred or decoded (backpressure), so no more than this many images are
+ * held in memory by the batch at once.</li>
+ * </ul>
+ * Every item produces its own {@link BatchResult}, so a single failure does not fail the batch.
+ */
+public class CloudImageBatch {
+    private static final String TAG = "CloudImageBatch";
+
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final int maxPerHost;
+    private final Semaphore inFlight;
+    private final ConcurrentHashMap<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+
+
+    /**
+     * Creates a batch with its own fixed size thread pool.
+     *
+     * @param threads     The number of threads transferring in parallel.
+     * @param maxPerHost  The maximum concurrent requests to a single host.
+     * @param maxInFlight The maximum number of items being processed at once.
+     */
+    public CloudImageBatch(int threads, int maxPerHost, int maxInFlight) {
+        this(newExecutor(threads), true, maxPerHost, maxInFlight);
+    }
+
+    /**
+     * Creates a batch running on the given ExecutorService, which is not shut down by
+     * {@link #shutdown()}.
+     *
+     * @param executor
+     * @param maxPerHost  The maximum concurrent requests to a single host.
+     * @param maxInFlight The maximum number of items being processed at once.
+     */
+    public CloudImageBatch(ExecutorService executor, int maxPerHost, int maxInFlight) {
+        this(executor, false, maxPerHost, maxInFlight);
+    }
+
+    private CloudImageBatch(ExecutorService executor, boolean ownsExecutor, int maxPerHost, int maxInFlight) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Given ExecutorService was null! Error!");
+        }
+
+        if (maxPerHost < 1) {
+            throw new IllegalArgumentException("Given maxPerHost must be positive! Error!");
+        }
+
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("Given maxInFlight must be positive! Error!");
+        }
+
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.maxPerHost = maxPerHost;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Uploads all given images (keyed by their full path) in the given format, and waits for all
+     * of them to finish. The results are in the iteration order of the given Map.
+     *
+     * @param googleStorage
+     * @param images
+     * @param format
+     *
+     * @return
+     * @throws InterruptedException
+     */
+    public List<BatchResult<Boolean>> uploadAll(final GoogleStorage googleStorage, Map<String, Bitmap> images, final MediaManipulation.SupportedImageFormats format) throws InterruptedException {
+        if (googleStorage == null) {
+            throw new IllegalArgumentException("Given GoogleStorage was null! Error!");
+        }
+
+        if (images == null) {
+            throw new IllegalArgumentException("Given images was null! Error!");
+        }
+
+        if (format == null) {
+            throw new IllegalArgumentException("Given format was null! Error!");
+        }
+
+
+        List<String> paths = new ArrayList<>(images.size());
+        List<Future<Boolean>> futures = new ArrayList<>(images.size());
+
+        for (final Map.Entry<String, Bitmap> image : images.entrySet()) {
+            paths.add(image.getKey());
+            futures.add(submit(googleStorage, new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return CloudImageCRUD.insertCloudImage(googleStorage, image.getKey(), image.getValue(), format);
+                }
+            }));
+        }
+
+        return collect(paths, futures);
+    }
+
+    /**
+     * Uploads all given (already encoded) files, keyed by their full path, with the given content
+     * type, and waits for all of them to finish. The results are in the iteration order of the
+     * given Map. Each file is uploaded like
+     * {@link CloudObjectCRUD#insertCloudObject(GoogleStorage, String, File, String)}.
+     *
+     * @param googleStorage
+     * @param files
+     * @param contentType
+     *
+     * @return
+     * @throws InterruptedException
+     */
+    public List<BatchResult<Boolean>> uploadAllFiles(final GoogleStorage googleStorage, Map<String, File> files, final String contentType) throws InterruptedException {
+        if (googleStorage == null) {
+            throw new IllegalArgumentException("Given GoogleStorage was null! Error!");
+        }
+
+        if (files == null) {
+            throw new IllegalArgumentException("Given files was null! Error!");
+        }
+
+        if (contentType == null || contentType.length() < 1) {
+            throw new IllegalArgumentException("Given contentType was null or empty! Error!");
+        }
+
+
+        List<String> paths = new ArrayList<>(files.size());
+        List<Future<Boolean>> futures = new ArrayList<>(files.size());
+
+        for (final Map.Entry<String, File> file : files.entrySet()) {
+            paths.add(file.getKey());
+            futures.add(submit(googleStorage, new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    CloudObjectCRUD.insertCloudObject(googleStorage, file.getKey(), file.getValue(), contentType);
+
+                    return true;
+                }
+            }));
+        }
+
+        return collect(paths, futures);
+    }
+
+    /**
+     * Reads all given images and waits for all of them to finish. The results are in the
+     * iteration order of the given Collection. An image that does not exist has a successful
+     * result with a null value. Any other failure, like a timeout, an error response or an image
+     * that can not be decoded, is the exception of the result of that image.
+     * <p/>
+     * All decoded images are held until the batch finishes. For large batches use
+     * {@link #readAll(GoogleStorage, Collection, BatchListener)}.
+     *
+     * @param googleStorage
+     * @param imageFullPaths
+     *
+     * @return
+     * @throws InterruptedException
+     */
+    public List<BatchResult<Bitmap>> readAll(GoogleStorage googleStorage, Collection<String> imageFullPaths) throws InterruptedException {
+        validateRead(googleStorage, imageFullPaths);
+
+        List<String> paths = new ArrayList<>(imageFullPaths.size());
+        List<Future<Bitmap>> futures = new ArrayList<>(imageFullPaths.size());
+
+        for (String imageFullPath : imageFullPaths) {
+            paths.add(imageFullPath);
+            futures.add(submit(googleStorage, readTask(googleStorage, imageFullPath)));
+        }
+
+        return collect(paths, futures);
+    }
+
+    /**
+     * Reads all given images and hands every result to the given listener as soon as it is
+     * done, on the thread that read it. An item stays in flight until the listener returns, so
+     * at most maxInFlight decoded images are alive at once (unless the listener keeps them).
+     * <p/>
+     * Returns once all items have been handed to the listener.
+     *
+     * @param googleStorage
+     * @param imageFullPaths
+     * @param listener
+     *
+     * @throws InterruptedException
+     */
+    public void readAll(GoogleStorage googleStorage, Collection<String> imageFullPaths, final BatchListener<Bitmap> listener) throws InterruptedException {
+        validateRead(googleStorage, imageFullPaths);
+
+        if (listener == null) {
+            throw new IllegalArgumentException("Given BatchListener was null! Error!");
+        }
+
+
+        List<Future<Bitmap>> futures = new ArrayList<>(imageFullPaths.size());
+
+        for (final String imageFullPath : imageFullPaths) {
+            final Callable<Bitmap> read = readTask(googleStorage, imageFullPath);
+
+            futures.add(submit(googleStorage, new Callable<Bitmap>() {
+                @Override
+                public Bitmap call() throws Exception {
+                    BatchResult<Bitmap> result;
+                    try {
+                        result = new BatchResult<>(imageFullPath, read.call(), null);
+                    }
+                    catch ( Exception e ) {
+                        result = new BatchResult<>(imageFullPath, null, e);
+                    }
+
+                    listener.onResult(result);
+
+                    return null;
+                }
+            }));
+        }
+
+        for (Future<Bitmap> future : futures) {
+            try {
+                future.get();
+            }
+            catch ( ExecutionException e ) {
+                Log.e(TAG, "BatchListener failed: " + e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Shuts down the thread pool, if it was created by this batch.
+     */
+    public void shutdown() {
+        if (ownsExecutor) {
+            executor.shutdown();
+        }
+    }
+
+
+    /**
+     * Submits the given task once an in flight permit is available, blocking the caller until
+     * then. The task holds a permit for the host of the given GoogleStorage while it runs.
+     */
+    private <T> Future<T> submit(GoogleStorage googleStorage, final Callable<T> task) throws InterruptedException {
+        final Semaphore hostPermit = hostPermit(googleStorage);
+
+        inFlight.acquire();
+
+        try {
+            return executor.submit(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    try {
+                        hostPermit.acquire();
+                        try {
+                            return task.call();
+                        }
+                        finally {
+                            hostPermit.release();
+                        }
+                    }
+                    finally {
+                        inFlight.release();
+                    }
+                }
+            });
+        }
+        catch ( RuntimeException e ) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    private Semaphore hostPermit(GoogleStorage googleStorage) {
+        String host = new GenericUrl(googleStorage.getStorage().getRootUrl()).getHost();
+
+        Semaphore permit = hostPermits.get(host);
+        if (permit == null) {
+            Semaphore newPermit = new Semaphore(maxPerHost);
+            permit = hostPermits.putIfAbsent(host, newPermit);
+            if (permit == null) {
+                permit = newPermit;
+            }
+        }
+
+        return permit;
+    }
+
+    private static Callable<Bitmap> readTask(final GoogleStorage googleStorage, final String imageFullPath) {
+        return new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() throws Exception {
+                return CloudImageCRUD.decodeCloudImage(googleStorage, imageFullPath, null, null);
+            }
+        };
+    }
+
+    private static <T> List<BatchResult<T>> collect(List<String> paths, List<Future<T>> futures) throws InterruptedException {
+        List<BatchResult<T>> results = new ArrayList<>(futures.size());
+
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                results.add(new BatchResult<>(paths.get(i), futures.get(i).get(), null));
+            }
+            catch ( ExecutionException e ) {
+                Exception cause = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                Log.w(TAG, "Batch item " + paths.get(i) + " failed: " + cause.getMessage());
+                results.add(new BatchResult<T>(paths.get(i), null, cause));
+            }
+        }
+
+        return results;
+    }
+
+    private static void validateRead(GoogleStorage googleStorage, Collection<String> imageFullPaths) {
+        if (googleStorage == null) {
+            throw new IllegalArgumentException("Given GoogleStorage was null! Error!");
+        }
+
+        if (imageFullPaths == null) {
+            throw new IllegalArgumentException("Given imageFullPaths was null! Error!");
+        }
+    }
+
+    private static ExecutorService newExecutor(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Given threads must be positive! Error!");
+        }
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+
+        return executor;
+    }
+
+
+    /**
+     * Receives the result of every item of a batch as soon as it is done.
+     *
+     * @param <T>
+     */
+    public interface BatchListener<T> {
+        void onResult(BatchResult<T> result);
+    }
+}
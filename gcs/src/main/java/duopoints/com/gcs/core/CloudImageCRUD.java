@@ -2,29 +2,70 @@ package duopoints.com.gcs.core;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.net.Uri;
-import android.provider.MediaStore;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
 import android.util.Log;
 
-import com.google.api.client.http.InputStreamContent;
-import com.google.api.services.storage.Storage;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.FileContent;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.storage.StorageRequest;
 import com.google.api.services.storage.model.StorageObject;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
 
+import duopoints.com.gcs.utils.BitmapStreamContent;
+import duopoints.com.gcs.utils.BufferPool;
+import duopoints.com.gcs.utils.CancellationToken;
+import duopoints.com.gcs.utils.Crc32c;
+import duopoints.com.gcs.utils.EncodeOptions;
+import duopoints.com.gcs.utils.GcsLog;
 import duopoints.com.gcs.utils.MediaManipulation;
+import duopoints.com.gcs.utils.TransferChecksums;
+import duopoints.com.gcs.utils.TransferMeter;
 
 public class CloudImageCRUD {
     private static final String TAG = "CloudImageCRUD";
+
+    /**
+     * The maximum number of requests the cloud storage accepts in a single batch request.
+     */
+    public static final int MAX_BATCH_SIZE = 100;
+
+    /**
+     * The fields mask of {@link #statCloudImage(GoogleStorage, String)} and
+     * {@link #getCloudImagesMetadata(GoogleStorage, Collection)}. Only these fields are sent by
+     * the cloud storage and parsed, instead of the full object resource with its ACLs.
+     */
+    public static final String STAT_FIELDS = CloudObjectCRUD.STAT_FIELDS;
+
+    private static final String RESUMABLE_UPLOAD_DIR = "gcs-uploads";
+
+    private static final BufferPool DECODE_BUFFER_POOL = new BufferPool(16 * 1024, 4);
+
+    /**
+     * How much of the start of an image is kept to re-read after decoding its bounds.
+     */
+    private static final int HEADER_MARK_LIMIT = 64 * 1024;
     
     /**
      * Attempts to insert the image in the given Bitmap into the given GoogleStorage, at the given
      * imageFullPath with the given format.
      * <p>
+     * The image is streamed to the cloud storage with a buffer of
+     * {@link BitmapStreamContent#DEFAULT_CHUNK_SIZE} bytes.
+     * See {@link #insertCloudImage(GoogleStorage, String, Bitmap, MediaManipulation.SupportedImageFormats, int)}.
+     * <p>
      * All parameters are mandatory.
      * <p/>
      * NOTE: See full path explanation:
@@ -39,6 +80,33 @@ public class CloudImageCRUD {
      * @throws IOException
      */
     public static boolean insertCloudImage(GoogleStorage googleStorage, String imageFullPath, Bitmap image, MediaManipulation.SupportedImageFormats format) throws IOException {
+        return insertCloudImage(googleStorage, imageFullPath, image, format, BitmapStreamContent.DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Attempts to insert the image in the given Bitmap into the given GoogleStorage, at the given
+     * imageFullPath with the given format.
+     * <p>
+     * The Bitmap is compressed into a temporary file, so no full copy of the encoded image is
+     * ever held in memory. The extra memory used by the upload is bounded by the given
+     * chunkSize. The checksums of the encoded image are sent with it, so the cloud storage
+     * rejects an upload whose bytes differ.
+     * <p>
+     * All parameters are mandatory.
+     * <p/>
+     * NOTE: See full path explanation:
+     * https://github.com/Mithrandir21/GoogleCloudStorage#object-full-path
+     *
+     * @param googleStorage
+     * @param imageFullPath
+     * @param image
+     * @param format
+     * @param chunkSize     The number of bytes buffered between the encoder and the file.
+     *
+     * @return
+     * @throws IOException
+     */
+    public static boolean insertCloudImage(GoogleStorage googleStorage, String imageFullPath, Bitmap image, MediaManipulation.SupportedImageFormats format, int chunkSize) throws IOException {
         if (googleStorage == null) {
             throw new IllegalArgumentException("Given GoogleStorage was null!");
         }
@@ -55,32 +123,212 @@ public class CloudImageCRUD {
             throw new IllegalArgumentException("Given format was null!");
         }
 
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Given chunkSize must be positive!");
+        }
+
+
+        executeInsert(MetricsListener.Operation.INSERT, googleStorage, imageFullPath, image, EncodeOptions.of(format), chunkSize, null, null, null);
+
+        return true;
+    }
+
+    /**
+     * Attempts to insert the image in the given Bitmap into the given GoogleStorage, at the given
+     * imageFullPath, encoded with the given EncodeOptions (quality, maximum size, lossless WEBP,
+     * target size).
+     * <p>
+     * The image is streamed to the cloud storage like
+     * {@link #insertCloudImage(GoogleStorage, String, Bitmap, MediaManipulation.SupportedImageFormats, int)}.
+     * <p>
+     * All parameters are mandatory.
+     * <p/>
+     * NOTE: See full path explanation:
+     * https://github.com/Mithrandir21/GoogleCloudStorage#object-full-path
+     *
+     * @param googleStorage
+     * @param imageFullPath
+     * @param image
+     * @param options
+     *
+     * @return
+     * @throws IOException
+     */
+    public static boolean insertCloudImage(GoogleStorage googleStorage, String imageFullPath, Bitmap image, EncodeOptions options) throws IOException {
+        return insertCloudImage(googleStorage, imageFullPath, image, options, null);
+    }
+
+    /**
+     * See {@link #insertCloudImage(GoogleStorage, String, Bitmap, EncodeOptions)}. Cancelling the
+     * given CancellationToken aborts the upload.
+     */
+    static boolean insertCloudImage(GoogleStorage googleStorage, String imageFullPath, Bitmap image, EncodeOptions options, CancellationToken cancellationToken) throws IOException {
+        if (googleStorage == null) {
+            throw new IllegalArgumentException("Given GoogleStorage was null! Error!");
+        }
+
+        if ((imageFullPath == null || imageFullPath.length() < 1)) {
+            throw new IllegalArgumentException("Given imageFullPath was null or empty! Error!");
+        }
+
+        if (image == null) {
+            throw new IllegalArgumentException("Given image was null! Error!");
+        }
+
+        if (options == null) {
+            throw new IllegalArgumentException("Given EncodeOptions was null! Error!");
+        }
+
+
+        executeInsert(MetricsListener.Operation.INSERT, googleStorage, imageFullPath, image, options, BitmapStreamContent.DEFAULT_CHUNK_SIZE, null, null, cancellationToken);
+
+        return true;
+    }
+
+    /**
+     * Attempts to insert an already encoded image, like a photo taken by the camera, into the
+     * given GoogleStorage at the given imageFullPath. The File is sent as it is, without decoding
+     * it into a Bitmap and encoding it again, so it keeps its quality and its EXIF data.
+     * <p>
+     * See {@link CloudObjectCRUD#insertCloudObject(GoogleStorage, String, File, String)}.
+     * <p>
+     * All parameters are mandatory.
+     * <p/>
+     * NOTE: See full path explanation:
+     * https://github.com/Mithrandir21/GoogleCloudStorage#object-full-path
+     *
+     * @param googleStorage
+     * @param imageFullPath
+     * @param encodedImage
+     * @param format        The format the File is encoded in.
+     *
+     * @return
+     * @throws IOException
+     */
+    public static boolean insertCloudImage(GoogleStorage googleStorage, String imageFullPath, File encodedImage, MediaManipulation.SupportedImageFormats format) throws IOException {
+        if (format == null) {
+            throw new IllegalArgumentException("Given format was null! Error!");
+        }
+
+        CloudObjectCRUD.insertCloudObject(googleStorage, imageFullPath, encodedImage, EncodeOptions.of(format).getContentType());
+
+        return true;
+    }
+
+    /**
+     * Attempts to insert the image in the given Bitmap into the given GoogleStorage, at the given
+     * imageFullPath with the given format, as a resumable upload sent in chunks of the given size.
+     * <p>
+     * The encoded image is staged in the application cache directory, together with the upload
+     * session state. If the upload is interrupted (IOException, process death, etc.), calling this
+     * function again with the same image and imageFullPath resumes the upload from the last chunk
+     * acknowledged by the cloud storage, instead of starting over. A different image for the same
+     * imageFullPath starts a new upload.
+     * <p>
+     * All parameters are mandatory.
+     * <p/>
+     * NOTE: See full path explanation:
+     * https://github.com/Mithrandir21/GoogleCloudStorage#object-full-path
+     *
+     * @param context
+     * @param googleStorage
+     * @param imageFullPath
+     * @param image
+     * @param format
+     * @param chunkSize     Must be a multiple of {@link ResumableUpload#MINIMUM_CHUNK_SIZE}.
+     *
+     * @return
+     * @throws IOException
+     */
+    public static boolean insertCloudImageResumable(Context context, GoogleStorage googleStorage, String imageFullPath, Bitmap image, MediaManipulation.SupportedImageFormats format, int chunkSize) throws IOException {
+        if (format == null) {
+            throw new IllegalArgumentException("Given format was null! Error!");
+        }
+
+        return insertCloudImageResumable(context, googleStorage, imageFullPath, image, EncodeOptions.of(format), chunkSize);
+    }
+
+    /**
+     * Attempts to insert the image in the given Bitmap into the given GoogleStorage, at the given
+     * imageFullPath, encoded with the given EncodeOptions, as a resumable upload sent in chunks
+     * of the given size.
+     * <p>
+     * See {@link #insertCloudImageResumable(Context, GoogleStorage, String, Bitmap, MediaManipulation.SupportedImageFormats, int)}.
+     * <p>
+     * All parameters are mandatory.
+     * <p/>
+     * NOTE: See full path explanation:
+     * https://github.com/Mithrandir21/GoogleCloudStorage#object-full-path
+     *
+     * @param context
+     * @param googleStorage
+     * @param imageFullPath
+     * @param image
+     * @param options
+     * @param chunkSize     Must be a multiple of {@link ResumableUpload#MINIMUM_CHUNK_SIZE}.
+     *
+     * @return
+     * @throws IOException
+     */
+    public static boolean insertCloudImageResumable(Context context, GoogleStorage googleStorage, String imageFullPath, Bitmap image, EncodeOptions options, int chunkSize) throws IOException {
+        if (context == null) {
+            throw new IllegalArgumentException("Given Context was null! Error!");
+        }
+
+        if (googleStorage == null) {
+            throw new IllegalArgumentException("Given GoogleStorage was null! Error!");
+        }
+
+        if ((imageFullPath == null || imageFullPath.length() < 1)) {
+            throw new IllegalArgumentException("Given imageFullPath was null or empty! Error!");
+        }
+
+        if (image == null) {
+            throw new IllegalArgumentException("Given image was null! Error!");
+        }
+
+        if (options == null) {
+            throw new IllegalArgumentException("Given EncodeOptions was null! Error!");
+        }
 
-        Log.d(TAG, "Attempting upload " + imageFullPath);
-        Bitmap.CompressFormat compressFormat = MediaManipulation.getCompressFormat(format);
 
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        image.compress(compressFormat, 100, stream);
-        byte[] byteArray = stream.toByteArray();
+        File uploadDir = new File(context.getCacheDir(), RESUMABLE_UPLOAD_DIR);
+        if (!uploadDir.isDirectory() && !uploadDir.mkdirs()) {
+            throw new IOException("Could not create upload directory " + uploadDir + "! Error!");
+        }
 
-        ByteArrayInputStream bs = new ByteArrayInputStream(byteArray);
-        Log.d(TAG, "Created InputStream for Bitmap.");
+        String uploadKey = MediaManipulation.hashName(googleStorage.getBucketName() + "/" + imageFullPath);
+        File stagedFile = new File(uploadDir, uploadKey + ".upload");
+        File stateFile = new File(uploadDir, uploadKey + ".state");
 
-        InputStreamContent mediaContent = new InputStreamContent("image/" + format, bs);
-        Log.d(TAG, "Created InputStreamContent for upload.");
+        if (GcsLog.isDebug()) {
+            Log.d(TAG, "Attempting resumable upload " + imageFullPath);
+        }
+        MetricsListener metrics = GoogleStorage.getMetricsListener();
+        long start = metrics != null ? System.nanoTime() : 0;
+        boolean success = false;
 
-        Storage storage = googleStorage.getStorage();
+        TransferChecksums checksums = stageImage(image, options, stagedFile, stateFile);
+        long encodeNanos = metrics != null ? System.nanoTime() - start : 0;
 
-        StorageObject storageObject = new StorageObject();
-        storageObject.setBucket(googleStorage.getBucketName());
-        storageObject.setName(imageFullPath);
-        Log.d(TAG, "Create StorageObject to be inserted.");
+        ResumableUpload upload = new ResumableUpload(googleStorage.getStorage(),
+                googleStorage.getBucketName(), imageFullPath, stagedFile, options.getContentType(), stateFile)
+                .setChunkSize(chunkSize)
+                .setChecksums(checksums.getCrc32c(), checksums.getMd5Hash());
 
-        Storage.Objects.Insert insert = storage.objects().insert(googleStorage.getBucketName(), storageObject, mediaContent);
-        Log.d(TAG, "Create insert request with StorageObject and InputStreamContent.");
+        try {
+            upload.upload();
+            success = true;
+        }
+        finally {
+            if (metrics != null) {
+                reportUpload(metrics, MetricsListener.Operation.INSERT, start, encodeNanos, stagedFile.length(), success);
+            }
+        }
+        GcsLog.d(TAG, "Executed resumable upload.");
 
-        insert.execute();
-        Log.d(TAG, "Executed upload.");
+        stagedFile.delete();
+        GcsLog.d(TAG, "Deleted staged upload file.");
 
         return true;
     }
@@ -90,6 +338,8 @@ public class CloudImageCRUD {
      * including filename.
      * The image will be attempted read into a Bitmap object and then the Bitmap will be returned.
      * <p/>
+     * See {@link #readCloudImage(GoogleStorage, String, BitmapFactory.Options)}.
+     * <p/>
      * NOTE: See full path explanation:
      * https://github.com/Mithrandir21/GoogleCloudStorage#object-full-path
      *
@@ -105,6 +355,42 @@ public class CloudImageCRUD {
             throw new IllegalArgumentException("Given Context was null! Error!");
         }
 
+        return readCloudImage(googleStorage, imageFullPath, null);
+    }
+
+    /**
+     * Attempt to read an Image from the given GoogleStorage reference with the given full path,
+     * including filename.
+     * <p/>
+     * The downloaded bytes are decoded straight from the network stream into a Bitmap, without
+     * going through the file system. Unless the given options already have an
+     * {@link BitmapFactory.Options#inTempStorage}, a pooled decode buffer is used.
+     * <p/>
+     * To decode into an existing Bitmap, set {@link BitmapFactory.Options#inBitmap} (and
+     * {@link BitmapFactory.Options#inMutable}) on the given options. The existing Bitmap must be
+     * able to hold the decoded image, see {@link BitmapFactory.Options#inBitmap}.
+     * <p/>
+     * Returns null if the image does not exist or could not be decoded.
+     * <p/>
+     * NOTE: See full path explanation:
+     * https://github.com/Mithrandir21/GoogleCloudStorage#object-full-path
+     *
+     * @param googleStorage
+     * @param imageFullPath
+     * @param options       Optional decode options, may be null.
+     *
+     * @return
+     * @throws IOException
+     */
+    public static Bitmap readCloudImage(GoogleStorage googleStorage, String imageFullPath, BitmapFactory.Options options) throws IOException {
+        return readCloudImage(googleStorage, imageFullPath, options, null);
+    }
+
+    /**
+     * See {@link #readCloudImage(GoogleStorage, String, BitmapFactory.Options)}. Cancelling the
+     * given CancellationToken aborts the download.
+     */
+    static Bitmap readCloudImage(GoogleStorage googleStorage, String imageFullPath, BitmapFactory.Options options, CancellationToken cancellationToken) throws IOException {
         if (googleStorage == null) {
             throw new IllegalArgumentException("Given GoogleStorage was null! Error!");
         }
@@ -114,52 +400,185 @@ public class CloudImageCRUD {
         }
 
 
-        // .tmp extension automatically provided.
-        File tempFile = File.createTempFile("downloaded", null, null);
-        Log.d(TAG, "Created temporary file for download:" + tempFile.getName());
+        try {
+            return decodeCloudImage(googleStorage, imageFullPath, options, cancellationToken);
+        }
+        catch ( Exception e ) {
+            /**
+             * This can happen for a number of reasons, like a network failure or attempting to
+             * read an file that is not an image.
+             */
+            Log.e(TAG, "Error:" + e.getMessage(), e);
 
-        Bitmap image = null;
+            return null;
+        }
+    }
 
-        try {
-            Storage storage = googleStorage.getStorage();
+    /**
+     * Like {@link #readCloudImage(GoogleStorage, String, BitmapFactory.Options)}, but only
+     * returns null if the image does not exist. Any other failure, including an image that can
+     * not be decoded, is thrown.
+     *
+     * @param googleStorage
+     * @param imageFullPath
+     * @param options           Optional decode options, may be null.
+     * @param cancellationToken Optional, may be null.
+     *
+     * @return
+     * @throws IOException
+     */
+    static Bitmap decodeCloudImage(GoogleStorage googleStorage, String imageFullPath, BitmapFactory.Options options, CancellationToken cancellationToken) throws IOException {
+        BitmapFactory.Options decodeOptions = options != null ? options : new BitmapFactory.Options();
+
+        byte[] pooledBuffer = null;
+        if (decodeOptions.inTempStorage == null) {
+            pooledBuffer = DECODE_BUFFER_POOL.acquire();
+            decodeOptions.inTempStorage = pooledBuffer;
+        }
+
+        MetricsListener metrics = GoogleStorage.getMetricsListener();
+        TransferMeter meter = metrics != null ? new TransferMeter() : null;
+        long start = metrics != null ? System.nanoTime() : 0;
 
-            Storage.Objects.Get get = storage.objects().get(googleStorage.getBucketName(), imageFullPath);
-            Log.d(TAG, "Retrieved File meta data from Cloud");
+        Bitmap image = null;
+        boolean success = false;
 
-            FileOutputStream streamOutput = new FileOutputStream(tempFile);
-            Log.d(TAG, "Created file output stream for actual data.");
+        try {
+            InputStream stream = openCloudImage(googleStorage, imageFullPath, cancellationToken, meter);
+            GcsLog.d(TAG, "Opened stream for actual data.");
 
             try {
-                get.executeMediaAndDownloadTo(streamOutput);
-                Log.d(TAG, "Finished reading data.");
+                image = BitmapFactory.decodeStream(stream, null, decodeOptions);
+                GcsLog.d(TAG, "Decoded bitmap from stream.");
             }
             finally {
-                streamOutput.close();
-                Log.d(TAG, "Closing output stream.");
+                stream.close();
+                GcsLog.d(TAG, "Closing input stream.");
+            }
+
+            if (image == null) {
+                throw new IOException("Cloud Object (" + imageFullPath + ") could not be decoded! Error!");
             }
 
-            Uri uri = Uri.fromFile(tempFile);
-            Log.d(TAG, "Created URI for bitmap.");
+            success = true;
+            return image;
+        }
+        catch ( HttpResponseException e ) {
+            if (CloudObjectCRUD.isNotFound(e)) {
+                Log.w(TAG, "Cloud Object (" + imageFullPath + ") not found.");
+                return null;
+            }
+
+            throw e;
+        }
+        finally {
+            // Decoded from content that failed its checksums when the stream was closed. A Bitmap
+            // decoded into the given inBitmap is the caller's own, and is left to the caller.
+            if (!success && image != null && image != decodeOptions.inBitmap) {
+                image.recycle();
+            }
+
+            if (pooledBuffer != null) {
+                decodeOptions.inTempStorage = null;
+                DECODE_BUFFER_POOL.release(pooledBuffer);
+            }
+
+            if (metrics != null) {
+                reportRead(metrics, start, meter, success);
+            }
+        }
+    }
+
+    /**
+     * Attempt to read an Image from the given GoogleStorage reference with the given full path,
+     * decoded at roughly the given target size instead of at full resolution.
+     * <p/>
+     * The image header is decoded first (bounds only) to find the largest power of 2
+     * {@link BitmapFactory.Options#inSampleSize} that keeps the image at least as large as the
+     * target size, so the memory allocated is close to the target size and not to the size of
+     * the full image.
+     * <p/>
+     * If a crop Rect is given (in full resolution coordinates), only that region is decoded with
+     * {@link BitmapRegionDecoder}, sampled to the target size.
+     * <p/>
+     * Returns null if the image does not exist or could not be decoded.
+     * <p/>
+     * NOTE: See full path explanation:
+     * https://github.com/Mithrandir21/GoogleCloudStorage#object-full-path
+     *
+     * @param googleStorage
+     * @param imageFullPath
+     * @param targetWidth   The wanted width, or 0 to only constrain the height.
+     * @param targetHeight  The wanted height, or 0 to only constrain the width.
+     * @param config        Optional Bitmap.Config, may be null for the decoder default.
+     * @param crop          Optional region of the image to decode, may be null.
+     *
+     * @return
+     * @throws IOException
+     */
+    public static Bitmap readCloudImage(GoogleStorage googleStorage, String imageFullPath, int targetWidth, int targetHeight, Bitmap.Config config, Rect crop) throws IOException {
+        return readCloudImage(googleStorage, imageFullPath, targetWidth, targetHeight, config, crop, null);
+    }
+
+    /**
+     * See {@link #readCloudImage(GoogleStorage, String, int, int, Bitmap.Config, Rect)}.
+     * Cancelling the given CancellationToken aborts the download.
+     */
+    static Bitmap readCloudImage(GoogleStorage googleStorage, String imageFullPath, int targetWidth, int targetHeight, Bitmap.Config config, Rect crop, CancellationToken cancellationToken) throws IOException {
+        if (googleStorage == null) {
+            throw new IllegalArgumentException("Given GoogleStorage was null! Error!");
+        }
+
+        if ((imageFullPath == null || imageFullPath.length() < 1)) {
+            throw new IllegalArgumentException("Given imageFullPath was null or empty! Error!");
+        }
 
+        if (targetWidth < 0 || targetHeight < 0 || (targetWidth == 0 && targetHeight == 0)) {
+            throw new IllegalArgumentException("Given target size was invalid! Error!");
+        }
 
-            image = MediaStore.Images.Media.getBitmap(context.getContentResolver(), uri);
-            Log.d(TAG, "Creating bitmap.");
+        if (crop != null && crop.isEmpty()) {
+            throw new IllegalArgumentException("Given crop Rect was empty! Error!");
+        }
+
+
+        BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+        decodeOptions.inPreferredConfig = config != null ? config : Bitmap.Config.ARGB_8888;
+
+        byte[] pooledBuffer = DECODE_BUFFER_POOL.acquire();
+        decodeOptions.inTempStorage = pooledBuffer;
+
+        MetricsListener metrics = GoogleStorage.getMetricsListener();
+        TransferMeter meter = metrics != null ? new TransferMeter() : null;
+        long start = metrics != null ? System.nanoTime() : 0;
+
+        Bitmap image = null;
+
+        try {
+            if (crop != null) {
+                image = decodeRegion(googleStorage, imageFullPath, targetWidth, targetHeight, crop, decodeOptions, cancellationToken, meter);
+            } else {
+                image = decodeSampled(googleStorage, imageFullPath, targetWidth, targetHeight, decodeOptions, cancellationToken, meter);
+            }
+
+            if (image == null) {
+                Log.w(TAG, "Cloud Object (" + imageFullPath + ") could not be decoded.");
+            }
         }
         catch ( Exception e ) {
-            /**
-             * This can happen for a number of reasons, like attempting to read a file that does
-             * not exist or attempting to read an file that is not an image.
-             */
-            if (e.getMessage().contains("404 Not Found")) {
+            if (CloudObjectCRUD.isNotFound(e)) {
                 Log.w(TAG, "Cloud Object (" + imageFullPath + ") not found.");
             } else {
-                Log.e(TAG, "Error:" + e.getMessage());
-                e.printStackTrace();
+                Log.e(TAG, "Error:" + e.getMessage(), e);
             }
         }
         finally {
-            tempFile.delete();
-            Log.d(TAG, "Deleting the temporary download file.");
+            decodeOptions.inTempStorage = null;
+            DECODE_BUFFER_POOL.release(pooledBuffer);
+        }
+
+        if (metrics != null) {
+            reportRead(metrics, start, meter, image != null);
         }
 
         return image;
@@ -169,8 +588,9 @@ public class CloudImageCRUD {
      * This function attempts to replace an object with the given imageFullPath, size and format
      * belonging to the given user.
      * <p/>
-     * It simply calls the "deleteCloudImage" function in this class and if that is successful,
-     * it calls the "insertCloudImage" function with the new image.
+     * The new image is uploaded with a single insert request, which overwrites the old object in
+     * place. There is no moment where the object does not exist, and a failed upload leaves the
+     * old image untouched. If no object exists at the imageFullPath, it is created.
      * <p/>
      * File name, size and format (hence location) will be maintained.
      * <p/>
@@ -186,6 +606,68 @@ public class CloudImageCRUD {
      * @throws IOException
      */
     public static boolean replaceCloudImage(GoogleStorage googleStorage, String imageFullPath, Bitmap newImage, MediaManipulation.SupportedImageFormats format) throws IOException {
+        replaceCloudImage(googleStorage, imageFullPath, newImage, format, null, null);
+
+        return true;
+    }
+
+    /**
+     * This function attempts to replace an object with the given imageFullPath with the given
+     * image, only if the object currently has the given generation and/or metageneration
+     * (optimistic concurrency).
+     * <p/>
+     * The new image is uploaded with a single insert request carrying the preconditions. If a
+     * precondition does not hold, the cloud storage rejects the upload with an
+     * {@link HttpResponseException} with status code 412 (Precondition Failed) and the current
+     * image is left untouched. A generation of 0 requires that no object exists yet.
+     * <p/>
+     * Returns the generation of the new object, which can be used as the precondition of the
+     * next replace.
+     * <p/>
+     * NOTE: See full path explanation:
+     * https://github.com/Mithrandir21/GoogleCloudStorage#object-full-path
+     *
+     * @param googleStorage
+     * @param imageFullPath
+     * @param newImage
+     * @param format
+     * @param ifGenerationMatch     Optional, may be null.
+     * @param ifMetagenerationMatch Optional, may be null.
+     *
+     * @return
+     * @throws IOException
+     */
+    public static long replaceCloudImage(GoogleStorage googleStorage, String imageFullPath, Bitmap newImage, MediaManipulation.SupportedImageFormats format, Long ifGenerationMatch, Long ifMetagenerationMatch) throws IOException {
+        if (format == null) {
+            throw new IllegalArgumentException("Given SupportedImageFormats was null or empty! Error!");
+        }
+
+        return replaceCloudImage(googleStorage, imageFullPath, newImage, EncodeOptions.of(format), ifGenerationMatch, ifMetagenerationMatch, null);
+    }
+
+    /**
+     * See {@link #replaceCloudImage(GoogleStorage, String, Bitmap, MediaManipulation.SupportedImageFormats, Long, Long)}.
+     * The new image is encoded with the given EncodeOptions.
+     *
+     * @param googleStorage
+     * @param imageFullPath
+     * @param newImage
+     * @param options
+     * @param ifGenerationMatch     Optional, may be null.
+     * @param ifMetagenerationMatch Optional, may be null.
+     *
+     * @return
+     * @throws IOException
+     */
+    public static long replaceCloudImage(GoogleStorage googleStorage, String imageFullPath, Bitmap newImage, EncodeOptions options, Long ifGenerationMatch, Long ifMetagenerationMatch) throws IOException {
+        return replaceCloudImage(googleStorage, imageFullPath, newImage, options, ifGenerationMatch, ifMetagenerationMatch, null);
+    }
+
+    /**
+     * See {@link #replaceCloudImage(GoogleStorage, String, Bitmap, EncodeOptions, Long, Long)}.
+     * Cancelling the given CancellationToken aborts the upload.
+     */
+    static long replaceCloudImage(GoogleStorage googleStorage, String imageFullPath, Bitmap newImage, EncodeOptions options, Long ifGenerationMatch, Long ifMetagenerationMatch, CancellationToken cancellationToken) throws IOException {
         if (googleStorage == null) {
             throw new IllegalArgumentException("Given GoogleStorage was null! Error!");
         }
@@ -198,18 +680,37 @@ public class CloudImageCRUD {
             throw new IllegalArgumentException("Given Bitmap was null or empty! Error!");
         }
 
-        if (format == null) {
-            throw new IllegalArgumentException("Given SupportedImageFormats was null or empty! Error!");
+        if (options == null) {
+            throw new IllegalArgumentException("Given EncodeOptions was null! Error!");
         }
 
 
-        // 1. First deletes the old object
-        if (deleteCloudImage(googleStorage, imageFullPath)) {
-            // 2. Then inserts new object with same name.
-            return insertCloudImage(googleStorage, imageFullPath, newImage, format);
+        StorageObject replaced = executeInsert(MetricsListener.Operation.REPLACE, googleStorage, imageFullPath, newImage, options,
+                BitmapStreamContent.DEFAULT_CHUNK_SIZE, ifGenerationMatch, ifMetagenerationMatch, cancellationToken);
+        if (GcsLog.isDebug()) {
+            Log.d(TAG, "Replaced " + imageFullPath + " with generation " + replaced.getGeneration());
         }
 
-        return false;
+        return replaced.getGeneration();
+    }
+
+    /**
+     * Returns the metadata of the image at the given imageFullPath without downloading the
+     * image, or null if it does not exist. Only the fields in {@link #STAT_FIELDS} are set.
+     * <p>
+     * All parameters are mandatory.
+     * <p/>
+     * NOTE: See full path explanation:
+     * https://github.com/Mithrandir21/GoogleCloudStorage#object-full-path
+     *
+     * @param googleStorage
+     * @param imageFullPath
+     *
+     * @return
+     * @throws IOException
+     */
+    public static StorageObject statCloudImage(GoogleStorage googleStorage, String imageFullPath) throws IOException {
+        return CloudObjectCRUD.statCloudObject(googleStorage, imageFullPath);
     }
 
     /**
@@ -227,23 +728,439 @@ public class CloudImageCRUD {
      * @throws IOException
      */
     public static boolean deleteCloudImage(GoogleStorage googleStorage, String imageFullPath) throws IOException {
+        return CloudObjectCRUD.deleteCloudObject(googleStorage, imageFullPath);
+    }
+
+    /**
+     * Attempts to delete all images at the given imageFullPaths in the given GoogleStorage.
+     * <p>
+     * See {@link #deleteCloudImages(GoogleStorage, Collection, BulkResult.Callback)}.
+     *
+     * @param googleStorage
+     * @param imageFullPaths
+     *
+     * @return
+     * @throws IOException
+     */
+    public static BulkResult<Void> deleteCloudImages(GoogleStorage googleStorage, Collection<String> imageFullPaths) throws IOException {
+        return deleteCloudImages(googleStorage, imageFullPaths, null);
+    }
+
+    /**
+     * Attempts to delete all images at the given imageFullPaths in the given GoogleStorage.
+     * <p>
+     * The deletions are sent as batch requests of up to {@link #MAX_BATCH_SIZE} deletions each,
+     * instead of one request per image. The deletion of a single image can fail (for example
+     * with 404 if it does not exist) without failing the others; every outcome is reported to
+     * the optional callback and collected in the returned BulkResult.
+     * <p>
+     * An IOException means a whole batch could not be sent. Deletions of earlier batches have
+     * then already been reported to the callback.
+     * <p/>
+     * NOTE: See full path explanation:
+     * https://github.com/Mithrandir21/GoogleCloudStorage#object-full-path
+     *
+     * @param googleStorage
+     * @param imageFullPaths
+     * @param callback       Optional, may be null.
+     *
+     * @return
+     * @throws IOException
+     */
+    public static BulkResult<Void> deleteCloudImages(final GoogleStorage googleStorage, Collection<String> imageFullPaths, BulkResult.Callback<Void> callback) throws IOException {
+        return executeBulk(googleStorage, imageFullPaths, callback, new BulkRequestFactory<Void>() {
+            @Override
+            public StorageRequest<Void> create(String imageFullPath) throws IOException {
+                return googleStorage.getStorage().objects().delete(googleStorage.getBucketName(), imageFullPath);
+            }
+        });
+    }
+
+    /**
+     * Attempts to get the metadata of all images at the given imageFullPaths in the given
+     * GoogleStorage.
+     * <p>
+     * See {@link #getCloudImagesMetadata(GoogleStorage, Collection, BulkResult.Callback)}.
+     *
+     * @param googleStorage
+     * @param imageFullPaths
+     *
+     * @return
+     * @throws IOException
+     */
+    public static BulkResult<StorageObject> getCloudImagesMetadata(GoogleStorage googleStorage, Collection<String> imageFullPaths) throws IOException {
+        return getCloudImagesMetadata(googleStorage, imageFullPaths, null);
+    }
+
+    /**
+     * Attempts to get the metadata of all images at the given imageFullPaths in the given
+     * GoogleStorage.
+     * <p>
+     * The requests are sent as batch requests of up to {@link #MAX_BATCH_SIZE} requests each,
+     * with the same partial failure reporting as
+     * {@link #deleteCloudImages(GoogleStorage, Collection, BulkResult.Callback)}.
+     * <p/>
+     * NOTE: See full path explanation:
+     * https://github.com/Mithrandir21/GoogleCloudStorage#object-full-path
+     *
+     * @param googleStorage
+     * @param imageFullPaths
+     * @param callback       Optional, may be null.
+     *
+     * @return
+     * @throws IOException
+     */
+    public static BulkResult<StorageObject> getCloudImagesMetadata(final GoogleStorage googleStorage, Collection<String> imageFullPaths, BulkResult.Callback<StorageObject> callback) throws IOException {
+        return executeBulk(googleStorage, imageFullPaths, callback, new BulkRequestFactory<StorageObject>() {
+            @Override
+            public StorageRequest<StorageObject> create(String imageFullPath) throws IOException {
+                return googleStorage.getStorage().objects()
+                        .get(googleStorage.getBucketName(), imageFullPath)
+                        .setFields(STAT_FIELDS);
+            }
+        });
+    }
+
+
+    /**
+     * Compresses the given image into a temporary file and sends it as a single insert request,
+     * with the checksums computed while the file was written and the given optional
+     * preconditions. The cloud storage rejects the upload if the bytes it received do not match
+     * the checksums, so a corrupted upload never replaces an existing image. Returns the
+     * StorageObject created by the cloud storage.
+     * <p/>
+     * The temporary file is created in java.io.tmpdir, which is the application cache directory
+     * on Android, and deleted when the upload is done.
+     *
+     * @param googleStorage
+     * @param imageFullPath
+     * @param image
+     * @param options
+     * @param chunkSize
+     * @param ifGenerationMatch
+     * @param ifMetagenerationMatch
+     * @param cancellationToken     Optional, aborts the upload once cancelled.
+     *
+     * @return
+     * @throws IOException
+     */
+    static StorageObject executeInsert(MetricsListener.Operation operation, GoogleStorage googleStorage, String imageFullPath, Bitmap image, EncodeOptions options, int chunkSize, Long ifGenerationMatch, Long ifMetagenerationMatch, CancellationToken cancellationToken) throws IOException {
+        if (GcsLog.isDebug()) {
+            Log.d(TAG, "Attempting upload " + imageFullPath);
+        }
+
+        MetricsListener metrics = GoogleStorage.getMetricsListener();
+        TransferMeter meter = metrics != null ? new TransferMeter() : null;
+        long start = metrics != null ? System.nanoTime() : 0;
+        long encodeNanos = 0;
+        boolean success = false;
+
+        Bitmap scaled = options.scale(image);
+        File encodedFile = null;
+
+        try {
+            TransferChecksums checksums = new TransferChecksums();
+            BitmapStreamContent imageContent = options.createContent(scaled, chunkSize)
+                    .setCancellationToken(cancellationToken)
+                    .setChecksums(checksums);
+            if (GcsLog.isDebug()) {
+                Log.d(TAG, "Encoding image for upload with " + options + ", quality " + imageContent.getQuality());
+            }
+
+            encodedFile = File.createTempFile("insert", ".upload");
+            OutputStream encodedStream = new FileOutputStream(encodedFile);
+            try {
+                imageContent.writeTo(encodedStream);
+            }
+            finally {
+                encodedStream.close();
+            }
+
+            // Scaling and any search for the quality of a target size are encoding too.
+            if (metrics != null) {
+                encodeNanos = System.nanoTime() - start;
+            }
+
+            StorageObject inserted = CloudObjectCRUD.executeInsert(googleStorage, imageFullPath,
+                    new CloudObjectCRUD.MeteredContent(new FileContent(options.getContentType(), encodedFile), null, meter, cancellationToken),
+                    checksums, ifGenerationMatch, ifMetagenerationMatch);
+            success = true;
+
+            return inserted;
+        }
+        finally {
+            if (encodedFile != null) {
+                encodedFile.delete();
+            }
+
+            if (scaled != image) {
+                scaled.recycle();
+            }
+
+            if (metrics != null) {
+                reportUpload(metrics, operation, start, encodeNanos, meter.getBytes(), success);
+            }
+        }
+    }
+
+    /**
+     * Compresses the given image into the staged upload file, and returns the checksums of the
+     * compressed image, computed while it was written.
+     * If a staged file with the same content already exists, it (and the upload state belonging
+     * to it) is kept so the upload can resume. Otherwise any old upload state is discarded.
+     *
+     * @param image
+     * @param options
+     * @param stagedFile
+     * @param stateFile
+     *
+     * @return
+     * @throws IOException
+     */
+    static TransferChecksums stageImage(Bitmap image, EncodeOptions options, File stagedFile, File stateFile) throws IOException {
+        File encodedFile = new File(stagedFile.getPath() + ".tmp");
+        Bitmap scaled = options.scale(image);
+
+        TransferChecksums checksums = new TransferChecksums();
+        FileOutputStream fileStream = new FileOutputStream(encodedFile);
+        OutputStream encodedStream = checksums.wrap(fileStream);
+        try {
+            options.createContent(scaled, BitmapStreamContent.DEFAULT_CHUNK_SIZE).writeTo(encodedStream);
+            encodedStream.flush();
+            // A staged image must survive a crash, the upload is resumed from it.
+            fileStream.getFD().sync();
+        }
+        finally {
+            encodedStream.close();
+
+            if (scaled != image) {
+                scaled.recycle();
+            }
+        }
+
+        if (stagedFile.isFile() && stagedFile.length() == encodedFile.length()
+                && Crc32c.of(stagedFile, 0, stagedFile.length()).toBase64().equals(checksums.getCrc32c())) {
+            encodedFile.delete();
+            GcsLog.d(TAG, "Image already staged, resuming any existing upload.");
+            return checksums;
+        }
+
+        stateFile.delete();
+        if (!encodedFile.renameTo(stagedFile)) {
+            throw new IOException("Could not stage image to " + stagedFile + "! Error!");
+        }
+        GcsLog.d(TAG, "Staged image for new upload.");
+
+        return checksums;
+    }
+
+    /**
+     * Sends one request per given path, created by the given factory, as batch requests of up
+     * to {@link #MAX_BATCH_SIZE} requests each.
+     *
+     * @param googleStorage
+     * @param objectFullPaths
+     * @param callback
+     * @param factory
+     *
+     * @return
+     * @throws IOException
+     */
+    private static <T> BulkResult<T> executeBulk(GoogleStorage googleStorage, Collection<String> objectFullPaths, final BulkResult.Callback<T> callback, BulkRequestFactory<T> factory) throws IOException {
         if (googleStorage == null) {
             throw new IllegalArgumentException("Given GoogleStorage was null! Error!");
         }
 
-        if ((imageFullPath == null || imageFullPath.length() < 1)) {
-            throw new IllegalArgumentException("Given imageFullPath was null or empty! Error!");
+        if (objectFullPaths == null) {
+            throw new IllegalArgumentException("Given imageFullPaths was null! Error!");
+        }
+
+        // All paths are checked before the first batch runs, so an invalid path never fails a
+        // bulk operation that already deleted part of the objects.
+        for (String objectFullPath : objectFullPaths) {
+            if (objectFullPath == null || objectFullPath.length() < 1) {
+                throw new IllegalArgumentException("Given imageFullPaths contained a null or empty path! Error!");
+            }
         }
 
 
-        // Get the Storage reference from the GoogleStorage
-        Storage storage = googleStorage.getStorage();
+        final BulkResult<T> result = new BulkResult<>();
+        BatchRequest batch = null;
+
+        for (final String objectFullPath : objectFullPaths) {
+            if (batch == null) {
+                batch = googleStorage.getStorage().batch();
+            }
 
-        Log.d(TAG, "Executing deletion of " + imageFullPath);
-        storage.objects().delete(googleStorage.getBucketName(), imageFullPath).execute();
-        Log.d(TAG, "Executed deletion.");
+            factory.create(objectFullPath).queue(batch, new JsonBatchCallback<T>() {
+                @Override
+                public void onSuccess(T value, HttpHeaders responseHeaders) {
+                    result.addSuccess(objectFullPath, value);
+                    if (callback != null) {
+                        callback.onSuccess(objectFullPath, value);
+                    }
+                }
 
-        return true;
+                @Override
+                public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+                    Log.w(TAG, "Batch request for " + objectFullPath + " failed: " + error.getMessage());
+                    result.addFailure(objectFullPath, error);
+                    if (callback != null) {
+                        callback.onFailure(objectFullPath, error);
+                    }
+                }
+            });
+
+            if (batch.size() == MAX_BATCH_SIZE) {
+                if (GcsLog.isDebug()) {
+                    Log.d(TAG, "Executing batch of " + batch.size() + " requests.");
+                }
+                batch.execute();
+                batch = null;
+            }
+        }
+
+        if (batch != null) {
+            if (GcsLog.isDebug()) {
+                Log.d(TAG, "Executing batch of " + batch.size() + " requests.");
+            }
+            batch.execute();
+        }
+
+        return result;
     }
-}
 
+    /**
+     * Opens the checked media stream of the given image, see
+     * {@link CloudObjectCRUD#openCloudObject(GoogleStorage, String, CancellationToken, TransferMeter)}.
+     */
+    private static InputStream openCloudImage(GoogleStorage googleStorage, String imageFullPath, CancellationToken cancellationToken, TransferMeter transferMeter) throws IOException {
+        return CloudObjectCRUD.openCloudObject(googleStorage, imageFullPath, cancellationToken, transferMeter);
+    }
+
+    /**
+     * Decodes the bounds of the image from the start of the stream, then the image itself with
+     * an inSampleSize matching the target size. The header is normally read from the marked
+     * start of the stream, but if the header did not fit within the mark the stream is opened
+     * a second time. The first stream is then abandoned rather than closed, as closing reads it
+     * to the end to check it.
+     */
+    private static Bitmap decodeSampled(GoogleStorage googleStorage, String imageFullPath, int targetWidth, int targetHeight, BitmapFactory.Options decodeOptions, CancellationToken cancellationToken, TransferMeter transferMeter) throws IOException {
+        InputStream content = openCloudImage(googleStorage, imageFullPath, cancellationToken, transferMeter);
+        InputStream stream = new BufferedInputStream(content, DECODE_BUFFER_POOL.getBufferSize());
+
+        try {
+            stream.mark(HEADER_MARK_LIMIT);
+
+            decodeOptions.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(stream, null, decodeOptions);
+            decodeOptions.inJustDecodeBounds = false;
+            if (GcsLog.isDebug()) {
+                Log.d(TAG, "Decoded bounds " + decodeOptions.outWidth + "x" + decodeOptions.outHeight);
+            }
+
+            if (decodeOptions.outWidth <= 0 || decodeOptions.outHeight <= 0) {
+                CloudObjectCRUD.abandon(content);
+                return null;
+            }
+
+            decodeOptions.inSampleSize = MediaManipulation.calculateInSampleSize(
+                    decodeOptions.outWidth, decodeOptions.outHeight, targetWidth, targetHeight);
+
+            try {
+                stream.reset();
+            }
+            catch ( IOException e ) {
+                GcsLog.d(TAG, "Image header exceeded mark limit, reopening stream.");
+                CloudObjectCRUD.abandon(content);
+                stream = openCloudImage(googleStorage, imageFullPath, cancellationToken, transferMeter);
+            }
+
+            Bitmap image = BitmapFactory.decodeStream(stream, null, decodeOptions);
+            if (GcsLog.isDebug()) {
+                Log.d(TAG, "Decoded bitmap with inSampleSize " + decodeOptions.inSampleSize);
+            }
+
+            return image;
+        }
+        finally {
+            stream.close();
+            GcsLog.d(TAG, "Closing input stream.");
+        }
+    }
+
+    /**
+     * Decodes the given region of the image, with an inSampleSize matching the target size.
+     * The crop Rect is clipped to the bounds of the image.
+     */
+    private static Bitmap decodeRegion(GoogleStorage googleStorage, String imageFullPath, int targetWidth, int targetHeight, Rect crop, BitmapFactory.Options decodeOptions, CancellationToken cancellationToken, TransferMeter transferMeter) throws IOException {
+        InputStream stream = openCloudImage(googleStorage, imageFullPath, cancellationToken, transferMeter);
+        BitmapRegionDecoder decoder;
+
+        try {
+            decoder = BitmapRegionDecoder.newInstance(stream, false);
+            GcsLog.d(TAG, "Created region decoder.");
+        }
+        finally {
+            stream.close();
+            GcsLog.d(TAG, "Closing input stream.");
+        }
+
+        try {
+            Rect region = new Rect(crop);
+            if (!region.intersect(0, 0, decoder.getWidth(), decoder.getHeight())) {
+                Log.w(TAG, "Given crop Rect is outside of the image " + imageFullPath);
+                return null;
+            }
+
+            decodeOptions.inSampleSize = MediaManipulation.calculateInSampleSize(
+                    region.width(), region.height(), targetWidth, targetHeight);
+
+            Bitmap image = decoder.decodeRegion(region, decodeOptions);
+            if (GcsLog.isDebug()) {
+                Log.d(TAG, "Decoded region with inSampleSize " + decodeOptions.inSampleSize);
+            }
+
+            return image;
+        }
+        finally {
+            decoder.recycle();
+        }
+    }
+
+    /**
+     * Reports an upload started at the given System.nanoTime() to the given MetricsListener.
+     * Everything but the encoding is reported as transfer.
+     */
+    private static void reportUpload(MetricsListener metrics, MetricsListener.Operation operation, long start, long encodeNanos, long bytesSent, boolean success) {
+        long duration = System.nanoTime() - start;
+
+        metrics.onPhase(operation, MetricsListener.Phase.ENCODE, encodeNanos);
+        metrics.onPhase(operation, MetricsListener.Phase.TRANSFER, duration - encodeNanos);
+        metrics.onBytesSent(operation, bytesSent);
+        metrics.onOperation(operation, duration, success);
+    }
+
+    /**
+     * Reports a read started at the given System.nanoTime() to the given MetricsListener.
+     * Everything but the time measured by the TransferMeter is reported as decoding.
+     */
+    private static void reportRead(MetricsListener metrics, long start, TransferMeter meter, boolean success) {
+        long duration = System.nanoTime() - start;
+        MetricsListener.Operation operation = MetricsListener.Operation.READ;
+
+        metrics.onPhase(operation, MetricsListener.Phase.TRANSFER, meter.getNanos());
+        metrics.onPhase(operation, MetricsListener.Phase.DECODE, duration - meter.getNanos());
+        metrics.onBytesReceived(operation, meter.getBytes());
+        metrics.onOperation(operation, duration, success);
+    }
+
+    /**
+     * Creates the request for a single object of a bulk operation.
+     *
+     * @param <T>
+     */
+    private interface BulkRequestFactory<T> {
+        StorageRequest<T> create(String objectFullPath) throws IOException;
+    }
+}
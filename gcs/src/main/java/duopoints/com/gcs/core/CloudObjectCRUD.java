@@ -0,0 +1,847 @@
+package duopoints.com.gcs.core;
+
+import android.util.Log;
+
+import com.google.api.client.http.AbstractInputStreamContent;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.FileContent;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.client.http.InputStreamContent;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.StorageObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+import duopoints.com.gcs.utils.ByteBufferContent;
+import duopoints.com.gcs.utils.CancellationToken;
+import duopoints.com.gcs.utils.GcsLog;
+import duopoints.com.gcs.utils.TransferChecksums;
+import duopoints.com.gcs.utils.TransferMeter;
+
+/**
+ * Inserts, reads, stats and deletes objects of any content, like audio clips, JSON documents or
+ * already encoded images, as byte arrays, ByteBuffers, Files or InputStreams. The bytes are
+ * sent and received as they are, with the given content type.
+ * <p/>
+ * {@link CloudImageCRUD} builds on this class, adding the encoding and decoding of Bitmaps.
+ * <p/>
+ * Every upload and download is checked with the CRC32C and MD5 hash of its content, computed
+ * while the bytes stream through, see {@link TransferChecksums}.
+ * <p/>
+ * NOTE: See full path explanation:
+ * https://github.com/Mithrandir21/GoogleCloudStorage#object-full-path
+ */
+public class CloudObjectCRUD {
+    private static final String TAG = "CloudObjectCRUD";
+
+    /**
+     * The fields set on the StorageObject returned by {@link #statCloudObject(GoogleStorage, String)}.
+     */
+    public static final String STAT_FIELDS = "name,size,contentType,generation,metageneration,updated";
+
+    // The fields of the StorageObject returned by an upload, what the checksum verification needs.
+    static final String INSERT_FIELDS = "name,size,generation,metageneration,crc32c,md5Hash";
+
+    // The size of the copies from the network into a File or a direct ByteBuffer.
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+
+    /**
+     * Uploads the given bytes as the object at the given objectFullPath, replacing any object
+     * already there.
+     * <p/>
+     * All parameters are mandatory.
+     *
+     * @param googleStorage
+     * @param objectFullPath
+     * @param data
+     * @param contentType    Like "application/json".
+     *
+     * @return The StorageObject created, with the fields in {@link #INSERT_FIELDS}.
+     * @throws IOException
+     */
+    public static StorageObject insertCloudObject(GoogleStorage googleStorage, String objectFullPath, byte[] data, String contentType) throws IOException {
+        if (data == null) {
+            throw new IllegalArgumentException("Given data was null! Error!");
+        }
+
+        return insertCloudObject(googleStorage, objectFullPath, new ByteArrayContent(contentType, data), null, null);
+    }
+
+    /**
+     * Uploads the remaining bytes of the given ByteBuffer as the object at the given
+     * objectFullPath, replacing any object already there. A direct or memory-mapped buffer is
+     * sent without copying it into the Java heap as a whole. The buffer is not modified.
+     * <p/>
+     * All parameters are mandatory.
+     *
+     * @param googleStorage
+     * @param objectFullPath
+     * @param data
+     * @param contentType
+     *
+     * @return The StorageObject created, with the fields in {@link #INSERT_FIELDS}.
+     * @throws IOException
+     */
+    public static StorageObject insertCloudObject(GoogleStorage googleStorage, String objectFullPath, ByteBuffer data, String contentType) throws IOException {
+        if (data == null) {
+            throw new IllegalArgumentException("Given ByteBuffer was null! Error!");
+        }
+
+        return insertCloudObject(googleStorage, objectFullPath, new ByteBufferContent(contentType, data), null, null);
+    }
+
+    /**
+     * Uploads the given File as the object at the given objectFullPath, replacing any object
+     * already there. The File is streamed as it is, an already encoded image is not decoded.
+     * <p/>
+     * The File is sent with a single request, for large files see {@link ResumableUpload}
+     * and {@link CompositeUpload}.
+     * <p/>
+     * All parameters are mandatory.
+     *
+     * @param googleStorage
+     * @param objectFullPath
+     * @param file
+     * @param contentType
+     *
+     * @return The StorageObject created, with the fields in {@link #INSERT_FIELDS}.
+     * @throws IOException
+     */
+    public static StorageObject insertCloudObject(GoogleStorage googleStorage, String objectFullPath, File file, String contentType) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException("Given File was null! Error!");
+        }
+
+        if (!file.isFile()) {
+            throw new IOException("File (" + file + ") does not exist! Error!");
+        }
+
+        return insertCloudObject(googleStorage, objectFullPath, new FileContent(contentType, file), null, null);
+    }
+
+    /**
+     * Uploads the content of the given InputStream as the object at the given objectFullPath,
+     * replacing any object already there. The stream is read once and closed, so the upload
+     * is not retried.
+     * <p/>
+     * All parameters are mandatory.
+     *
+     * @param googleStorage
+     * @param objectFullPath
+     * @param data
+     * @param length         The number of bytes in the stream, or -1 if unknown.
+     * @param contentType
+     *
+     * @return The StorageObject created, with the fields in {@link #INSERT_FIELDS}.
+     * @throws IOException
+     */
+    public static StorageObject insertCloudObject(GoogleStorage googleStorage, String objectFullPath, InputStream data, long length, String contentType) throws IOException {
+        if (data == null) {
+            throw new IllegalArgumentException("Given InputStream was null! Error!");
+        }
+
+        return insertCloudObject(googleStorage, objectFullPath, new InputStreamContent(contentType, data).setLength(length), null, null);
+    }
+
+    /**
+     * Uploads the given content as the object at the given objectFullPath, only if the given
+     * preconditions hold (see {@link CloudImageCRUD#replaceCloudImage(GoogleStorage, String, android.graphics.Bitmap, duopoints.com.gcs.utils.EncodeOptions, Long, Long)}).
+     * <p/>
+     * If the content can be read more than once ({@link AbstractInputStreamContent#retrySupported()},
+     * like byte arrays, ByteBuffers and Files), its checksums are computed first and sent with
+     * the request, so the cloud storage rejects an upload whose bytes differ before it replaces
+     * anything. The checksums of a stream, which can only be read once, are computed while it is
+     * sent and compared with the ones of the created object. If they differ, an IOException is
+     * thrown and the created object is left in place (any object it replaced is already gone).
+     *
+     * @param googleStorage
+     * @param objectFullPath
+     * @param content               Mandatory, with a content type.
+     * @param ifGenerationMatch     Optional, 0 to only create the object if it does not exist.
+     * @param ifMetagenerationMatch Optional.
+     *
+     * @return The StorageObject created, with the fields in {@link #INSERT_FIELDS}.
+     * @throws IOException
+     */
+    public static StorageObject insertCloudObject(GoogleStorage googleStorage, String objectFullPath, AbstractInputStreamContent content, Long ifGenerationMatch, Long ifMetagenerationMatch) throws IOException {
+        if (googleStorage == null) {
+            throw new IllegalArgumentException("Given GoogleStorage was null! Error!");
+        }
+
+        if ((objectFullPath == null || objectFullPath.length() < 1)) {
+            throw new IllegalArgumentException("Given objectFullPath was null or empty! Error!");
+        }
+
+        if (content == null) {
+            throw new IllegalArgumentException("Given content was null! Error!");
+        }
+
+        if (content.getType() == null || content.getType().length() < 1) {
+            throw new IllegalArgumentException("Given contentType was null or empty! Error!");
+        }
+
+
+        MetricsListener.Operation operation = ifGenerationMatch != null || ifMetagenerationMatch != null
+                ? MetricsListener.Operation.REPLACE : MetricsListener.Operation.INSERT;
+
+        MetricsListener metrics = GoogleStorage.getMetricsListener();
+        TransferMeter meter = metrics != null ? new TransferMeter() : null;
+        long start = metrics != null ? System.nanoTime() : 0;
+        boolean success = false;
+
+        TransferChecksums checksums = new TransferChecksums();
+        boolean staged = content.retrySupported();
+
+        try {
+            if (staged) {
+                checksums.update(content.getInputStream());
+            }
+
+            StorageObject inserted = executeInsert(googleStorage, objectFullPath,
+                    new MeteredContent(content, staged ? null : checksums, meter, null),
+                    staged ? checksums : null, ifGenerationMatch, ifMetagenerationMatch);
+
+            if (!staged) {
+                verifyInserted(inserted, checksums);
+            }
+            success = true;
+
+            return inserted;
+        }
+        finally {
+            if (metrics != null) {
+                long duration = System.nanoTime() - start;
+                metrics.onPhase(operation, MetricsListener.Phase.TRANSFER, duration);
+                metrics.onBytesSent(operation, meter.getBytes());
+                metrics.onOperation(operation, duration, success);
+            }
+        }
+    }
+
+    /**
+     * Downloads the object at the given objectFullPath into a byte array, or returns null if
+     * it does not exist.
+     * <p/>
+     * All parameters are mandatory.
+     *
+     * @param googleStorage
+     * @param objectFullPath
+     *
+     * @return
+     * @throws IOException Also if the downloaded bytes do not match the checksums of the object.
+     */
+    public static byte[] readCloudObject(GoogleStorage googleStorage, String objectFullPath) throws IOException {
+        ByteBuffer buffer = readCloudObject(googleStorage, objectFullPath, false);
+        return buffer != null ? buffer.array() : null;
+    }
+
+    /**
+     * Downloads the object at the given objectFullPath into a ByteBuffer, or returns null if
+     * it does not exist. A direct buffer is allocated outside of the Java heap, and filled
+     * without an intermediate array of the whole object.
+     * <p/>
+     * All parameters are mandatory.
+     *
+     * @param googleStorage
+     * @param objectFullPath
+     * @param direct         True for a direct buffer, false for a heap buffer.
+     *
+     * @return A buffer from position 0 to the size of the object.
+     * @throws IOException Also if the downloaded bytes do not match the checksums of the object.
+     */
+    public static ByteBuffer readCloudObject(GoogleStorage googleStorage, String objectFullPath, boolean direct) throws IOException {
+        validate(googleStorage, objectFullPath);
+
+        MetricsListener metrics = GoogleStorage.getMetricsListener();
+        TransferMeter meter = metrics != null ? new TransferMeter() : null;
+        long start = metrics != null ? System.nanoTime() : 0;
+        ByteBuffer buffer = null;
+
+        try {
+            HttpResponse response = executeMedia(googleStorage, objectFullPath, null);
+            // A content-encoded (like gzip) body is decoded while read, so its Content-Length is
+            // not the number of bytes read.
+            Long contentLength = response.getContentEncoding() == null ? response.getHeaders().getContentLength() : null;
+            InputStream content = content(response, objectFullPath, null, meter);
+
+            try {
+                buffer = contentLength != null
+                        ? readKnownLength(content, contentLength, direct)
+                        : readUnknownLength(content, direct);
+            }
+            finally {
+                content.close();
+            }
+
+            if (GcsLog.isDebug()) {
+                Log.d(TAG, "Read " + buffer.remaining() + " bytes of " + objectFullPath);
+            }
+
+            return buffer;
+        }
+        catch ( HttpResponseException e ) {
+            if (isNotFound(e)) {
+                Log.w(TAG, "Cloud Object (" + objectFullPath + ") not found.");
+                return null;
+            }
+
+            throw e;
+        }
+        finally {
+            if (metrics != null) {
+                reportRead(metrics, start, meter, buffer != null);
+            }
+        }
+    }
+
+    /**
+     * Downloads the object at the given objectFullPath into the given File, replacing it.
+     * Returns false if the object does not exist. The File is only replaced once the whole
+     * object has been downloaded and checked.
+     * <p/>
+     * All parameters are mandatory.
+     *
+     * @param googleStorage
+     * @param objectFullPath
+     * @param destination
+     *
+     * @return
+     * @throws IOException Also if the downloaded bytes do not match the checksums of the object.
+     */
+    public static boolean readCloudObject(GoogleStorage googleStorage, String objectFullPath, File destination) throws IOException {
+        validate(googleStorage, objectFullPath);
+
+        if (destination == null) {
+            throw new IllegalArgumentException("Given destination File was null! Error!");
+        }
+
+
+        MetricsListener metrics = GoogleStorage.getMetricsListener();
+        TransferMeter meter = metrics != null ? new TransferMeter() : null;
+        long start = metrics != null ? System.nanoTime() : 0;
+        boolean success = false;
+
+        File tempFile = new File(destination.getPath() + ".download");
+
+        try {
+            InputStream content = openCloudObject(googleStorage, objectFullPath, null, meter);
+
+            try {
+                OutputStream output = new FileOutputStream(tempFile);
+                try {
+                    byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                    int read;
+
+                    while ( (read = content.read(buffer)) != -1 ) {
+                        output.write(buffer, 0, read);
+                    }
+                }
+                finally {
+                    output.close();
+                }
+            }
+            finally {
+                content.close();
+            }
+
+            if (!tempFile.renameTo(destination)) {
+                throw new IOException("Could not move download into " + destination + "! Error!");
+            }
+
+            success = true;
+            if (GcsLog.isDebug()) {
+                Log.d(TAG, "Read " + objectFullPath + " into " + destination);
+            }
+
+            return true;
+        }
+        catch ( HttpResponseException e ) {
+            if (isNotFound(e)) {
+                Log.w(TAG, "Cloud Object (" + objectFullPath + ") not found.");
+                return false;
+            }
+
+            throw e;
+        }
+        finally {
+            tempFile.delete();
+
+            if (metrics != null) {
+                reportRead(metrics, start, meter, success);
+            }
+        }
+    }
+
+    /**
+     * Opens the content of the object at the given objectFullPath as a stream, which must be
+     * closed. Reaching the end of the stream, or closing it, fails with an IOException if the
+     * bytes read do not match the checksums of the object.
+     * <p/>
+     * All parameters are mandatory.
+     *
+     * @param googleStorage
+     * @param objectFullPath
+     *
+     * @return
+     * @throws IOException If the object does not exist, an HttpResponseException with status 404.
+     */
+    public static InputStream openCloudObject(GoogleStorage googleStorage, String objectFullPath) throws IOException {
+        validate(googleStorage, objectFullPath);
+
+        return openCloudObject(googleStorage, objectFullPath, null, null);
+    }
+
+    /**
+     * Returns the metadata of the object at the given objectFullPath without downloading its
+     * content, or null if it does not exist. Only the fields in {@link #STAT_FIELDS} are set.
+     * <p/>
+     * All parameters are mandatory.
+     *
+     * @param googleStorage
+     * @param objectFullPath
+     *
+     * @return
+     * @throws IOException
+     */
+    public static StorageObject statCloudObject(GoogleStorage googleStorage, String objectFullPath) throws IOException {
+        validate(googleStorage, objectFullPath);
+
+        MetricsListener metrics = GoogleStorage.getMetricsListener();
+        long start = metrics != null ? System.nanoTime() : 0;
+        StorageObject storageObject = null;
+
+        try {
+            storageObject = googleStorage.getStorage().objects()
+                    .get(googleStorage.getBucketName(), objectFullPath)
+                    .setFields(STAT_FIELDS)
+                    .execute();
+            if (GcsLog.isDebug()) {
+                Log.d(TAG, "Executed metadata request for " + objectFullPath);
+            }
+
+            return storageObject;
+        }
+        catch ( HttpResponseException e ) {
+            if (isNotFound(e)) {
+                Log.w(TAG, "Cloud Object (" + objectFullPath + ") not found.");
+                return null;
+            }
+
+            throw e;
+        }
+        finally {
+            if (metrics != null) {
+                metrics.onOperation(MetricsListener.Operation.STAT, System.nanoTime() - start, storageObject != null);
+            }
+        }
+    }
+
+    /**
+     * Deletes the object at the given objectFullPath.
+     * <p/>
+     * All parameters are mandatory.
+     *
+     * @param googleStorage
+     * @param objectFullPath
+     *
+     * @return
+     * @throws IOException If the object does not exist, an HttpResponseException with status 404.
+     */
+    public static boolean deleteCloudObject(GoogleStorage googleStorage, String objectFullPath) throws IOException {
+        validate(googleStorage, objectFullPath);
+
+        // Get the Storage reference from the GoogleStorage
+        Storage storage = googleStorage.getStorage();
+
+        if (GcsLog.isDebug()) {
+            Log.d(TAG, "Executing deletion of " + objectFullPath);
+        }
+        MetricsListener metrics = GoogleStorage.getMetricsListener();
+        long start = metrics != null ? System.nanoTime() : 0;
+        boolean success = false;
+
+        try {
+            storage.objects().delete(googleStorage.getBucketName(), objectFullPath).execute();
+            success = true;
+        }
+        finally {
+            if (metrics != null) {
+                metrics.onOperation(MetricsListener.Operation.DELETE, System.nanoTime() - start, success);
+            }
+        }
+        GcsLog.d(TAG, "Executed deletion.");
+
+        return true;
+    }
+
+
+    /**
+     * Sends the given content as a single insert request, with the given optional
+     * preconditions, and returns the StorageObject with the fields in {@link #INSERT_FIELDS}.
+     * <p/>
+     * If the checksums of the content are given, they are sent along and the cloud storage
+     * rejects the upload (400 Bad Request) if the bytes it received do not match them.
+     *
+     * @param googleStorage
+     * @param objectFullPath
+     * @param content
+     * @param checksums             Optional, the checksums of the whole content.
+     * @param ifGenerationMatch
+     * @param ifMetagenerationMatch
+     *
+     * @return
+     * @throws IOException
+     */
+    static StorageObject executeInsert(GoogleStorage googleStorage, String objectFullPath, AbstractInputStreamContent content, TransferChecksums checksums, Long ifGenerationMatch, Long ifMetagenerationMatch) throws IOException {
+        Storage storage = googleStorage.getStorage();
+
+        StorageObject storageObject = new StorageObject();
+        storageObject.setBucket(googleStorage.getBucketName());
+        storageObject.setName(objectFullPath);
+        storageObject.setContentType(content.getType());
+        if (checksums != null) {
+            storageObject.setCrc32c(checksums.getCrc32c());
+            storageObject.setMd5Hash(checksums.getMd5Hash());
+        }
+        GcsLog.d(TAG, "Create StorageObject to be inserted.");
+
+        Storage.Objects.Insert insert = storage.objects().insert(googleStorage.getBucketName(), storageObject, content)
+                .setFields(INSERT_FIELDS);
+        GcsLog.d(TAG, "Create insert request with StorageObject and content.");
+
+        // A single request with the content streamed into the body. Most content worth storing
+        // (images, audio) is already compressed and gains nothing from GZip. GZip is disabled on
+        // the request, whose flag overrides the one of its MediaHttpUploader.
+        insert.setDisableGZipContent(true);
+        insert.getMediaHttpUploader().setDirectUploadEnabled(true);
+
+        if (ifGenerationMatch != null) {
+            insert.setIfGenerationMatch(ifGenerationMatch);
+        }
+
+        if (ifMetagenerationMatch != null) {
+            insert.setIfMetagenerationMatch(ifMetagenerationMatch);
+        }
+
+        StorageObject inserted = insert.execute();
+        GcsLog.d(TAG, "Executed upload.");
+
+        return inserted;
+    }
+
+    /**
+     * Throws an IOException if the checksums of the inserted object do not match the ones of
+     * the content sent. The object is not deleted, the content it replaced could already be
+     * gone, so what to do with it is left to the caller.
+     *
+     * @param inserted
+     * @param checksums
+     *
+     * @throws IOException
+     */
+    static void verifyInserted(StorageObject inserted, TransferChecksums checksums) throws IOException {
+        if (checksums.matches(inserted.getCrc32c(), inserted.getMd5Hash())) {
+            if (GcsLog.isDebug()) {
+                Log.d(TAG, "Verified checksums of " + inserted.getName());
+            }
+            return;
+        }
+
+        Log.e(TAG, "Checksums of " + inserted.getName() + " are crc32c=" + inserted.getCrc32c()
+                + ", md5=" + inserted.getMd5Hash() + ", expected " + checksums);
+
+        throw new IOException("Checksums of uploaded " + inserted.getName() + " (generation " + inserted.getGeneration()
+                + ") did not match the content sent! Error!");
+    }
+
+    /**
+     * Opens the media stream of the given cloud object. Reaching the end of the stream, or
+     * closing it, fails if the bytes read do not match the hashes of the object, see
+     * {@link TransferChecksums#verify(HttpResponse, String)}.
+     * <p/>
+     * If a CancellationToken is given, cancelling it disconnects the response, which unblocks a
+     * read waiting on the network, and fails every later read of the returned stream.
+     *
+     * @param googleStorage
+     * @param objectFullPath
+     * @param cancellationToken Optional, may be null.
+     * @param transferMeter     Optional, measures the request and the reads of the stream.
+     *
+     * @return
+     * @throws IOException
+     */
+    static InputStream openCloudObject(GoogleStorage googleStorage, String objectFullPath, CancellationToken cancellationToken, TransferMeter transferMeter) throws IOException {
+        long start = transferMeter != null ? System.nanoTime() : 0;
+        HttpResponse response = executeMedia(googleStorage, objectFullPath, cancellationToken);
+
+        if (transferMeter != null) {
+            transferMeter.add(System.nanoTime() - start, 0);
+        }
+
+        return content(response, objectFullPath, cancellationToken, transferMeter);
+    }
+
+    /**
+     * Drops the connection of the given stream, opened by
+     * {@link #openCloudObject(GoogleStorage, String, CancellationToken, TransferMeter)}, without
+     * reading the rest of it and so without checking it. Closing it afterwards does nothing. For
+     * a caller that stops reading early and does not need the content checked, as closing would
+     * download the rest of the object to check it. Any other stream is closed.
+     *
+     * @param content
+     *
+     * @throws IOException
+     */
+    static void abandon(InputStream content) throws IOException {
+        if (content instanceof MediaInputStream) {
+            ((MediaInputStream) content).abandon();
+        }
+        else {
+            content.close();
+        }
+    }
+
+    /**
+     * Returns true if the given exception is the cloud storage reporting a missing object.
+     *
+     * @param e
+     *
+     * @return
+     */
+    static boolean isNotFound(Exception e) {
+        if (e instanceof HttpResponseException) {
+            return ((HttpResponseException) e).getStatusCode() == HttpStatusCodes.STATUS_CODE_NOT_FOUND;
+        }
+
+        return e.getMessage() != null && e.getMessage().contains("404 Not Found");
+    }
+
+
+    private static void validate(GoogleStorage googleStorage, String objectFullPath) {
+        if (googleStorage == null) {
+            throw new IllegalArgumentException("Given GoogleStorage was null! Error!");
+        }
+
+        if ((objectFullPath == null || objectFullPath.length() < 1)) {
+            throw new IllegalArgumentException("Given objectFullPath was null or empty! Error!");
+        }
+    }
+
+    private static HttpResponse executeMedia(GoogleStorage googleStorage, String objectFullPath, CancellationToken cancellationToken) throws IOException {
+        Storage.Objects.Get get = googleStorage.getStorage().objects().get(googleStorage.getBucketName(), objectFullPath);
+        if (GcsLog.isDebug()) {
+            Log.d(TAG, "Created get request for " + objectFullPath);
+        }
+
+        if (cancellationToken != null) {
+            cancellationToken.throwIfCancelled();
+        }
+
+        return get.executeMedia();
+    }
+
+    /**
+     * The checked, and optionally cancellable and measured, content of the given media response.
+     */
+    private static InputStream content(final HttpResponse response, String objectFullPath, CancellationToken cancellationToken, TransferMeter transferMeter) throws IOException {
+        InputStream content = TransferChecksums.verify(response, objectFullPath);
+
+        if (cancellationToken != null) {
+            // Disconnecting aborts the connection, where closing the stream would read it to the end.
+            cancellationToken.onCancel(new Closeable() {
+                @Override
+                public void close() throws IOException {
+                    response.disconnect();
+                }
+            });
+
+            content = cancellationToken.wrap(content);
+        }
+
+        if (transferMeter != null) {
+            content = transferMeter.wrap(content);
+        }
+
+        return new MediaInputStream(content, response);
+    }
+
+    private static ByteBuffer readKnownLength(InputStream content, long length, boolean direct) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Object of " + length + " bytes does not fit a ByteBuffer! Error!");
+        }
+
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect((int) length) : ByteBuffer.allocate((int) length);
+
+        if (buffer.hasArray()) {
+            byte[] array = buffer.array();
+            int total = 0;
+            int read;
+
+            while ( total < array.length && (read = content.read(array, total, array.length - total)) != -1 ) {
+                total += read;
+            }
+            buffer.position(total);
+        }
+        else {
+            ReadableByteChannel channel = Channels.newChannel(content);
+            while ( buffer.hasRemaining() && channel.read(buffer) != -1 ) {
+                // Filled by the channel.
+            }
+        }
+
+        if (buffer.hasRemaining() || content.read() != -1) {
+            throw new IOException("Object content did not match its Content-Length of " + length + "! Error!");
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    private static ByteBuffer readUnknownLength(InputStream content, boolean direct) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(COPY_BUFFER_SIZE);
+        byte[] chunk = new byte[COPY_BUFFER_SIZE];
+        int read;
+
+        while ( (read = content.read(chunk)) != -1 ) {
+            output.write(chunk, 0, read);
+        }
+
+        byte[] bytes = output.toByteArray();
+        if (!direct) {
+            return ByteBuffer.wrap(bytes);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void reportRead(MetricsListener metrics, long start, TransferMeter meter, boolean success) {
+        long duration = System.nanoTime() - start;
+        MetricsListener.Operation operation = MetricsListener.Operation.READ;
+
+        metrics.onPhase(operation, MetricsListener.Phase.TRANSFER, duration);
+        metrics.onBytesReceived(operation, meter.getBytes());
+        metrics.onOperation(operation, duration, success);
+    }
+
+
+    /**
+     * The content of a media response, which can be abandoned by disconnecting the response
+     * instead of closing the content.
+     */
+    private static class MediaInputStream extends FilterInputStream {
+        private final HttpResponse response;
+        private boolean abandoned;
+
+        MediaInputStream(InputStream in, HttpResponse response) {
+            super(in);
+            this.response = response;
+        }
+
+        void abandon() throws IOException {
+            if (!abandoned) {
+                abandoned = true;
+                response.disconnect();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!abandoned) {
+                super.close();
+            }
+        }
+    }
+
+    /**
+     * Sends the given content, computing its checksums and measuring it while the HTTP layer
+     * writes or reads it, and failing once the CancellationToken is cancelled. Starts over every
+     * time the content is sent (again).
+     */
+    static class MeteredContent extends AbstractInputStreamContent {
+        private final AbstractInputStreamContent content;
+        private final TransferChecksums checksums;
+        private final TransferMeter transferMeter;
+        private final CancellationToken cancellationToken;
+
+        /**
+         * @param content
+         * @param checksums         Optional, may be null.
+         * @param transferMeter     Optional, may be null.
+         * @param cancellationToken Optional, may be null.
+         */
+        MeteredContent(AbstractInputStreamContent content, TransferChecksums checksums, TransferMeter transferMeter, CancellationToken cancellationToken) {
+            super(content.getType());
+            this.content = content;
+            this.checksums = checksums;
+            this.transferMeter = transferMeter;
+            this.cancellationToken = cancellationToken;
+            setCloseInputStream(content.getCloseInputStream());
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            if (cancellationToken != null) {
+                cancellationToken.throwIfCancelled();
+                out = cancellationToken.wrap(out);
+            }
+
+            if (transferMeter != null) {
+                out = transferMeter.wrap(out);
+            }
+
+            if (checksums != null) {
+                checksums.reset();
+                out = checksums.wrap(out);
+            }
+
+            content.writeTo(out);
+            out.flush();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if (cancellationToken != null) {
+                cancellationToken.throwIfCancelled();
+            }
+
+            InputStream source = content.getInputStream();
+
+            if (checksums != null) {
+                checksums.reset();
+                source = checksums.wrap(source);
+            }
+
+            if (transferMeter != null) {
+                source = transferMeter.wrap(source);
+            }
+
+            return cancellationToken != null ? cancellationToken.wrap(source) : source;
+        }
+
+        @Override
+        public long getLength() throws IOException {
+            return content.getLength();
+        }
+
+        @Override
+        public boolean retrySupported() {
+            return content.retrySupported();
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package duopoints.com.gcs.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import duopoints.com.gcs.utils.CancellationToken;
+
+/**
+ * A handle to an asynchronous operation started by {@link AsyncCloudImageCRUD}.
+ * <p/>
+ * Besides being a {@link Future}, any number of {@link CloudCallback}s can be added, before or
+ * after the operation has finished. Starting the next operation from a callback composes
+ * operations into a pipeline without blocking a thread on {@link #get()}.
+ * <p/>
+ * {@link #cancel(boolean)} aborts the HTTP transfer of the operation, if one is in flight.
+ *
+ * @param <T> The type of the result of the operation.
+ */
+public class CloudTask<T> implements Future<T> {
+    private final CancellationToken cancellationToken = new CancellationToken();
+    private final Executor callbackExecutor;
+    private final OperationFuture future;
+
+    // Callbacks waiting for the operation to finish, null once it has finished.
+    private List<PendingCallback<T>> pendingCallbacks = new ArrayList<>();
+
+
+    CloudTask(final Operation<T> operation, Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+        this.future = new OperationFuture(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return operation.execute(cancellationToken);
+            }
+        });
+    }
+
+    /**
+     * Creates a CloudTask without an operation of its own, finished through
+     * {@link #complete(Object)} or {@link #completeExceptionally(Exception)}.
+     *
+     * @param callbackExecutor
+     */
+    CloudTask(Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+        this.future = new OperationFuture(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                throw new IllegalStateException("CloudTask has no operation to run! Error!");
+            }
+        });
+    }
+
+    /**
+     * Adds a callback for the outcome of the operation. If the operation has already finished,
+     * the callback is called right away (on the callback Executor).
+     *
+     * @param callback
+     *
+     * @return
+     */
+    public CloudTask<T> addCallback(CloudCallback<? super T> callback) {
+        return addCallback(callback, callbackExecutor);
+    }
+
+    /**
+     * Adds a callback called on the given Executor instead of the callback Executor.
+     *
+     * @param callback
+     * @param executor
+     *
+     * @return
+     */
+    CloudTask<T> addCallback(CloudCallback<? super T> callback, Executor executor) {
+        if (callback == null) {
+            throw new IllegalArgumentException("Given CloudCallback was null! Error!");
+        }
+
+        synchronized ( this ) {
+            if (pendingCallbacks != null) {
+                pendingCallbacks.add(new PendingCallback<T>(callback, executor));
+                return this;
+            }
+        }
+
+        deliver(callback, executor);
+
+        return this;
+    }
+
+    /**
+     * Cancels the operation. An operation that has not started yet never starts, and the
+     * transfer of a running operation is aborted, whatever the value of mayInterruptIfRunning.
+     *
+     * @param mayInterruptIfRunning
+     *
+     * @return
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = future.cancel(mayInterruptIfRunning);
+
+        if (cancelled) {
+            cancellationToken.cancel();
+        }
+
+        return cancelled;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return future.isCancelled();
+    }
+
+    @Override
+    public boolean isDone() {
+        return future.isDone();
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        return future.get();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        return future.get(timeout, unit);
+    }
+
+
+    /**
+     * The Runnable doing the operation, to be run once by an Executor.
+     *
+     * @return
+     */
+    Runnable getRunnable() {
+        return future;
+    }
+
+    CancellationToken getCancellationToken() {
+        return cancellationToken;
+    }
+
+    /**
+     * Finishes the task with the given result, unless it has already finished.
+     *
+     * @param result
+     */
+    void complete(T result) {
+        future.complete(result);
+    }
+
+    /**
+     * Finishes the task with the given failure, unless it has already finished.
+     *
+     * @param e
+     */
+    void completeExceptionally(Exception e) {
+        future.completeExceptionally(e);
+    }
+
+    private void deliverPending() {
+        List<PendingCallback<T>> callbacks;
+
+        synchronized ( this ) {
+            callbacks = pendingCallbacks;
+            pendingCallbacks = null;
+        }
+
+        for (PendingCallback<T> pending : callbacks) {
+            deliver(pending.callback, pending.executor);
+        }
+    }
+
+    private void deliver(final CloudCallback<? super T> callback, Executor executor) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                T result;
+
+                try {
+                    result = future.get();
+                }
+                catch ( CancellationException e ) {
+                    callback.onFailure(e);
+                    return;
+                }
+                catch ( ExecutionException e ) {
+                    Throwable cause = e.getCause();
+                    callback.onFailure(cause instanceof Exception ? (Exception) cause : e);
+                    return;
+                }
+                catch ( InterruptedException e ) {
+                    // Can not happen, the future is done.
+                    Thread.currentThread().interrupt();
+                    callback.onFailure(e);
+                    return;
+                }
+
+                callback.onSuccess(result);
+            }
+        });
+    }
+
+
+    /**
+     * The FutureTask behind a CloudTask, delivering the callbacks once done.
+     */
+    private class OperationFuture extends FutureTask<T> {
+        OperationFuture(Callable<T> callable) {
+            super(callable);
+        }
+
+        void complete(T result) {
+            set(result);
+        }
+
+        void completeExceptionally(Exception e) {
+            setException(e);
+        }
+
+        @Override
+        protected void done() {
+            deliverPending();
+        }
+    }
+
+    private static class PendingCallback<T> {
+        final CloudCallback<? super T> callback;
+        final Executor executor;
+
+        PendingCallback(CloudCallback<? super T> callback, Executor executor) {
+            this.callback = callback;
+            this.executor = executor;
+        }
+    }
+
+    /**
+     * The work of a CloudTask. Must stop its transfer once the given CancellationToken is
+     * cancelled.
+     *
+     * @param <T>
+     */
+    interface Operation<T> {
+        T execute(CancellationToken cancellationToken) throws Exception;
+    }
+}
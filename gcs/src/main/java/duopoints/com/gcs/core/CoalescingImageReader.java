@@ -0,0 +1,231 @@
+package duopoints.com.gcs.core;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import duopoints.com.gcs.utils.GcsLog;
+
+/**
+ * Reads images like {@link AsyncCloudImageCRUD}, but concurrent reads of the same image share a
+ * single download and decode (single-flight).
+ * <p/>
+ * Reads are the same if they are for the same bucket, imageFullPath and decode size. A read
+ * started while an identical read is in flight joins it, and every caller receives the same
+ * Bitmap. The shared Bitmap must therefore not be recycled or changed by any caller.
+ * <p/>
+ * Every caller gets its own {@link CloudTask}. Cancelling it only removes that caller: the
+ * download is aborted once every caller of it has cancelled.
+ * <p/>
+ * A read that has finished is forgotten, so a later read downloads the image again. Combine
+ * with a cache, like {@link duopoints.com.gcs.cache.CloudImageCache}, to keep images around.
+ * <p/>
+ * NOTE: See full path explanation:
+ * https://github.com/Mithrandir21/GoogleCloudStorage#object-full-path
+ */
+public class CoalescingImageReader {
+    private static final String TAG = "CoalescingImageReader";
+
+    // Calls internal callbacks on the thread finishing the shared read.
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    // The reads in flight, by key. Guarded by this.
+    private final Map<String, Flight> flights = new HashMap<>();
+
+    private long coalescedCount;
+
+
+    /**
+     * Reads the image at full resolution.
+     * See {@link AsyncCloudImageCRUD#readAsync(GoogleStorage, String, android.graphics.BitmapFactory.Options, CloudCallback)}.
+     *
+     * @param googleStorage
+     * @param imageFullPath
+     * @param callback      Optional, may be null.
+     *
+     * @return
+     */
+    public CloudTask<Bitmap> readCloudImage(GoogleStorage googleStorage, String imageFullPath, CloudCallback<? super Bitmap> callback) {
+        return read(googleStorage, imageFullPath, 0, 0, callback);
+    }
+
+    /**
+     * Reads the image decoded at roughly the given target size.
+     * See {@link AsyncCloudImageCRUD#readAsync(GoogleStorage, String, int, int, Bitmap.Config, android.graphics.Rect, CloudCallback)}.
+     *
+     * @param googleStorage
+     * @param imageFullPath
+     * @param targetWidth   The wanted width, or 0 to only constrain the height.
+     * @param targetHeight  The wanted height, or 0 to only constrain the width.
+     * @param callback      Optional, may be null.
+     *
+     * @return
+     */
+    public CloudTask<Bitmap> readCloudImage(GoogleStorage googleStorage, String imageFullPath, int targetWidth, int targetHeight, CloudCallback<? super Bitmap> callback) {
+        if (targetWidth < 0 || targetHeight < 0 || (targetWidth == 0 && targetHeight == 0)) {
+            throw new IllegalArgumentException("Given target size was invalid! Error!");
+        }
+
+        return read(googleStorage, imageFullPath, targetWidth, targetHeight, callback);
+    }
+
+    /**
+     * The number of reads that joined a read already in flight, instead of downloading.
+     *
+     * @return
+     */
+    public synchronized long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * The number of distinct reads currently in flight.
+     *
+     * @return
+     */
+    public synchronized int getInFlightCount() {
+        return flights.size();
+    }
+
+
+    private CloudTask<Bitmap> read(GoogleStorage googleStorage, String imageFullPath, int targetWidth, int targetHeight, CloudCallback<? super Bitmap> callback) {
+        if (googleStorage == null) {
+            throw new IllegalArgumentException("Given GoogleStorage was null! Error!");
+        }
+
+        if ((imageFullPath == null || imageFullPath.length() < 1)) {
+            throw new IllegalArgumentException("Given imageFullPath was null or empty! Error!");
+        }
+
+
+        String key = googleStorage.getBucketName() + "/" + imageFullPath + "@" + targetWidth + "x" + targetHeight;
+        final CloudTask<Bitmap> caller = new CloudTask<>(AsyncCloudImageCRUD.getCallbackExecutor());
+        final Flight flight;
+        boolean started = false;
+
+        synchronized ( this ) {
+            Flight existing = flights.get(key);
+
+            if (existing != null) {
+                flight = existing;
+                coalescedCount++;
+                if (GcsLog.isDebug()) {
+                    Log.d(TAG, "Joined read in flight of " + imageFullPath);
+                }
+            } else {
+                flight = new Flight(key);
+                flights.put(key, flight);
+
+                // Only submits the read, so it is cheap enough to do while holding the lock.
+                if (targetWidth == 0 && targetHeight == 0) {
+                    flight.shared = AsyncCloudImageCRUD.readAsync(googleStorage, imageFullPath, null, null);
+                } else {
+                    flight.shared = AsyncCloudImageCRUD.readAsync(googleStorage, imageFullPath, targetWidth, targetHeight, null, null, null);
+                }
+                started = true;
+                if (GcsLog.isDebug()) {
+                    Log.d(TAG, "Started shared read of " + imageFullPath);
+                }
+            }
+
+            flight.callers.add(caller);
+        }
+
+        if (started) {
+            // Outside of the lock, as a read that has already finished calls back right away.
+            flight.shared.addCallback(flight, DIRECT_EXECUTOR);
+        }
+
+        caller.getCancellationToken().onCancel(new Closeable() {
+            @Override
+            public void close() throws IOException {
+                release(flight, caller);
+            }
+        });
+
+        if (callback != null) {
+            caller.addCallback(callback);
+        }
+
+        return caller;
+    }
+
+    /**
+     * Removes the given cancelled caller from the given Flight, cancelling the shared read if
+     * it was the last caller.
+     *
+     * @param flight
+     * @param caller
+     */
+    private void release(Flight flight, CloudTask<Bitmap> caller) {
+        synchronized ( this ) {
+            if (!flight.callers.remove(caller) || !flight.callers.isEmpty()) {
+                return;
+            }
+
+            if (flights.get(flight.key) == flight) {
+                flights.remove(flight.key);
+            }
+        }
+
+        if (GcsLog.isDebug()) {
+            Log.d(TAG, "Last caller cancelled, cancelling shared read " + flight.key);
+        }
+        flight.shared.cancel(true);
+    }
+
+
+    /**
+     * A read in flight and the callers waiting for it.
+     */
+    private class Flight implements CloudCallback<Bitmap> {
+        final String key;
+        final List<CloudTask<Bitmap>> callers = new ArrayList<>();
+
+        CloudTask<Bitmap> shared;
+
+
+        Flight(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void onSuccess(Bitmap result) {
+            for (CloudTask<Bitmap> caller : finish()) {
+                caller.complete(result);
+            }
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+            for (CloudTask<Bitmap> caller : finish()) {
+                caller.completeExceptionally(e);
+            }
+        }
+
+        private List<CloudTask<Bitmap>> finish() {
+            synchronized ( CoalescingImageReader.this ) {
+                if (flights.get(key) == this) {
+                    flights.remove(key);
+                }
+
+                List<CloudTask<Bitmap>> waiting = new ArrayList<>(callers);
+                callers.clear();
+
+                return waiting;
+            }
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package duopoints.com.gcs.core;
+
+import android.util.Log;
+
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.ComposeRequest;
+import com.google.api.services.storage.model.StorageObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import duopoints.com.gcs.utils.Crc32c;
+import duopoints.com.gcs.utils.FileRangeContent;
+import duopoints.com.gcs.utils.GcsLog;
+
+/**
+ * A parallel composite upload of a large local file: the file is split into parts that are
+ * uploaded at the same time as temporary objects, over separate connections, and then stitched
+ * into the final object with a single compose request. The temporary objects are deleted
+ * afterwards with batch requests.
+ * <p/>
+ * Files smaller than {@link #setThreshold(long)} are uploaded with a single request instead,
+ * as the extra requests of a composite upload only pay off for large files.
+ * <p/>
+ * Every part is sent with its CRC32C, so the cloud storage rejects a corrupted part, and the
+ * CRC32C of the final object is compared with the CRC32C of the local file. A final object
+ * that does not match is deleted and reported as an IOException.
+ * <p/>
+ * NOTE: A composed object has no MD5 hash, only a CRC32C. The temporary objects are named
+ * "[objectFullPath].part-[random]-[index]" and require delete permission in the bucket.
+ */
+public class CompositeUpload {
+    private static final String TAG = "CompositeUpload";
+
+    /**
+     * The maximum number of objects a single compose request accepts.
+     */
+    public static final int MAX_PARTS = 32;
+
+    public static final int DEFAULT_PARTS = 4;
+    public static final long DEFAULT_THRESHOLD = 16 * 1024 * 1024;
+    public static final long DEFAULT_MIN_PART_SIZE = 4 * 1024 * 1024;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final GoogleStorage googleStorage;
+    private final String objectFullPath;
+    private final File source;
+    private final String contentType;
+
+    private int parts = DEFAULT_PARTS;
+    private long threshold = DEFAULT_THRESHOLD;
+    private long minPartSize = DEFAULT_MIN_PART_SIZE;
+
+
+    /**
+     * All parameters are mandatory.
+     * <p/>
+     * NOTE: See full path explanation:
+     * https://github.com/Mithrandir21/GoogleCloudStorage#object-full-path
+     *
+     * @param googleStorage
+     * @param objectFullPath
+     * @param source         The file to upload. Must not change during the upload.
+     * @param contentType
+     */
+    public CompositeUpload(GoogleStorage googleStorage, String objectFullPath, File source, String contentType) {
+        if (googleStorage == null) {
+            throw new IllegalArgumentException("Given GoogleStorage was null! Error!");
+        }
+
+        if (objectFullPath == null || objectFullPath.length() < 1) {
+            throw new IllegalArgumentException("Given objectFullPath was null or empty! Error!");
+        }
+
+        if (source == null) {
+            throw new IllegalArgumentException("Given source File was null! Error!");
+        }
+
+        if (contentType == null) {
+            throw new IllegalArgumentException("Given contentType was null! Error!");
+        }
+
+        this.googleStorage = googleStorage;
+        this.objectFullPath = objectFullPath;
+        this.source = source;
+        this.contentType = contentType;
+    }
+
+    /**
+     * The number of parts uploaded in parallel, at most {@link #MAX_PARTS}.
+     * Default is {@link #DEFAULT_PARTS}.
+     *
+     * @param parts
+     *
+     * @return
+     */
+    public CompositeUpload setParts(int parts) {
+        if (parts < 1 || parts > MAX_PARTS) {
+            throw new IllegalArgumentException("Given parts must be between 1 and " + MAX_PARTS + "! Error!");
+        }
+
+        this.parts = parts;
+
+        return this;
+    }
+
+    /**
+     * The file size from which the upload is split into parts. Default is
+     * {@link #DEFAULT_THRESHOLD}.
+     *
+     * @param threshold
+     *
+     * @return
+     */
+    public CompositeUpload setThreshold(long threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Given threshold can not be negative! Error!");
+        }
+
+        this.threshold = threshold;
+
+        return this;
+    }
+
+    /**
+     * The minimum size of a part. Fewer parts are used if the file would otherwise be split into
+     * smaller parts. Default is {@link #DEFAULT_MIN_PART_SIZE}.
+     *
+     * @param minPartSize
+     *
+     * @return
+     */
+    public CompositeUpload setMinPartSize(long minPartSize) {
+        if (minPartSize < 1) {
+            throw new IllegalArgumentException("Given minPartSize must be positive! Error!");
+        }
+
+        this.minPartSize = minPartSize;
+
+        return this;
+    }
+
+    /**
+     * Uploads the file and returns the created object.
+     *
+     * @return
+     * @throws IOException
+     */
+    public StorageObject upload() throws IOException {
+        if (!source.isFile()) {
+            throw new IOException("Source " + source + " is not a file! Error!");
+        }
+
+        long length = source.length();
+        int partCount = (int) Math.max(1, Math.min(parts, length / minPartSize));
+
+        if (length < threshold || partCount < 2) {
+            if (GcsLog.isDebug()) {
+                Log.d(TAG, "Uploading " + objectFullPath + " (" + length + " bytes) as a single request.");
+            }
+            return insert(objectFullPath, 0, length);
+        }
+
+        long partSize = (length + partCount - 1) / partCount;
+        String partPrefix = objectFullPath + ".part-" + Long.toHexString(RANDOM.nextLong()) + "-";
+        if (GcsLog.isDebug()) {
+            Log.d(TAG, "Uploading " + objectFullPath + " (" + length + " bytes) as " + partCount + " parts.");
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(partCount, new ThreadFactory() {
+            private int count;
+
+            @Override
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "CompositeUpload-" + (++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        List<Future<StorageObject>> partUploads = new ArrayList<>(partCount);
+        List<StorageObject> uploadedParts = new ArrayList<>(partCount);
+
+        try {
+            for (int i = 0; i < partCount; i++) {
+                final String partName = partPrefix + i;
+                final long partOffset = i * partSize;
+                final long partLength = Math.min(partSize, length - partOffset);
+
+                partUploads.add(executor.submit(new Callable<StorageObject>() {
+                    @Override
+                    public StorageObject call() throws Exception {
+                        return insert(partName, partOffset, partLength);
+                    }
+                }));
+            }
+
+            // Checksummed here while the parts upload, as a single read of the local file.
+            String expectedCrc32c = null;
+            IOException failure = null;
+            try {
+                expectedCrc32c = Crc32c.of(source, 0, length).toBase64();
+            }
+            catch ( IOException e ) {
+                failure = e;
+            }
+
+            IOException partFailure = awaitParts(partUploads, uploadedParts);
+            if (failure == null) {
+                failure = partFailure;
+            }
+
+            if (failure != null) {
+                throw failure;
+            }
+            if (GcsLog.isDebug()) {
+                Log.d(TAG, "Uploaded all " + partCount + " parts.");
+            }
+
+            StorageObject composed = compose(uploadedParts);
+            verify(composed, expectedCrc32c);
+
+            return composed;
+        }
+        finally {
+            executor.shutdownNow();
+            deleteParts(uploadedParts);
+        }
+    }
+
+
+    /**
+     * Waits for every part upload and adds the uploaded parts, in order, to the given list.
+     * A failed part does not cancel the others: a part still running could already be stored,
+     * and it has to be in the list to be deleted. Returns the first failure, or null.
+     */
+    private static IOException awaitParts(List<Future<StorageObject>> partUploads, List<StorageObject> uploadedParts) throws InterruptedIOException {
+        IOException failure = null;
+
+        for (Future<StorageObject> partUpload : partUploads) {
+            try {
+                uploadedParts.add(partUpload.get());
+            }
+            catch ( ExecutionException e ) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof IOException
+                            ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            }
+            catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for parts! Error!");
+            }
+        }
+
+        return failure;
+    }
+
+    /**
+     * Uploads the given range of the file as the given object, with its CRC32C so the cloud
+     * storage rejects it if it arrives corrupted.
+     */
+    private StorageObject insert(String name, long offset, long length) throws IOException {
+        FileRangeContent content = new FileRangeContent(contentType, source, offset, length);
+
+        StorageObject storageObject = new StorageObject()
+                .setBucket(googleStorage.getBucketName())
+                .setName(name)
+                .setContentType(contentType)
+                .setCrc32c(Crc32c.of(source, offset, length).toBase64());
+
+        Storage.Objects.Insert insert = googleStorage.getStorage().objects()
+                .insert(googleStorage.getBucketName(), storageObject, content)
+                .setFields(CloudObjectCRUD.INSERT_FIELDS);
+        insert.setDisableGZipContent(true);
+        insert.getMediaHttpUploader().setDirectUploadEnabled(true);
+
+        StorageObject inserted = insert.execute();
+        if (GcsLog.isDebug()) {
+            Log.d(TAG, "Uploaded " + name + " (" + length + " bytes).");
+        }
+
+        return inserted;
+    }
+
+    /**
+     * Composes the given parts, in order and pinned to their generations, into the final object.
+     */
+    private StorageObject compose(List<StorageObject> uploadedParts) throws IOException {
+        List<ComposeRequest.SourceObjects> sources = new ArrayList<>(uploadedParts.size());
+
+        for (StorageObject part : uploadedParts) {
+            sources.add(new ComposeRequest.SourceObjects()
+                    .setName(part.getName())
+                    .setGeneration(part.getGeneration()));
+        }
+
+        ComposeRequest request = new ComposeRequest()
+                .setSourceObjects(sources)
+                .setDestination(new StorageObject()
+                        .setBucket(googleStorage.getBucketName())
+                        .setName(objectFullPath)
+                        .setContentType(contentType));
+
+        StorageObject composed = googleStorage.getStorage().objects()
+                .compose(googleStorage.getBucketName(), objectFullPath, request)
+                .setFields(CloudObjectCRUD.INSERT_FIELDS)
+                .execute();
+        if (GcsLog.isDebug()) {
+            Log.d(TAG, "Composed " + objectFullPath + " from " + sources.size() + " parts.");
+        }
+
+        return composed;
+    }
+
+    /**
+     * Deletes the composed object (only the generation created here) if its CRC32C does not
+     * match the local file.
+     */
+    private void verify(StorageObject composed, String expectedCrc32c) throws IOException {
+        if (expectedCrc32c.equals(composed.getCrc32c())) {
+            if (GcsLog.isDebug()) {
+                Log.d(TAG, "Verified CRC32C of " + objectFullPath);
+            }
+            return;
+        }
+
+        Log.e(TAG, "CRC32C of " + objectFullPath + " is " + composed.getCrc32c() + ", expected " + expectedCrc32c);
+
+        try {
+            googleStorage.getStorage().objects()
+                    .delete(googleStorage.getBucketName(), objectFullPath)
+                    .setIfGenerationMatch(composed.getGeneration())
+                    .execute();
+        }
+        catch ( IOException e ) {
+            Log.e(TAG, "Could not delete corrupted object " + objectFullPath + ": " + e.getMessage());
+        }
+
+        throw new IOException("CRC32C of composed object " + objectFullPath + " did not match the source file! Error!");
+    }
+
+    /**
+     * Deletes the given temporary parts with batch requests. Failures are only logged, as the
+     * upload itself is done.
+     */
+    private void deleteParts(List<StorageObject> uploadedParts) {
+        if (uploadedParts.isEmpty()) {
+            return;
+        }
+
+        List<String> names = new ArrayList<>(uploadedParts.size());
+        for (StorageObject part : uploadedParts) {
+            names.add(part.getName());
+        }
+
+        try {
+            BulkResult<Void> result = CloudImageCRUD.deleteCloudImages(googleStorage, names);
+            if (!result.isComplete()) {
+                Log.w(TAG, "Could not delete " + result.getFailed().size() + " temporary parts.");
+            }
+        }
+        catch ( IOException e ) {
+            Log.w(TAG, "Could not delete temporary parts: " + e.getMessage());
+        }
+    }
+}
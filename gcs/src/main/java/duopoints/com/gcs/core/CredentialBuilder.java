@@ -1,28 +1,42 @@
 package duopoints.com.gcs.core;
 
 import android.content.Context;
-import android.util.Log;
 
 import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.auth.oauth2.DataStoreCredentialRefreshListener;
+import com.google.api.client.auth.oauth2.StoredCredential;
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.apache.ApacheHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.SecurityUtils;
+import com.google.api.client.util.store.DataStore;
+import com.google.api.client.util.store.FileDataStoreFactory;
 import com.google.api.services.storage.StorageScopes;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
 import java.util.ArrayList;
 import java.util.List;
 
+import duopoints.com.gcs.utils.GcsLog;
+
 public class CredentialBuilder {
     private static final String TAG = "CredentialBuilder";
 
+    // The fixed store and key passwords and key alias of P12 keys from the Developer Console.
+    private static final String P12_PASSWORD = "notasecret";
+    private static final String P12_ALIAS = "privatekey";
+
+    private static final String TOKEN_STORE_DIR = "gcs-credentials";
+
+    // Stored tokens expiring within this margin are not worth reusing.
+    private static final long TOKEN_REUSE_MARGIN_MILLIS = 60 * 1000;
+
     private static volatile CredentialBuilder singleton = null;
 
     private Context context;
@@ -30,9 +44,20 @@ public class CredentialBuilder {
     private int key_resource_ID;
     private String accountID;
     private HttpTransport httpTransport;
+    private TransportConfig transportConfig;
+    // Created from the TransportConfig (or the stock one) when no HttpTransport is given, and
+    // again once the TransportConfig changes.
+    private HttpTransport createdTransport;
     private JsonFactory jsonFactory;
     private List<String> scopes;
 
+    private long refreshMarginSeconds = -1;
+    private TokenRefresher tokenRefresher;
+
+    private PrivateKey privateKey;
+    private DataStore<StoredCredential> tokenStore;
+    private Credential builtCredential;
+
 
     /**
      * A private Constructor for the class that initiates all mandatory fields.
@@ -99,11 +124,41 @@ public class CredentialBuilder {
         }
 
         this.httpTransport = httpTransport;
+        this.builtCredential = null;
 
         return this;
 
     }
 
+    /**
+     * Adds a TransportConfig for the HTTP communication (connection pool, keep-alive,
+     * timeouts and GZip).
+     * <p/>
+     * Unless a specific HttpTransport is given with {@link #transporter(HttpTransport)}, the
+     * transport is created from the TransportConfig, with a new connection pool whenever the
+     * TransportConfig changes. Either way the transport is shared by the
+     * Credential and by every GoogleStorage built with the Credential, and the timeouts apply to
+     * both token refreshes and data calls.
+     *
+     * @param transportConfig
+     */
+    public CredentialBuilder transportConfig(TransportConfig transportConfig) {
+        if (singleton == null) {
+            throw new NullPointerException("Singleton object is null. " +
+                    "Setup() must be run before any other builder functions.");
+        }
+
+        if (transportConfig == null) {
+            throw new IllegalArgumentException("Given TransportConfig was null! Error!");
+        }
+
+        this.transportConfig = transportConfig;
+        this.createdTransport = null;
+        this.builtCredential = null;
+
+        return this;
+    }
+
     /**
      * Adds a specific JsonFactory for the JSON handling.
      *
@@ -120,6 +175,7 @@ public class CredentialBuilder {
         }
 
         this.jsonFactory = factory;
+        this.builtCredential = null;
 
         return this;
     }
@@ -152,16 +208,19 @@ public class CredentialBuilder {
         if (scope == CredentialScope.DEVSTORAGE_FULL_CONTROL) {
             scopes = new ArrayList<>();
             scopes.add(StorageScopes.DEVSTORAGE_FULL_CONTROL);
+            builtCredential = null;
 
             return this;
         } else if (scope == CredentialScope.DEVSTORAGE_READ_ONLY) {
             scopes = new ArrayList<>();
             scopes.add(StorageScopes.DEVSTORAGE_READ_ONLY);
+            builtCredential = null;
 
             return this;
         } else if (scope == CredentialScope.DEVSTORAGE_READ_WRITE) {
             scopes = new ArrayList<>();
             scopes.add(StorageScopes.DEVSTORAGE_READ_WRITE);
+            builtCredential = null;
 
             return this;
         } else {
@@ -169,83 +228,189 @@ public class CredentialBuilder {
         }
     }
 
+    /**
+     * Makes built Credentials refresh their access token in the background, the given number of
+     * seconds before it expires, so requests never wait for a token refresh.
+     * The margin should be larger than the 60 seconds before expiry at which a Credential
+     * refreshes on the request path. See {@link TokenRefresher}.
+     *
+     * @param marginSeconds
+     *
+     * @return
+     */
+    public CredentialBuilder proactiveRefresh(long marginSeconds) {
+        if (singleton == null) {
+            throw new NullPointerException("Singleton object is null. " +
+                    "Setup() must be run before any other builder functions.");
+        }
+
+        if (marginSeconds < 0) {
+            throw new IllegalArgumentException("Given marginSeconds can not be negative! Error!");
+        }
+
+        this.refreshMarginSeconds = marginSeconds;
+        this.builtCredential = null;
+
+        return this;
+    }
+
+    /**
+     * Returns the TokenRefresher of the most recently built Credential, for its refresh metrics.
+     * Null unless {@link #proactiveRefresh(long)} was used.
+     *
+     * @return
+     */
+    public TokenRefresher getTokenRefresher() {
+        return tokenRefresher;
+    }
+
     /**
      * Here the actual Credentials are built with any parameters provided to this class, such
      * as JsonFactory, Scope and HttpTransport. If any parameters are not provided, stock
      * options will be used.
+     * <p/>
+     * The Credential is built once and returned again by later calls, until any parameter of
+     * this builder changes. The P12 key is parsed in memory, once.
+     * <p/>
+     * Access tokens are persisted in the application files directory whenever they are
+     * refreshed. A newly built Credential starts with the persisted token if it is still valid,
+     * so a restarted application does not need a token exchange before its first request.
      *
      * @return
      * @throws IOException
      * @throws GeneralSecurityException
      */
-    public Credential build() throws IOException, GeneralSecurityException {
+    public synchronized Credential build() throws IOException, GeneralSecurityException {
+        if (builtCredential != null) {
+            GcsLog.d(TAG, "Returning previously built Credential");
+            return builtCredential;
+        }
+
         GoogleCredential.Builder credential = new GoogleCredential.Builder();
-        Log.d(TAG, "Initiated Builder");
+        GcsLog.d(TAG, "Initiated Builder");
 
 
         // 1. Service Account ID
         credential.setServiceAccountId(accountID);
-        Log.d(TAG, "Setup Account ID");
+        GcsLog.d(TAG, "Setup Account ID");
 
         // 2. Private Key
-        credential.setServiceAccountPrivateKeyFromP12File(
-                getGoogleCloudKeyFile(context, key_resource_ID));
-        Log.d(TAG, "Setup Private Key");
+        if (privateKey == null) {
+            privateKey = getGoogleCloudPrivateKey(context, key_resource_ID);
+            GcsLog.d(TAG, "Loaded Private Key");
+        }
+        credential.setServiceAccountPrivateKey(privateKey);
+        GcsLog.d(TAG, "Setup Private Key");
 
 
-        // 3. HttpTransport
+        // 3. HttpTransport (created once per TransportConfig, then shared by every built Credential)
         if (httpTransport != null) {
             credential.setTransport(httpTransport);
-            Log.d(TAG, "Setup given HttpTransport");
+            GcsLog.d(TAG, "Setup given HttpTransport");
+        } else if (transportConfig != null) {
+            if (createdTransport == null) {
+                createdTransport = transportConfig.createTransport();
+            }
+            credential.setTransport(createdTransport);
+            GcsLog.d(TAG, "Setup HttpTransport from TransportConfig");
         } else {
-            credential.setTransport(new ApacheHttpTransport());
-            Log.d(TAG, "Setup stock HttpTransport (ApacheHttpTransport)");
+            if (createdTransport == null) {
+                createdTransport = new ApacheHttpTransport();
+            }
+            credential.setTransport(createdTransport);
+            GcsLog.d(TAG, "Setup stock HttpTransport (ApacheHttpTransport)");
+        }
+
+        if (transportConfig != null) {
+            credential.setRequestInitializer(transportConfig.getRequestInitializer());
+            GcsLog.d(TAG, "Setup TransportConfig request initializer");
         }
 
 
         // 4. Scope
         if (scopes != null && scopes.size() > 0) {
             credential.setServiceAccountScopes(scopes);
-            Log.d(TAG, "Setup given scope");
+            GcsLog.d(TAG, "Setup given scope");
         } else {
             scopes = new ArrayList<>();
             scopes.add(StorageScopes.DEVSTORAGE_FULL_CONTROL);
             credential.setServiceAccountScopes(scopes);
-            Log.d(TAG, "Setup stock scope (DEVSTORAGE_FULL_CONTROL)");
+            GcsLog.d(TAG, "Setup stock scope (DEVSTORAGE_FULL_CONTROL)");
         }
 
 
         // 5. JsonFactory
         if (jsonFactory != null) {
             credential.setJsonFactory(jsonFactory);
-            Log.d(TAG, "Setup given JsonFactory");
+            GcsLog.d(TAG, "Setup given JsonFactory");
         } else {
-            credential.setJsonFactory(new JacksonFactory());
-            Log.d(TAG, "Setup stock JsonFactory (JacksonFactory)");
+            credential.setJsonFactory(JacksonFactory.getDefaultInstance());
+            GcsLog.d(TAG, "Setup stock JsonFactory (JacksonFactory)");
+        }
+
+
+        // 6. Token persistence
+        String tokenKey = accountID + ":" + scopes;
+        if (tokenStore == null) {
+            tokenStore = StoredCredential.getDefaultDataStore(
+                    new FileDataStoreFactory(new File(context.getFilesDir(), TOKEN_STORE_DIR)));
+        }
+        credential.addRefreshListener(new DataStoreCredentialRefreshListener(tokenKey, tokenStore));
+        GcsLog.d(TAG, "Setup token persistence");
+
+
+        // 7. Proactive refresh
+        if (tokenRefresher != null) {
+            tokenRefresher.stop();
+            tokenRefresher = null;
+        }
+
+        if (refreshMarginSeconds >= 0) {
+            tokenRefresher = new TokenRefresher(refreshMarginSeconds);
+            credential.addRefreshListener(tokenRefresher.getRefreshListener());
+            GcsLog.d(TAG, "Setup proactive token refresh");
+        }
+
+
+        // 8. Build
+        GoogleCredential googleCredential = credential.build();
+        GcsLog.d(TAG, "Building Google Credential");
+
+
+        // 9. Reuse persisted token
+        StoredCredential storedToken = tokenStore.get(tokenKey);
+        if (storedToken != null && storedToken.getAccessToken() != null
+                && storedToken.getExpirationTimeMilliseconds() != null
+                && storedToken.getExpirationTimeMilliseconds() - TOKEN_REUSE_MARGIN_MILLIS > System.currentTimeMillis()) {
+            googleCredential.setAccessToken(storedToken.getAccessToken());
+            googleCredential.setExpirationTimeMilliseconds(storedToken.getExpirationTimeMilliseconds());
+            GcsLog.d(TAG, "Reusing persisted access token");
         }
 
 
-        // 6. Build
-        GoogleCredential builtCredential = credential.build();
-        Log.d(TAG, "Building Google Credential");
+        if (tokenRefresher != null) {
+            tokenRefresher.start(googleCredential);
+        }
 
+        builtCredential = googleCredential;
 
-        Log.d(TAG, "Returning built Credential");
+        GcsLog.d(TAG, "Returning built Credential");
         return builtCredential;
     }
 
     /**
-     * This function returns a (temporary) File object pointing to the p12 key required
-     * for Google Cloud.
-     * The key is read into a File because that is what the Credential building process requires.
+     * This function reads the p12 key required for Google Cloud from the given raw resource,
+     * and returns the private key in it. The key is parsed straight from the resource stream,
+     * without any (temporary) file.
      *
      * @param context
      * @param key_resource_ID
      *
      * @return
      * @throws IOException
+     * @throws GeneralSecurityException
      */
-    private File getGoogleCloudKeyFile(Context context, int key_resource_ID) throws IOException {
+    private PrivateKey getGoogleCloudPrivateKey(Context context, int key_resource_ID) throws IOException, GeneralSecurityException {
         if (context == null) {
             throw new IllegalArgumentException("Given Context was null! Error!");
         }
@@ -253,20 +418,13 @@ public class CredentialBuilder {
         // The InputStream from the key asset. See: http://stackoverflow.com/a/10402757/2279240
         InputStream keyStream = context.getResources().openRawResource(key_resource_ID);
 
-        // The temporary file that will contain the key
-        File tempKeyFile = File.createTempFile("key", "p12");
-
-        // The OutputStream that will write the InputStream (key) to the temporary key.
-        OutputStream tempFileStream = new FileOutputStream(tempKeyFile);
-
-        int read = 0;
-        byte[] bytes = new byte[1024];
-
-        while ( (read = keyStream.read(bytes)) != -1 ) {
-            tempFileStream.write(bytes, 0, read);
+        try {
+            return SecurityUtils.loadPrivateKeyFromKeyStore(SecurityUtils.getPkcs12KeyStore(),
+                    keyStream, P12_PASSWORD, P12_ALIAS, P12_PASSWORD);
+        }
+        finally {
+            keyStream.close();
         }
-
-        return tempKeyFile;
     }
 
     /**
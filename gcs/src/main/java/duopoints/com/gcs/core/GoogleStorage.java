@@ -1,101 +1,158 @@
 package duopoints.com.gcs.core;
 
 import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.apache.ApacheHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.services.storage.Storage;
 
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
- * This class functions as a simple wrapper around the a single {@link Storage} instance, used
+ * This class functions as a simple, immutable handle to a single cloud storage 'Bucket', used
  * throughout the GoogleCloudStorage library for communication with the cloud storage service.
  * <p/>
  * The main purpose of this class is to make the use of the {@link Storage} reference easier, while
  * also providing an easier way to use the mandatory {@link Credential} necessary for the building
  * of the {@link Storage} instance.
  * <p/>
- * GoogleStorage uses a Singleton pattern, but will re-create if bucketName is different than
- * current Singleton bucketName. (Possibility to connect to multiple storage buckets.)
+ * GoogleStorage keeps a registry of handles, one per bucket. All handles built with the same
+ * {@link Credential} share a single {@link Storage} client (and with it the HttpTransport and
+ * JsonFactory), so switching between buckets never rebuilds the client. Building a handle for
+ * another bucket never changes existing handles.
  * <p/>
  * Created by bahram on 11.03.2015.
  */
 public class GoogleStorage {
-    private static volatile GoogleStorage singleton = null;
+    private static final String APPLICATION_NAME = "GoogleCloudStorage";
+
+    // Read without locking on the hot path, written while holding the GoogleStorage.class lock.
+    private static final ConcurrentHashMap<String, GoogleStorage> handles = new ConcurrentHashMap<>();
+
+    // The client shared by all handles built with the most recently used Credential.
+    private static Credential sharedCredential;
+    private static Storage sharedStorage;
 
-    private static String bucketName;
-    private static Storage storage;
+    // Read when each request is initialized, so a change applies to all existing clients.
+    private static volatile RetryPolicy retryPolicy = new RetryPolicy.Builder().build();
+
+    // Null by default, so nothing is measured unless a listener is set.
+    private static volatile MetricsListener metricsListener;
+
+    private final String bucketName;
+    private final Credential credential;
+    private final Storage storage;
 
 
     /**
      * A private constructor used only by the build() function in this class.
-     * All parameters are mandatory.
-     * <p/>
-     * A Credential can be build with the CredentialBuilder class.
      *
      * @param bucketName
      * @param credential
+     * @param storage
      */
-    private GoogleStorage(String bucketName, Credential credential) {
-        if (credential == null) {
-            throw new IllegalArgumentException("Given Credential was null! Error!");
-        }
-
-        if (bucketName == null || bucketName.length() < 1) {
-            throw new IllegalArgumentException("Given Bucket name is invalid! Error!");
-        }
-
+    private GoogleStorage(String bucketName, Credential credential, Storage storage) {
         this.bucketName = bucketName;
-        setupStorage(bucketName, credential);
+        this.credential = credential;
+        this.storage = storage;
     }
 
 
     /**
-     * This function class the private class constructor and passes the given parameters.
-     * The constructor also takes care of calling the necessary functions to setup the instance.
+     * Returns the GoogleStorage handle for the given bucket, building it if necessary.
      * <p/>
-     * The function, which initiates the singleton, is synchronized, so thread-safe.
+     * A Credential can be build with the CredentialBuilder class.
+     * <p/>
+     * The function is thread-safe. Looking up an existing handle takes no lock.
      * <p/>
-     * NOTE: If the bucketName is the same as last initiated singleton bucketName, the singleton
-     * will be reused. If not, the singleton will be recreated.
+     * NOTE: If a handle for the bucketName has already been built with the same Credential
+     * (or if the given Credential is null), the existing handle is returned. If it was built with
+     * a different Credential, a new handle replaces it in the registry; handles already handed
+     * out keep working with their own Credential.
      *
      * @param bucketName The name of the referencing 'Bucket' in the cloud storage.
      * @param credential
      *
      * @return
      */
-    public static synchronized GoogleStorage build(String bucketName, Credential credential) {
+    public static GoogleStorage build(String bucketName, Credential credential) {
         if (bucketName == null || bucketName.length() < 1) {
             throw new IllegalArgumentException("Given Bucket name is invalid! Error!");
         }
 
-        if (singleton != null) {
-            // If the singleton object is referencing a different bucket, re-create singleton.
-            if (!singleton.getBucketName().equals(bucketName)) {
-                singleton = new GoogleStorage(bucketName, credential);
+        GoogleStorage handle = handles.get(bucketName);
+        if (handle != null && (credential == null || handle.credential == credential)) {
+            return handle;
+        }
+
+        if (credential == null) {
+            throw new IllegalArgumentException("Given Credential was null! Error!");
+        }
+
+        synchronized ( GoogleStorage.class ) {
+            handle = handles.get(bucketName);
+
+            if (handle == null || handle.credential != credential) {
+                handle = new GoogleStorage(bucketName, credential, sharedStorage(credential));
+                handles.put(bucketName, handle);
             }
-        } else {
-            singleton = new GoogleStorage(bucketName, credential);
+
+            return handle;
+        }
+    }
+
+    /**
+     * Returns the GoogleStorage handle previously built for the given bucket, or null if no
+     * handle has been built for it yet. Takes no lock.
+     *
+     * @param bucketName
+     *
+     * @return
+     */
+    public static GoogleStorage get(String bucketName) {
+        if (bucketName == null) {
+            return null;
         }
 
-        return singleton;
+        return handles.get(bucketName);
     }
 
 
     /**
-     * Here the actual GoogleStorage instance is built with the given parameters provided.
+     * Returns the Storage client for the given Credential, reusing the shared client if it was
+     * built with the same Credential. Must be called while holding the GoogleStorage.class lock.
+     *
+     * @param credential
+     *
+     * @return
+     */
+    private static Storage sharedStorage(Credential credential) {
+        if (sharedStorage == null || sharedCredential != credential) {
+            sharedStorage = setupStorage(credential);
+            sharedCredential = credential;
+        }
+
+        return sharedStorage;
+    }
+
+    /**
+     * Here the actual Storage client is built with the given parameters provided.
      * Necessary information, like HttpTransport and JsonFactory, are check in the credential. If
      * not present in credential, stock options are used.
      *
-     * @param bucketName
      * @param credential
      *
      * @return
      */
-    private static void setupStorage(String bucketName, Credential credential) {
+    private static Storage setupStorage(Credential credential) {
         HttpTransport httpTransport;
         JsonFactory jsonFactory;
 
+        // The Credential transport is used, so token refreshes and data calls share connections.
         if (credential.getTransport() != null) {
             httpTransport = credential.getTransport();
         } else {
@@ -106,20 +163,110 @@ public class GoogleStorage {
         if (credential.getJsonFactory() != null) {
             jsonFactory = credential.getJsonFactory();
         } else {
-            jsonFactory = new JacksonFactory();
+            // Shared, as a JacksonFactory keeps its parser caches between requests.
+            jsonFactory = JacksonFactory.getDefaultInstance();
         }
 
-        storage = new Storage
-                .Builder(httpTransport, jsonFactory, credential)
-                .setApplicationName(bucketName)
+        return new Storage
+                .Builder(httpTransport, jsonFactory, requestInitializer(credential))
+                .setApplicationName(APPLICATION_NAME)
                 .build();
     }
 
+    /**
+     * Returns the HttpRequestInitializer for data calls: the Credential itself, followed by the
+     * request initializer of the Credential (like the one of a {@link TransportConfig}), so data
+     * calls and token refreshes share the same timeouts and settings, and last the current
+     * {@link RetryPolicy}.
+     *
+     * @param credential
+     *
+     * @return
+     */
+    private static HttpRequestInitializer requestInitializer(final Credential credential) {
+        final HttpRequestInitializer credentialInitializer = credential.getRequestInitializer();
+
+        return new HttpRequestInitializer() {
+            @Override
+            public void initialize(HttpRequest request) throws IOException {
+                credential.initialize(request);
+
+                if (credentialInitializer != null) {
+                    credentialInitializer.initialize(request);
+                }
+
+                RetryPolicy policy = retryPolicy;
+                if (policy != null) {
+                    policy.initialize(request);
+                }
+            }
+        };
+    }
+
+    /**
+     * Sets the RetryPolicy of all requests made through GoogleStorage handles, including those
+     * already built. By default a {@link RetryPolicy} with the default settings is used.
+     *
+     * @param policy Optional, null disables retries.
+     */
+    public static void setRetryPolicy(RetryPolicy policy) {
+        retryPolicy = policy;
+    }
+
+    /**
+     * Returns the current RetryPolicy, or null if retries are disabled.
+     *
+     * @return
+     */
+    public static RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Sets the MetricsListener that receives the measurements of all storage operations, like
+     * a {@link HistogramMetrics}.
+     *
+     * @param listener Optional, null (the default) disables all measuring.
+     */
+    public static void setMetricsListener(MetricsListener listener) {
+        metricsListener = listener;
+    }
+
+    /**
+     * Returns the current MetricsListener, or null if nothing is measured.
+     *
+     * @return
+     */
+    public static MetricsListener getMetricsListener() {
+        return metricsListener;
+    }
+
+
+    /**
+     * Returns a lazy, page by page listing of the objects in this bucket whose names start with
+     * the given prefix. See {@link ObjectListing}.
+     * <p/>
+     * NOTE: See full path explanation:
+     * https://github.com/Mithrandir21/GoogleCloudStorage#object-full-path
+     *
+     * @param prefix    Optional, may be null to list the whole bucket.
+     * @param delimiter Optional, like "/" to list a single "folder". May be null.
+     *
+     * @return
+     */
+    public ObjectListing listObjects(String prefix, String delimiter) {
+        return new ObjectListing(this, prefix, delimiter);
+    }
+
 
     public String getBucketName() {
         return bucketName;
     }
 
+    public Credential getCredential() {
+        return credential;
+    }
+
     public Storage getStorage() {
         return storage;
     }
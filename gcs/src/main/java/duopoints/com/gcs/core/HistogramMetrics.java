@@ -0,0 +1,170 @@
+package duopoints.com.gcs.core;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import duopoints.com.gcs.utils.LatencyHistogram;
+
+/**
+ * A {@link MetricsListener} that collects all measurements: a latency histogram and a failure
+ * count per operation, the total time per phase, the bytes sent and received, the number of
+ * retries and the cache hit rate.
+ * <p/>
+ * <pre>
+ * HistogramMetrics metrics = new HistogramMetrics();
+ * GoogleStorage.setMetricsListener(metrics);
+ * ...
+ * long p99 = metrics.getLatency(MetricsListener.Operation.READ).getPercentileMillis(0.99);
+ * </pre>
+ * Thread-safe.
+ */
+public class HistogramMetrics extends MetricsListener {
+    private final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+    private final Map<Operation, AtomicLong> failures = new EnumMap<>(Operation.class);
+    private final Map<Phase, AtomicLong> phaseNanos = new EnumMap<>(Phase.class);
+    private final Map<CacheTier, AtomicLong> cacheHits = new EnumMap<>(CacheTier.class);
+
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+
+    public HistogramMetrics() {
+        // Filled once, so the maps are only read afterwards and need no locking.
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, new LatencyHistogram());
+            failures.put(operation, new AtomicLong());
+        }
+
+        for (Phase phase : Phase.values()) {
+            phaseNanos.put(phase, new AtomicLong());
+        }
+
+        for (CacheTier tier : CacheTier.values()) {
+            cacheHits.put(tier, new AtomicLong());
+        }
+    }
+
+    @Override
+    public void onOperation(Operation operation, long durationNanos, boolean success) {
+        latencies.get(operation).record(durationNanos);
+
+        if (!success) {
+            failures.get(operation).incrementAndGet();
+        }
+    }
+
+    @Override
+    public void onPhase(Operation operation, Phase phase, long durationNanos) {
+        phaseNanos.get(phase).addAndGet(durationNanos);
+    }
+
+    @Override
+    public void onBytesSent(Operation operation, long bytes) {
+        bytesSent.addAndGet(bytes);
+    }
+
+    @Override
+    public void onBytesReceived(Operation operation, long bytes) {
+        bytesReceived.addAndGet(bytes);
+    }
+
+    @Override
+    public void onRetry(String method, int statusCode) {
+        retries.incrementAndGet();
+    }
+
+    @Override
+    public void onCacheHit(CacheTier tier) {
+        cacheHits.get(tier).incrementAndGet();
+    }
+
+    @Override
+    public void onCacheMiss() {
+        cacheMisses.incrementAndGet();
+    }
+
+    /**
+     * The latencies of the given operation, failed operations included.
+     *
+     * @param operation
+     *
+     * @return
+     */
+    public LatencyHistogram getLatency(Operation operation) {
+        return latencies.get(operation);
+    }
+
+    public long getFailureCount(Operation operation) {
+        return failures.get(operation).get();
+    }
+
+    /**
+     * The total time spent in the given phase, over all operations.
+     *
+     * @param phase
+     *
+     * @return
+     */
+    public long getPhaseMillis(Phase phase) {
+        return phaseNanos.get(phase).get() / 1000000;
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    public long getCacheHitCount(CacheTier tier) {
+        return cacheHits.get(tier).get();
+    }
+
+    public long getCacheMissCount() {
+        return cacheMisses.get();
+    }
+
+    /**
+     * The fraction of cache reads served without downloading the image, or 0 if the cache has
+     * not been read.
+     *
+     * @return
+     */
+    public double getCacheHitRate() {
+        long hits = 0;
+        for (AtomicLong tierHits : cacheHits.values()) {
+            hits += tierHits.get();
+        }
+
+        long reads = hits + cacheMisses.get();
+        return reads > 0 ? (double) hits / reads : 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("HistogramMetrics{");
+
+        for (Operation operation : Operation.values()) {
+            builder.append(operation).append(": ").append(latencies.get(operation))
+                    .append(", failed=").append(failures.get(operation).get()).append("; ");
+        }
+
+        for (Phase phase : Phase.values()) {
+            builder.append(phase).append("=").append(getPhaseMillis(phase)).append("ms; ");
+        }
+
+        return builder.append("sent=").append(getBytesSent())
+                .append(", received=").append(getBytesReceived())
+                .append(", retries=").append(getRetryCount())
+                .append(", cacheHitRate=").append(getCacheHitRate())
+                .append('}').toString();
+    }
+}
@@ -0,0 +1,102 @@
+package duopoints.com.gcs.core;
+
+/**
+ * Receives measurements of the storage operations, set with
+ * {@link GoogleStorage#setMetricsListener(MetricsListener)}. All methods do nothing, so a
+ * listener only overrides what it is interested in. {@link HistogramMetrics} collects all of
+ * them into latency histograms and counters.
+ * <p/>
+ * Without a listener (the default) nothing is measured at all. The methods are called on the
+ * threads doing the operations, and must be fast and thread-safe.
+ */
+public class MetricsListener {
+
+    /**
+     * The measured operations.
+     */
+    public enum Operation {
+        INSERT, READ, REPLACE, DELETE, STAT
+    }
+
+    /**
+     * The phases of an operation.
+     * <p/>
+     * ENCODE - compressing a Bitmap, excluding the time spent waiting on the network while the
+     * image is streamed into a request.
+     * TRANSFER - the requests and responses, including waiting for the cloud storage.
+     * DECODE - decoding a Bitmap, excluding the time spent waiting on the network while the image
+     * is streamed from a response.
+     */
+    public enum Phase {
+        ENCODE, TRANSFER, DECODE
+    }
+
+    /**
+     * The tiers of {@link duopoints.com.gcs.cache.CloudImageCache}.
+     */
+    public enum CacheTier {
+        MEMORY, DISK
+    }
+
+
+    /**
+     * Called when an operation has finished.
+     *
+     * @param operation
+     * @param durationNanos The duration of the whole operation.
+     * @param success       False if the operation failed, or found no (decodable) image.
+     */
+    public void onOperation(Operation operation, long durationNanos, boolean success) {
+    }
+
+    /**
+     * Called for every phase of an operation, before {@link #onOperation}.
+     *
+     * @param operation
+     * @param phase
+     * @param durationNanos
+     */
+    public void onPhase(Operation operation, Phase phase, long durationNanos) {
+    }
+
+    /**
+     * Called with the number of bytes of image data an operation has sent.
+     *
+     * @param operation
+     * @param bytes
+     */
+    public void onBytesSent(Operation operation, long bytes) {
+    }
+
+    /**
+     * Called with the number of bytes of image data an operation has received.
+     *
+     * @param operation
+     * @param bytes
+     */
+    public void onBytesReceived(Operation operation, long bytes) {
+    }
+
+    /**
+     * Called every time a {@link RetryPolicy} retries a request.
+     *
+     * @param method     The HTTP method of the request.
+     * @param statusCode The status code of the failed attempt, or 0 for an I/O error.
+     */
+    public void onRetry(String method, int statusCode) {
+    }
+
+    /**
+     * Called when an image is served from the given tier of a cache, without downloading it.
+     *
+     * @param tier
+     */
+    public void onCacheHit(CacheTier tier) {
+    }
+
+    /**
+     * Called when an image had to be downloaded by a cache.
+     */
+    public void onCacheMiss() {
+    }
+}
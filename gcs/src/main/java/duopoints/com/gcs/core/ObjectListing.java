@@ -0,0 +1,254 @@
+package duopoints.com.gcs.core;
+
+import android.util.Log;
+
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.Objects;
+import com.google.api.services.storage.model.StorageObject;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import duopoints.com.gcs.utils.GcsLog;
+
+/**
+ * A lazy, page by page listing of the objects in a bucket, created by
+ * {@link GoogleStorage#listObjects(String, String)}.
+ * <p/>
+ * Only one page is held at a time, so listing a bucket with millions of objects takes no more
+ * memory than listing a small one. While the caller works through a page, the next page is
+ * already being fetched in the background (see {@link #setPrefetch(boolean)}).
+ * <p/>
+ * With a delimiter, objects "inside folders" below the prefix are not listed; the folders are
+ * returned by {@link #getPrefixes()} instead. With prefix "photos/" and delimiter "/", the
+ * object "photos/a.png" is listed and "photos/2017/b.png" is returned as prefix "photos/2017/".
+ * <p/>
+ * Only the fields in {@link #setFields(String)} are requested and parsed, by default the name,
+ * size and generation of every object.
+ * <p/>
+ * Not thread-safe.
+ */
+public class ObjectListing {
+    private static final String TAG = "ObjectListing";
+
+    public static final String DEFAULT_FIELDS = "items(name,size,generation)";
+    public static final long DEFAULT_PAGE_SIZE = 1000;
+
+    // Always requested, as the listing can not continue without them.
+    private static final String PAGING_FIELDS = "nextPageToken,prefixes";
+
+    // Not the executor of AsyncCloudImageCRUD: a listing iterated on one of its threads would
+    // wait for a prefetch queued behind it, which never runs once all its threads wait alike.
+    private static final ExecutorService PREFETCHER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ObjectListing-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final GoogleStorage googleStorage;
+    private final String prefix;
+    private final String delimiter;
+
+    private long pageSize = DEFAULT_PAGE_SIZE;
+    private String fields = DEFAULT_FIELDS;
+    private boolean prefetch = true;
+
+    private boolean started;
+    private String nextPageToken;
+    private Future<Objects> prefetched;
+    private List<String> prefixes = Collections.emptyList();
+
+
+    ObjectListing(GoogleStorage googleStorage, String prefix, String delimiter) {
+        this.googleStorage = googleStorage;
+        this.prefix = prefix;
+        this.delimiter = delimiter;
+    }
+
+    /**
+     * The maximum number of objects (and prefixes) per page. Default is
+     * {@link #DEFAULT_PAGE_SIZE}, the maximum the cloud storage returns.
+     *
+     * @param pageSize
+     *
+     * @return
+     */
+    public ObjectListing setPageSize(long pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Given pageSize must be positive! Error!");
+        }
+
+        this.pageSize = pageSize;
+
+        return this;
+    }
+
+    /**
+     * The fields of the objects to request, as a fields mask like "items(name,size,updated)".
+     * Default is {@link #DEFAULT_FIELDS}. The paging fields are always requested.
+     *
+     * @param fields
+     *
+     * @return
+     */
+    public ObjectListing setFields(String fields) {
+        if (fields == null || fields.length() < 1) {
+            throw new IllegalArgumentException("Given fields was null or empty! Error!");
+        }
+
+        this.fields = fields;
+
+        return this;
+    }
+
+    /**
+     * Whether the next page is fetched in the background as soon as a page is returned.
+     * Default is true.
+     *
+     * @param prefetch
+     *
+     * @return
+     */
+    public ObjectListing setPrefetch(boolean prefetch) {
+        this.prefetch = prefetch;
+
+        return this;
+    }
+
+    /**
+     * Returns true if there is another page to fetch.
+     *
+     * @return
+     */
+    public boolean hasNextPage() {
+        return !started || nextPageToken != null;
+    }
+
+    /**
+     * Returns the objects of the next page, waiting for it if it has not been prefetched yet.
+     * The page can be empty, for example when it only has prefixes.
+     *
+     * @return
+     * @throws IOException
+     */
+    public List<StorageObject> nextPage() throws IOException {
+        if (!hasNextPage()) {
+            throw new NoSuchElementException("The listing has no more pages! Error!");
+        }
+
+        Objects page;
+
+        if (prefetched != null) {
+            // Cleared first, so a failed prefetch is fetched again by the next call.
+            Future<Objects> pending = prefetched;
+            prefetched = null;
+            page = await(pending);
+        } else {
+            page = fetch(nextPageToken);
+        }
+
+        started = true;
+        nextPageToken = page.getNextPageToken();
+        prefixes = page.getPrefixes() != null ? page.getPrefixes() : Collections.<String>emptyList();
+
+        if (nextPageToken != null && prefetch) {
+            final String pageToken = nextPageToken;
+
+            prefetched = PREFETCHER.submit(new Callable<Objects>() {
+                @Override
+                public Objects call() throws Exception {
+                    return fetch(pageToken);
+                }
+            });
+        }
+
+        return page.getItems() != null ? page.getItems() : Collections.<StorageObject>emptyList();
+    }
+
+    /**
+     * The prefixes ("folders") of the page last returned by {@link #nextPage()}. Only returned
+     * if the listing has a delimiter.
+     *
+     * @return
+     */
+    public List<String> getPrefixes() {
+        return prefixes;
+    }
+
+    /**
+     * Stops the listing, cancelling any prefetch in flight.
+     */
+    public void close() {
+        if (prefetched != null) {
+            prefetched.cancel(true);
+            prefetched = null;
+        }
+
+        started = true;
+        nextPageToken = null;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public String getDelimiter() {
+        return delimiter;
+    }
+
+
+    private Objects fetch(String pageToken) throws IOException {
+        Storage.Objects.List list = googleStorage.getStorage().objects()
+                .list(googleStorage.getBucketName())
+                .setMaxResults(pageSize)
+                .setFields(PAGING_FIELDS + "," + fields);
+
+        if (prefix != null) {
+            list.setPrefix(prefix);
+        }
+
+        if (delimiter != null) {
+            list.setDelimiter(delimiter);
+        }
+
+        if (pageToken != null) {
+            list.setPageToken(pageToken);
+        }
+
+        Objects page = list.execute();
+        if (GcsLog.isDebug()) {
+            Log.d(TAG, "Fetched page of " + (page.getItems() != null ? page.getItems().size() : 0) + " objects for prefix " + prefix);
+        }
+
+        return page;
+    }
+
+    private static Objects await(Future<Objects> page) throws IOException {
+        try {
+            return page.get();
+        }
+        catch ( ExecutionException e ) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+
+            throw new IOException(e.getCause());
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for page! Error!");
+        }
+    }
+}
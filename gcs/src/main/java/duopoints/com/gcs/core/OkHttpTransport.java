@@ -0,0 +1,280 @@
+package duopoints.com.gcs.core;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.util.StreamingContent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSink;
+
+/**
+ * An HttpTransport backed by an {@link OkHttpClient}, with its own connection pool (keep-alive
+ * and idle eviction included) and HTTP/2 where the server and platform support it.
+ * <p/>
+ * Redirects and retries are left to the google client, so the given OkHttpClient should not
+ * follow redirects or retry on connection failures itself, see
+ * {@link TransportConfig#createTransport()}.
+ * <p/>
+ * As with every HttpTransport, a response must be read to its end, closed or disconnected, so
+ * its connection is released.
+ */
+public class OkHttpTransport extends HttpTransport {
+    private final OkHttpClient client;
+    private final int maxRequestsPerHost;
+    private final ConcurrentHashMap<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+
+
+    /**
+     * @param client Mandatory.
+     */
+    public OkHttpTransport(OkHttpClient client) {
+        this(client, 0);
+    }
+
+    /**
+     * @param client             Mandatory.
+     * @param maxRequestsPerHost The maximum number of requests to a single host in flight at
+     *                           once, or 0 for no limit. Like the maxRequestsPerHost of an OkHttp
+     *                           Dispatcher, a request counts until its response arrives, not while
+     *                           its content is read, so open responses never block a new request.
+     *                           Requests beyond it wait, interruptibly.
+     */
+    OkHttpTransport(OkHttpClient client, int maxRequestsPerHost) {
+        if (client == null) {
+            throw new IllegalArgumentException("Given OkHttpClient was null! Error!");
+        }
+
+        this.client = client;
+        this.maxRequestsPerHost = maxRequestsPerHost;
+    }
+
+    public OkHttpClient getClient() {
+        return client;
+    }
+
+    @Override
+    public boolean supportsMethod(String method) {
+        return true;
+    }
+
+    @Override
+    protected LowLevelHttpRequest buildRequest(String method, String url) {
+        return new OkHttpRequest(method, url);
+    }
+
+    /**
+     * Closes the idle pooled connections.
+     */
+    @Override
+    public void shutdown() {
+        client.connectionPool().evictAll();
+    }
+
+
+    private Semaphore hostPermit(String host) {
+        Semaphore permit = hostPermits.get(host);
+        if (permit == null) {
+            Semaphore newPermit = new Semaphore(maxRequestsPerHost);
+            permit = hostPermits.putIfAbsent(host, newPermit);
+            if (permit == null) {
+                permit = newPermit;
+            }
+        }
+
+        return permit;
+    }
+
+
+    private class OkHttpRequest extends LowLevelHttpRequest {
+        private final String method;
+        private final Request.Builder builder;
+
+        private int connectTimeout = -1;
+        private int readTimeout = -1;
+
+        OkHttpRequest(String method, String url) {
+            this.method = method;
+            this.builder = new Request.Builder().url(url);
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            builder.addHeader(name, value);
+        }
+
+        @Override
+        public void setTimeout(int connectTimeout, int readTimeout) {
+            this.connectTimeout = connectTimeout;
+            this.readTimeout = readTimeout;
+        }
+
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+            if (getContentType() != null) {
+                builder.header("Content-Type", getContentType());
+            }
+
+            if (getContentEncoding() != null) {
+                builder.header("Content-Encoding", getContentEncoding());
+            }
+
+            builder.method(method, body());
+            Request request = builder.build();
+
+            if (maxRequestsPerHost <= 0) {
+                return new OkHttpResponse(clientForTimeouts().newCall(request).execute());
+            }
+
+            Semaphore permit = hostPermit(request.url().host());
+            try {
+                permit.acquire();
+            }
+            catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a request to " + request.url().host() + "! Error!");
+            }
+
+            try {
+                return new OkHttpResponse(clientForTimeouts().newCall(request).execute());
+            }
+            finally {
+                permit.release();
+            }
+        }
+
+        private RequestBody body() {
+            final StreamingContent content = getStreamingContent();
+
+            if (content == null) {
+                // OkHttp requires a body for these methods, even an empty one.
+                boolean requiresBody = "POST".equals(method) || "PUT".equals(method) || "PATCH".equals(method);
+                return requiresBody ? RequestBody.create(null, new byte[0]) : null;
+            }
+
+            final MediaType contentType = getContentType() != null ? MediaType.parse(getContentType()) : null;
+            final long contentLength = getContentLength();
+
+            return new RequestBody() {
+                @Override
+                public MediaType contentType() {
+                    return contentType;
+                }
+
+                @Override
+                public long contentLength() {
+                    return contentLength;
+                }
+
+                @Override
+                public void writeTo(BufferedSink sink) throws IOException {
+                    content.writeTo(sink.outputStream());
+                }
+            };
+        }
+
+        /**
+         * The client with the timeouts of this request. A derived client shares the connection
+         * pool of the original one.
+         */
+        private OkHttpClient clientForTimeouts() {
+            boolean sameConnect = connectTimeout < 0 || connectTimeout == client.connectTimeoutMillis();
+            boolean sameRead = readTimeout < 0 || readTimeout == client.readTimeoutMillis();
+
+            if (sameConnect && sameRead) {
+                return client;
+            }
+
+            OkHttpClient.Builder derived = client.newBuilder();
+            if (!sameConnect) {
+                derived.connectTimeout(connectTimeout, TimeUnit.MILLISECONDS);
+            }
+            if (!sameRead) {
+                derived.readTimeout(readTimeout, TimeUnit.MILLISECONDS)
+                        .writeTimeout(readTimeout, TimeUnit.MILLISECONDS);
+            }
+
+            return derived.build();
+        }
+    }
+
+    private static class OkHttpResponse extends LowLevelHttpResponse {
+        private final Response response;
+        private final Headers headers;
+
+        OkHttpResponse(Response response) {
+            this.response = response;
+            this.headers = response.headers();
+        }
+
+        @Override
+        public InputStream getContent() {
+            ResponseBody body = response.body();
+            return body != null ? body.byteStream() : null;
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return response.header("Content-Encoding");
+        }
+
+        @Override
+        public long getContentLength() {
+            ResponseBody body = response.body();
+            return body != null ? body.contentLength() : 0;
+        }
+
+        @Override
+        public String getContentType() {
+            return response.header("Content-Type");
+        }
+
+        @Override
+        public String getStatusLine() {
+            return "HTTP/1.1 " + response.code() + " " + response.message();
+        }
+
+        @Override
+        public int getStatusCode() {
+            return response.code();
+        }
+
+        @Override
+        public String getReasonPhrase() {
+            return response.message();
+        }
+
+        @Override
+        public int getHeaderCount() {
+            return headers.size();
+        }
+
+        @Override
+        public String getHeaderName(int index) {
+            return headers.name(index);
+        }
+
+        @Override
+        public String getHeaderValue(int index) {
+            return headers.value(index);
+        }
+
+        @Override
+        public void disconnect() {
+            response.close();
+        }
+    }
+}
@@ -0,0 +1,459 @@
+package duopoints.com.gcs.core;
+
+import android.util.Log;
+
+import com.google.api.client.googleapis.media.MediaHttpUploader;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.EmptyContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.client.http.UriTemplate;
+import com.google.api.client.http.json.JsonHttpContent;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.StorageObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import duopoints.com.gcs.utils.GcsLog;
+
+/**
+ * A resumable, chunked upload of a local file into a cloud storage bucket.
+ * <p/>
+ * The file is sent in chunks of {@link #setChunkSize(int)} bytes. After every chunk the
+ * session URI and the number of bytes acknowledged by the cloud storage are persisted in the
+ * given state file. If the upload is interrupted, even by a process restart, a new
+ * ResumableUpload for the same file and state file continues from the last acknowledged chunk
+ * instead of from zero.
+ * <p/>
+ * The upload protocol is the same one {@link MediaHttpUploader} speaks, but MediaHttpUploader
+ * can not continue a session it did not start itself, so the requests are built here directly
+ * from the {@link Storage} request factory (and with that the {@link Storage} credentials).
+ */
+public class ResumableUpload {
+    private static final String TAG = "ResumableUpload";
+
+    public static final int MINIMUM_CHUNK_SIZE = MediaHttpUploader.MINIMUM_CHUNK_SIZE;
+    public static final int DEFAULT_CHUNK_SIZE = 4 * MINIMUM_CHUNK_SIZE;
+
+    private static final int STATUS_CODE_RESUME_INCOMPLETE = 308;
+    private static final int STATUS_CODE_GONE = 410;
+
+    private static final String STATE_SESSION_URI = "sessionUri";
+    private static final String STATE_OFFSET = "offset";
+    private static final String STATE_LENGTH = "length";
+    private static final String STATE_BUCKET = "bucket";
+    private static final String STATE_NAME = "name";
+
+    private final Storage storage;
+    private final String bucketName;
+    private final String objectName;
+    private final File source;
+    private final String contentType;
+    private final File stateFile;
+
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private ProgressListener progressListener;
+    private String crc32c;
+    private String md5Hash;
+
+    private String sessionUri;
+    private long bytesUploaded;
+
+
+    /**
+     * All parameters are mandatory.
+     *
+     * @param storage
+     * @param bucketName
+     * @param objectName  The full path of the object in the bucket.
+     * @param source      The file to upload. Must not change while the upload is unfinished.
+     * @param contentType
+     * @param stateFile   The file the session state is persisted in.
+     */
+    public ResumableUpload(Storage storage, String bucketName, String objectName, File source, String contentType, File stateFile) {
+        if (storage == null) {
+            throw new IllegalArgumentException("Given Storage was null! Error!");
+        }
+
+        if (bucketName == null || bucketName.length() < 1) {
+            throw new IllegalArgumentException("Given Bucket name is invalid! Error!");
+        }
+
+        if (objectName == null || objectName.length() < 1) {
+            throw new IllegalArgumentException("Given objectName was null or empty! Error!");
+        }
+
+        if (source == null) {
+            throw new IllegalArgumentException("Given source File was null! Error!");
+        }
+
+        if (contentType == null || contentType.length() < 1) {
+            throw new IllegalArgumentException("Given contentType was null or empty! Error!");
+        }
+
+        if (stateFile == null) {
+            throw new IllegalArgumentException("Given state File was null! Error!");
+        }
+
+        this.storage = storage;
+        this.bucketName = bucketName;
+        this.objectName = objectName;
+        this.source = source;
+        this.contentType = contentType;
+        this.stateFile = stateFile;
+    }
+
+    /**
+     * Sets the number of bytes sent per request. Must be a multiple of
+     * {@link #MINIMUM_CHUNK_SIZE}, as required by the cloud storage.
+     *
+     * @param chunkSize
+     *
+     * @return
+     */
+    public ResumableUpload setChunkSize(int chunkSize) {
+        if (chunkSize < MINIMUM_CHUNK_SIZE || chunkSize % MINIMUM_CHUNK_SIZE != 0) {
+            throw new IllegalArgumentException("Given chunkSize must be a multiple of " + MINIMUM_CHUNK_SIZE + "! Error!");
+        }
+
+        this.chunkSize = chunkSize;
+
+        return this;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * The checksums of the source file, sent when the upload session is started so the cloud
+     * storage rejects the upload if the bytes it received differ. Computing them is left to the
+     * caller, ideally while the file is written, see {@link duopoints.com.gcs.utils.TransferChecksums}.
+     *
+     * @param crc32c  Optional, may be null.
+     * @param md5Hash Optional, may be null.
+     *
+     * @return
+     */
+    public ResumableUpload setChecksums(String crc32c, String md5Hash) {
+        this.crc32c = crc32c;
+        this.md5Hash = md5Hash;
+        return this;
+    }
+
+    /**
+     * Receives the number of bytes acknowledged after every chunk, on the uploading thread.
+     *
+     * @param progressListener Optional, may be null.
+     *
+     * @return
+     */
+    public ResumableUpload setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+        return this;
+    }
+
+    /**
+     * Returns the number of bytes the cloud storage has acknowledged so far.
+     *
+     * @return
+     */
+    public long getBytesUploaded() {
+        return bytesUploaded;
+    }
+
+    /**
+     * Uploads the source file, continuing any session persisted in the state file.
+     * <p/>
+     * If an IOException is thrown, the state file is left in place so a later call can resume.
+     * When the upload completes, the state file is deleted.
+     *
+     * @return The StorageObject created by the cloud storage.
+     * @throws IOException
+     */
+    public StorageObject upload() throws IOException {
+        if (!source.isFile()) {
+            throw new IOException("Source file (" + source + ") does not exist! Error!");
+        }
+
+        long length = source.length();
+
+        loadState(length);
+
+        if (sessionUri != null) {
+            if (GcsLog.isDebug()) {
+                Log.d(TAG, "Found persisted session for " + objectName + ", querying status.");
+            }
+
+            StorageObject finished = queryStatus(length);
+            if (finished != null) {
+                deleteState();
+                return finished;
+            }
+        }
+
+        if (sessionUri == null) {
+            sessionUri = initiate(length);
+            bytesUploaded = 0;
+            saveState(length);
+            if (GcsLog.isDebug()) {
+                Log.d(TAG, "Initiated new upload session for " + objectName);
+            }
+        }
+
+
+        RandomAccessFile file = new RandomAccessFile(source, "r");
+
+        try {
+            byte[] buffer = new byte[(int) Math.max(1, Math.min(chunkSize, length))];
+
+            while ( true ) {
+                file.seek(bytesUploaded);
+                int count = readFully(file, buffer, (int) Math.min(buffer.length, length - bytesUploaded));
+
+                if (GcsLog.isDebug()) {
+                    Log.d(TAG, "Uploading " + count + " bytes from offset " + bytesUploaded);
+                }
+                HttpContent content = new ByteArrayContent(contentType, buffer, 0, count);
+                String contentRange = count > 0
+                        ? "bytes " + bytesUploaded + "-" + (bytesUploaded + count - 1) + "/" + length
+                        : "bytes */" + length;
+
+                StorageObject finished = putToSession(content, contentRange);
+                if (finished != null) {
+                    bytesUploaded = length;
+                    deleteState();
+                    reportProgress(length);
+                    if (GcsLog.isDebug()) {
+                        Log.d(TAG, "Finished upload of " + objectName);
+                    }
+
+                    return finished;
+                }
+
+                if (sessionUri == null) {
+                    // The session expired, start over.
+                    sessionUri = initiate(length);
+                    bytesUploaded = 0;
+                    if (GcsLog.isDebug()) {
+                        Log.d(TAG, "Session expired, initiated new upload session for " + objectName);
+                    }
+                }
+
+                saveState(length);
+                reportProgress(length);
+            }
+        }
+        finally {
+            file.close();
+        }
+    }
+
+    private void reportProgress(long length) {
+        ProgressListener listener = progressListener;
+        if (listener != null) {
+            listener.onProgress(bytesUploaded, length);
+        }
+    }
+
+
+    /**
+     * Starts a new upload session and returns the session URI.
+     */
+    private String initiate(long length) throws IOException {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("bucket", bucketName);
+
+        GenericUrl url = new GenericUrl(UriTemplate.expand(storage.getRootUrl(),
+                "upload/" + storage.getServicePath() + "b/{bucket}/o", parameters, true));
+        url.set("uploadType", "resumable");
+        // Applies to the object returned when the upload completes.
+        url.set("fields", CloudObjectCRUD.INSERT_FIELDS);
+
+        StorageObject metadata = new StorageObject();
+        metadata.setBucket(bucketName);
+        metadata.setName(objectName);
+        metadata.setContentType(contentType);
+        metadata.setCrc32c(crc32c);
+        metadata.setMd5Hash(md5Hash);
+
+        HttpRequest request = storage.getRequestFactory()
+                .buildPostRequest(url, new JsonHttpContent(storage.getJsonFactory(), metadata));
+        request.getHeaders().set("X-Upload-Content-Type", contentType);
+        request.getHeaders().set("X-Upload-Content-Length", length);
+
+        HttpResponse response = request.execute();
+        try {
+            String location = response.getHeaders().getLocation();
+            if (location == null) {
+                throw new IOException("Upload session was not created, no Location returned! Error!");
+            }
+            return location;
+        }
+        finally {
+            response.disconnect();
+        }
+    }
+
+    /**
+     * Asks the cloud storage how many bytes of the session it has received.
+     * Returns the StorageObject if the upload already completed.
+     */
+    private StorageObject queryStatus(long length) throws IOException {
+        return putToSession(new EmptyContent(), "bytes */" + length);
+    }
+
+    /**
+     * Sends the given content to the current session. Returns the StorageObject if the upload
+     * completed, otherwise updates the acknowledged offset. If the session has expired,
+     * sessionUri is cleared.
+     */
+    private StorageObject putToSession(HttpContent content, String contentRange) throws IOException {
+        HttpRequest request = storage.getRequestFactory().buildPutRequest(new GenericUrl(sessionUri), content);
+        request.getHeaders().setContentRange(contentRange);
+        request.setParser(storage.getObjectParser());
+        request.setFollowRedirects(false);
+        request.setThrowExceptionOnExecuteError(false);
+
+        HttpResponse response = request.execute();
+        try {
+            int statusCode = response.getStatusCode();
+
+            if (HttpStatusCodes.isSuccess(statusCode)) {
+                return response.parseAs(StorageObject.class);
+            }
+
+            if (statusCode == STATUS_CODE_RESUME_INCOMPLETE) {
+                bytesUploaded = parseRangeEnd(response.getHeaders().getRange());
+                return null;
+            }
+
+            if (statusCode == HttpStatusCodes.STATUS_CODE_NOT_FOUND || statusCode == STATUS_CODE_GONE) {
+                sessionUri = null;
+                bytesUploaded = 0;
+                return null;
+            }
+
+            throw new HttpResponseException(response);
+        }
+        finally {
+            response.disconnect();
+        }
+    }
+
+    /**
+     * Returns the offset following the given Range header, like "bytes=0-262143".
+     * No header means nothing has been received.
+     */
+    private static long parseRangeEnd(String range) {
+        if (range == null) {
+            return 0;
+        }
+
+        return Long.parseLong(range.substring(range.indexOf('-') + 1).trim()) + 1;
+    }
+
+    private static int readFully(RandomAccessFile file, byte[] buffer, int length) throws IOException {
+        int total = 0;
+
+        while ( total < length ) {
+            int read = file.read(buffer, total, length - total);
+            if (read == -1) {
+                throw new IOException("Source file ended before its expected length! Error!");
+            }
+            total += read;
+        }
+
+        return total;
+    }
+
+    /**
+     * Loads the persisted session, if there is one for this object and source length.
+     */
+    private void loadState(long length) throws IOException {
+        sessionUri = null;
+        bytesUploaded = 0;
+
+        if (!stateFile.isFile()) {
+            return;
+        }
+
+        Properties state = new Properties();
+        FileInputStream input = new FileInputStream(stateFile);
+        try {
+            state.load(input);
+        }
+        finally {
+            input.close();
+        }
+
+        if (!bucketName.equals(state.getProperty(STATE_BUCKET))
+                || !objectName.equals(state.getProperty(STATE_NAME))
+                || !String.valueOf(length).equals(state.getProperty(STATE_LENGTH))) {
+            Log.w(TAG, "Persisted upload state does not match " + objectName + ", discarding it.");
+            deleteState();
+            return;
+        }
+
+        try {
+            sessionUri = state.getProperty(STATE_SESSION_URI);
+            bytesUploaded = Long.parseLong(state.getProperty(STATE_OFFSET, "0"));
+        }
+        catch ( NumberFormatException e ) {
+            sessionUri = null;
+            bytesUploaded = 0;
+        }
+    }
+
+    /**
+     * Persists the current session. Written to a temporary file first, so a crash while saving
+     * never leaves a half written state behind.
+     */
+    private void saveState(long length) throws IOException {
+        Properties state = new Properties();
+        state.setProperty(STATE_BUCKET, bucketName);
+        state.setProperty(STATE_NAME, objectName);
+        state.setProperty(STATE_LENGTH, String.valueOf(length));
+        state.setProperty(STATE_SESSION_URI, sessionUri);
+        state.setProperty(STATE_OFFSET, String.valueOf(bytesUploaded));
+
+        File tempFile = new File(stateFile.getPath() + ".tmp");
+        FileOutputStream output = new FileOutputStream(tempFile);
+        try {
+            state.store(output, null);
+            output.getFD().sync();
+        }
+        finally {
+            output.close();
+        }
+
+        if (!tempFile.renameTo(stateFile)) {
+            throw new IOException("Could not persist upload state to " + stateFile + "! Error!");
+        }
+    }
+
+    private void deleteState() {
+        if (stateFile.exists() && !stateFile.delete()) {
+            Log.w(TAG, "Could not delete upload state " + stateFile);
+        }
+    }
+
+
+    /**
+     * Receives the progress of a {@link ResumableUpload}.
+     */
+    public interface ProgressListener {
+        void onProgress(long bytesUploaded, long totalBytes);
+    }
+}
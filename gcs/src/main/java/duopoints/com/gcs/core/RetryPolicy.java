@@ -0,0 +1,477 @@
+package duopoints.com.gcs.core;
+
+import android.util.Log;
+
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpIOExceptionHandler;
+import com.google.api.client.http.HttpMethods;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseInterceptor;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.api.client.util.BackOff;
+import com.google.api.client.util.BackOffUtils;
+import com.google.api.client.util.ExponentialBackOff;
+import com.google.api.client.util.Sleeper;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import duopoints.com.gcs.utils.GcsLog;
+
+/**
+ * Retries requests that failed for a transient reason: a socket reset or timeout, or the cloud
+ * storage answering 408, 429 or 5xx. Set with {@link GoogleStorage#setRetryPolicy(RetryPolicy)}
+ * and applied to every request of the Storage clients built by {@link GoogleStorage}.
+ * <p/>
+ * The wait between attempts grows exponentially and is randomized (jitter), so clients that
+ * failed at the same moment do not retry in lockstep. Every request has its own budget: a
+ * maximum number of retries and a maximum total time.
+ * <p/>
+ * Only requests that can be safely sent twice are retried: GET, HEAD and PUT (which includes
+ * the chunks of a resumable upload), and any other request guarded by a generation or
+ * metageneration precondition. An insert without precondition is never retried, as the first
+ * attempt may already have succeeded.
+ * <p/>
+ * A circuit breaker fails requests fast during an outage. After
+ * {@link Builder#failureThreshold(int)} consecutive transient failures, requests fail at once
+ * with an IOException for {@link Builder#openMillis(long)}. After that a single request is let
+ * through; if it succeeds the breaker closes, otherwise it stays open for another period.
+ * <p/>
+ * Built with {@link Builder}. Thread-safe, and a single instance is meant to be shared.
+ */
+public class RetryPolicy implements HttpRequestInitializer {
+    private static final String TAG = "RetryPolicy";
+
+    public static final int DEFAULT_MAX_RETRIES = 5;
+    public static final int DEFAULT_INITIAL_INTERVAL_MILLIS = 500;
+    public static final int DEFAULT_MAX_INTERVAL_MILLIS = 30 * 1000;
+    public static final int DEFAULT_MAX_ELAPSED_MILLIS = 2 * 60 * 1000;
+    public static final double DEFAULT_MULTIPLIER = 2.0;
+    public static final double DEFAULT_RANDOMIZATION_FACTOR = 0.5;
+    public static final int DEFAULT_FAILURE_THRESHOLD = 10;
+    public static final long DEFAULT_OPEN_MILLIS = 30 * 1000;
+
+    private static final String HEADER_METHOD_OVERRIDE = "X-HTTP-Method-Override";
+    private static final String[] PRECONDITIONS = {
+            "ifGenerationMatch", "ifMetagenerationMatch", "generation"
+    };
+
+    private final int maxRetries;
+    private final int initialIntervalMillis;
+    private final int maxIntervalMillis;
+    private final int maxElapsedMillis;
+    private final double multiplier;
+    private final double randomizationFactor;
+    private final int failureThreshold;
+    private final long openMillis;
+
+    // Guarded by this.
+    private int consecutiveFailures;
+    private long openUntilMillis;
+
+    private Sleeper sleeper = Sleeper.DEFAULT;
+
+
+    private RetryPolicy(Builder builder) {
+        this.maxRetries = builder.maxRetries;
+        this.initialIntervalMillis = builder.initialIntervalMillis;
+        this.maxIntervalMillis = builder.maxIntervalMillis;
+        this.maxElapsedMillis = builder.maxElapsedMillis;
+        this.multiplier = builder.multiplier;
+        this.randomizationFactor = builder.randomizationFactor;
+        this.failureThreshold = builder.failureThreshold;
+        this.openMillis = builder.openMillis;
+    }
+
+    /**
+     * Sets up the given request to be retried according to this policy. Handlers already set
+     * on the request (like the token refresh of a Credential) are kept and run first.
+     *
+     * @param request
+     *
+     * @throws IOException
+     */
+    @Override
+    public void initialize(HttpRequest request) throws IOException {
+        // A single backoff for all attempts of this request, so the budget covers all of them.
+        final BackOff backOff = newBackOff(maxElapsedMillis);
+        final AtomicInteger retries = new AtomicInteger();
+
+        final HttpExecuteInterceptor interceptor = request.getInterceptor();
+        final HttpUnsuccessfulResponseHandler responseHandler = request.getUnsuccessfulResponseHandler();
+        final HttpIOExceptionHandler ioExceptionHandler = request.getIOExceptionHandler();
+        final HttpResponseInterceptor responseInterceptor = request.getResponseInterceptor();
+
+        // The underlying retries also cover the token refresh (401) of a Credential and
+        // redirects, so they are kept, and the retries of this policy are counted separately.
+        request.setNumberOfRetries(request.getNumberOfRetries() + maxRetries);
+
+        request.setInterceptor(new HttpExecuteInterceptor() {
+            @Override
+            public void intercept(HttpRequest request) throws IOException {
+                if (!allowRequest()) {
+                    throw new IOException("Circuit breaker is open after " + failureThreshold
+                            + " consecutive failures, request to " + request.getUrl().getRawPath() + " not sent! Error!");
+                }
+
+                if (interceptor != null) {
+                    interceptor.intercept(request);
+                }
+            }
+        });
+
+        request.setUnsuccessfulResponseHandler(new HttpUnsuccessfulResponseHandler() {
+            @Override
+            public boolean handleResponse(HttpRequest request, HttpResponse response, boolean supportsRetry) throws IOException {
+                if (responseHandler != null && responseHandler.handleResponse(request, response, supportsRetry)) {
+                    return true;
+                }
+
+                if (!isRetryable(response.getStatusCode())) {
+                    return false;
+                }
+
+                recordFailure();
+                return supportsRetry && retry(request, backOff, retries, response.getStatusCode());
+            }
+        });
+
+        request.setIOExceptionHandler(new HttpIOExceptionHandler() {
+            @Override
+            public boolean handleIOException(HttpRequest request, boolean supportsRetry) throws IOException {
+                if (ioExceptionHandler != null && ioExceptionHandler.handleIOException(request, supportsRetry)) {
+                    return true;
+                }
+
+                // A cancelled operation interrupts its thread, and must not be retried.
+                if (Thread.currentThread().isInterrupted()) {
+                    return false;
+                }
+
+                recordFailure();
+                return supportsRetry && retry(request, backOff, retries, 0);
+            }
+        });
+
+        request.setResponseInterceptor(new HttpResponseInterceptor() {
+            @Override
+            public void interceptResponse(HttpResponse response) throws IOException {
+                // Any answer but a transient error shows the cloud storage is reachable.
+                if (!isRetryable(response.getStatusCode())) {
+                    recordSuccess();
+                }
+
+                if (responseInterceptor != null) {
+                    responseInterceptor.interceptResponse(response);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns true if the circuit breaker is currently failing requests fast.
+     *
+     * @return
+     */
+    public synchronized boolean isCircuitOpen() {
+        return consecutiveFailures >= failureThreshold && System.currentTimeMillis() < openUntilMillis;
+    }
+
+    /**
+     * Returns true if the given HTTP status code is a transient failure worth retrying.
+     *
+     * @param statusCode
+     *
+     * @return
+     */
+    public boolean isRetryable(int statusCode) {
+        return statusCode == 408 || statusCode == 429 || (statusCode >= 500 && statusCode < 600);
+    }
+
+    /**
+     * Returns true if the given request can be sent again without changing its outcome.
+     *
+     * @param request
+     *
+     * @return
+     */
+    public boolean isIdempotent(HttpRequest request) {
+        String method = request.getHeaders().getFirstHeaderStringValue(HEADER_METHOD_OVERRIDE);
+        if (method == null) {
+            method = request.getRequestMethod();
+        }
+
+        if (HttpMethods.GET.equals(method) || HttpMethods.HEAD.equals(method) || HttpMethods.PUT.equals(method)) {
+            return true;
+        }
+
+        for (String precondition : PRECONDITIONS) {
+            if (request.getUrl().get(precondition) != null) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public int getMaxElapsedMillis() {
+        return maxElapsedMillis;
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    public long getOpenMillis() {
+        return openMillis;
+    }
+
+    /**
+     * Returns a new backoff with the intervals and jitter of this policy, which stops once the
+     * given time has passed.
+     *
+     * @param maxElapsedMillis
+     *
+     * @return
+     */
+    BackOff newBackOff(int maxElapsedMillis) {
+        return new ExponentialBackOff.Builder()
+                .setInitialIntervalMillis(initialIntervalMillis)
+                .setMaxIntervalMillis(maxIntervalMillis)
+                .setMaxElapsedTimeMillis(maxElapsedMillis)
+                .setMultiplier(multiplier)
+                .setRandomizationFactor(randomizationFactor)
+                .build();
+    }
+
+    /**
+     * Replaces the Sleeper used to wait between attempts.
+     */
+    void setSleeper(Sleeper sleeper) {
+        this.sleeper = sleeper;
+    }
+
+
+    /**
+     * Waits before the next attempt of the given request, which failed with the given status
+     * code (0 for an I/O error). Returns false if the request may not be retried, its budget
+     * (retries or time) is used up or the circuit breaker opened meanwhile.
+     */
+    private boolean retry(HttpRequest request, BackOff backOff, AtomicInteger retries, int statusCode) throws IOException {
+        if (!isIdempotent(request) || isCircuitOpen()) {
+            return false;
+        }
+
+        if (retries.get() >= maxRetries) {
+            if (maxRetries > 0) {
+                Log.w(TAG, "Retry budget used up for " + request.getUrl().getRawPath());
+            }
+            return false;
+        }
+
+        try {
+            if (BackOffUtils.next(sleeper, backOff)) {
+                retries.incrementAndGet();
+
+                if (GcsLog.isDebug()) {
+                    Log.d(TAG, "Retrying " + request.getRequestMethod() + " " + request.getUrl().getRawPath() + " after status " + statusCode);
+                }
+
+                MetricsListener metrics = GoogleStorage.getMetricsListener();
+                if (metrics != null) {
+                    metrics.onRetry(request.getRequestMethod(), statusCode);
+                }
+                return true;
+            }
+
+            Log.w(TAG, "Retry budget used up for " + request.getUrl().getRawPath());
+            return false;
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Returns true if a request may be sent. While open, lets a single request through each
+     * time the open period ends.
+     */
+    private synchronized boolean allowRequest() {
+        if (consecutiveFailures < failureThreshold) {
+            return true;
+        }
+
+        long now = System.currentTimeMillis();
+        if (now < openUntilMillis) {
+            return false;
+        }
+
+        openUntilMillis = now + openMillis;
+        GcsLog.d(TAG, "Circuit breaker letting a trial request through.");
+        return true;
+    }
+
+    private synchronized void recordFailure() {
+        consecutiveFailures++;
+
+        if (consecutiveFailures == failureThreshold) {
+            openUntilMillis = System.currentTimeMillis() + openMillis;
+            Log.w(TAG, "Circuit breaker opened after " + consecutiveFailures + " consecutive failures.");
+        }
+    }
+
+    private synchronized void recordSuccess() {
+        if (consecutiveFailures >= failureThreshold) {
+            GcsLog.d(TAG, "Circuit breaker closed.");
+        }
+
+        consecutiveFailures = 0;
+        openUntilMillis = 0;
+    }
+
+
+    /**
+     * Builder for {@link RetryPolicy}.
+     */
+    public static class Builder {
+        private int maxRetries = DEFAULT_MAX_RETRIES;
+        private int initialIntervalMillis = DEFAULT_INITIAL_INTERVAL_MILLIS;
+        private int maxIntervalMillis = DEFAULT_MAX_INTERVAL_MILLIS;
+        private int maxElapsedMillis = DEFAULT_MAX_ELAPSED_MILLIS;
+        private double multiplier = DEFAULT_MULTIPLIER;
+        private double randomizationFactor = DEFAULT_RANDOMIZATION_FACTOR;
+        private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+        private long openMillis = DEFAULT_OPEN_MILLIS;
+
+
+        /**
+         * The maximum number of retries of a single request by this policy. 0 disables them,
+         * leaving only the circuit breaker. The token refresh (401) of a Credential and redirects
+         * are retried regardless, and do not count. Default is {@link #DEFAULT_MAX_RETRIES}.
+         *
+         * @param maxRetries
+         *
+         * @return
+         */
+        public Builder maxRetries(int maxRetries) {
+            if (maxRetries < 0) {
+                throw new IllegalArgumentException("Given maxRetries can not be negative! Error!");
+            }
+
+            this.maxRetries = maxRetries;
+
+            return this;
+        }
+
+        /**
+         * The wait before the first retry, and the maximum wait between two attempts. Each wait
+         * is the previous one times the multiplier. Defaults are
+         * {@link #DEFAULT_INITIAL_INTERVAL_MILLIS}, {@link #DEFAULT_MAX_INTERVAL_MILLIS} and
+         * {@link #DEFAULT_MULTIPLIER}.
+         *
+         * @param initialIntervalMillis
+         * @param maxIntervalMillis
+         * @param multiplier            At least 1.
+         *
+         * @return
+         */
+        public Builder backOff(int initialIntervalMillis, int maxIntervalMillis, double multiplier) {
+            if (initialIntervalMillis < 1 || maxIntervalMillis < initialIntervalMillis) {
+                throw new IllegalArgumentException("Given intervals must be positive and in order! Error!");
+            }
+
+            if (multiplier < 1) {
+                throw new IllegalArgumentException("Given multiplier must be at least 1! Error!");
+            }
+
+            this.initialIntervalMillis = initialIntervalMillis;
+            this.maxIntervalMillis = maxIntervalMillis;
+            this.multiplier = multiplier;
+
+            return this;
+        }
+
+        /**
+         * How much every wait is randomized: a factor of 0.5 waits between 50% and 150% of the
+         * computed wait. Default is {@link #DEFAULT_RANDOMIZATION_FACTOR}.
+         *
+         * @param randomizationFactor Between 0 (no jitter) and 1.
+         *
+         * @return
+         */
+        public Builder jitter(double randomizationFactor) {
+            if (randomizationFactor < 0 || randomizationFactor >= 1) {
+                throw new IllegalArgumentException("Given randomizationFactor must be between 0 and 1! Error!");
+            }
+
+            this.randomizationFactor = randomizationFactor;
+
+            return this;
+        }
+
+        /**
+         * The maximum time spent on a single request, all attempts included, after which it is
+         * no longer retried. Default is {@link #DEFAULT_MAX_ELAPSED_MILLIS}.
+         *
+         * @param maxElapsedMillis
+         *
+         * @return
+         */
+        public Builder maxElapsedMillis(int maxElapsedMillis) {
+            if (maxElapsedMillis < 1) {
+                throw new IllegalArgumentException("Given maxElapsedMillis must be positive! Error!");
+            }
+
+            this.maxElapsedMillis = maxElapsedMillis;
+
+            return this;
+        }
+
+        /**
+         * The number of consecutive transient failures that opens the circuit breaker. Default
+         * is {@link #DEFAULT_FAILURE_THRESHOLD}.
+         *
+         * @param failureThreshold
+         *
+         * @return
+         */
+        public Builder failureThreshold(int failureThreshold) {
+            if (failureThreshold < 1) {
+                throw new IllegalArgumentException("Given failureThreshold must be positive! Error!");
+            }
+
+            this.failureThreshold = failureThreshold;
+
+            return this;
+        }
+
+        /**
+         * How long the open circuit breaker fails requests fast before letting a trial request
+         * through. Default is {@link #DEFAULT_OPEN_MILLIS}.
+         *
+         * @param openMillis
+         *
+         * @return
+         */
+        public Builder openMillis(long openMillis) {
+            if (openMillis < 1) {
+                throw new IllegalArgumentException("Given openMillis must be positive! Error!");
+            }
+
+            this.openMillis = openMillis;
+
+            return this;
+        }
+
+        public RetryPolicy build() {
+            return new RetryPolicy(this);
+        }
+    }
+}
@@ -0,0 +1,433 @@
+package duopoints.com.gcs.core;
+
+import android.util.Log;
+
+import com.google.api.client.http.HttpResponse;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.StorageObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import duopoints.com.gcs.utils.Crc32c;
+import duopoints.com.gcs.utils.GcsLog;
+
+/**
+ * A parallel, resumable download of a large object into a local file.
+ * <p/>
+ * The object is split into segments of {@link #setSegmentSize(long)} bytes, fetched with
+ * ranged GET requests over several connections at the same time. The destination file is
+ * preallocated to the size of the object and every segment is written straight to its position
+ * through a {@link FileChannel}, so segments can arrive in any order.
+ * <p/>
+ * Every finished segment is recorded in the given state file. If the download fails, even by a
+ * process restart, a new SegmentedDownload with the same destination and state file only fetches
+ * the segments that were not finished. All segments are pinned to the generation of the object
+ * when the download started; if the object has been replaced since, the download starts over.
+ * <p/>
+ * Once complete, the CRC32C of the file is compared with the CRC32C of the object.
+ */
+public class SegmentedDownload {
+    private static final String TAG = "SegmentedDownload";
+
+    public static final long DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int STATUS_CODE_PARTIAL_CONTENT = 206;
+
+    private static final String STATE_BUCKET = "bucket";
+    private static final String STATE_NAME = "name";
+    private static final String STATE_GENERATION = "generation";
+    private static final String STATE_SIZE = "size";
+    private static final String STATE_SEGMENT_SIZE = "segmentSize";
+    private static final String STATE_COMPLETED = "completed";
+
+    private final GoogleStorage googleStorage;
+    private final String objectFullPath;
+    private final File destination;
+    private final File stateFile;
+
+    private long segmentSize = DEFAULT_SEGMENT_SIZE;
+    private int parallelism = DEFAULT_PARALLELISM;
+
+    // Guarded by this while downloading.
+    private BitSet completed = new BitSet();
+
+
+    /**
+     * All parameters are mandatory.
+     * <p/>
+     * NOTE: See full path explanation:
+     * https://github.com/Mithrandir21/GoogleCloudStorage#object-full-path
+     *
+     * @param googleStorage
+     * @param objectFullPath
+     * @param destination    The file the object is downloaded into.
+     * @param stateFile      The file the finished segments are recorded in.
+     */
+    public SegmentedDownload(GoogleStorage googleStorage, String objectFullPath, File destination, File stateFile) {
+        if (googleStorage == null) {
+            throw new IllegalArgumentException("Given GoogleStorage was null! Error!");
+        }
+
+        if (objectFullPath == null || objectFullPath.length() < 1) {
+            throw new IllegalArgumentException("Given objectFullPath was null or empty! Error!");
+        }
+
+        if (destination == null) {
+            throw new IllegalArgumentException("Given destination File was null! Error!");
+        }
+
+        if (stateFile == null) {
+            throw new IllegalArgumentException("Given state File was null! Error!");
+        }
+
+        this.googleStorage = googleStorage;
+        this.objectFullPath = objectFullPath;
+        this.destination = destination;
+        this.stateFile = stateFile;
+    }
+
+    /**
+     * The number of bytes fetched per request. Default is {@link #DEFAULT_SEGMENT_SIZE}.
+     * A download is only resumed with the segment size it was started with.
+     *
+     * @param segmentSize
+     *
+     * @return
+     */
+    public SegmentedDownload setSegmentSize(long segmentSize) {
+        if (segmentSize < 1) {
+            throw new IllegalArgumentException("Given segmentSize must be positive! Error!");
+        }
+
+        this.segmentSize = segmentSize;
+
+        return this;
+    }
+
+    /**
+     * The number of segments fetched at the same time. Default is {@link #DEFAULT_PARALLELISM}.
+     *
+     * @param parallelism
+     *
+     * @return
+     */
+    public SegmentedDownload setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Given parallelism must be positive! Error!");
+        }
+
+        this.parallelism = parallelism;
+
+        return this;
+    }
+
+    /**
+     * Downloads the object, continuing any download recorded in the state file, and returns the
+     * metadata of the downloaded object.
+     * <p/>
+     * If an IOException is thrown, the destination and state file are left in place so a later
+     * call can resume. When the download completes, the state file is deleted.
+     *
+     * @return
+     * @throws IOException
+     */
+    public StorageObject download() throws IOException {
+        Storage.Objects.Get metadataGet = googleStorage.getStorage().objects()
+                .get(googleStorage.getBucketName(), objectFullPath);
+        metadataGet.setFields("name,size,generation,crc32c");
+
+        final StorageObject metadata = metadataGet.execute();
+        final long size = metadata.getSize().longValue();
+        if (GcsLog.isDebug()) {
+            Log.d(TAG, "Downloading " + objectFullPath + " (" + size + " bytes, generation " + metadata.getGeneration() + ")");
+        }
+
+        loadState(metadata);
+
+        final int segmentCount = (int) ((size + segmentSize - 1) / segmentSize);
+        final RandomAccessFile file = new RandomAccessFile(destination, "rw");
+
+        try {
+            file.setLength(size);
+            final FileChannel channel = file.getChannel();
+
+            List<Integer> pending = new ArrayList<>();
+            synchronized ( this ) {
+                for (int i = completed.nextClearBit(0); i < segmentCount; i = completed.nextClearBit(i + 1)) {
+                    pending.add(i);
+                }
+            }
+            if (GcsLog.isDebug()) {
+                Log.d(TAG, (segmentCount - pending.size()) + " of " + segmentCount + " segments already downloaded.");
+            }
+
+            fetchSegments(pending, metadata, size, channel);
+
+            channel.force(false);
+        }
+        finally {
+            file.close();
+        }
+
+        verify(metadata, size);
+        deleteState();
+        if (GcsLog.isDebug()) {
+            Log.d(TAG, "Finished download of " + objectFullPath);
+        }
+
+        return metadata;
+    }
+
+
+    /**
+     * Fetches the given segments in parallel. Every segment is recorded as soon as it has
+     * finished, and the first failure stops the segments that have not started yet.
+     */
+    private void fetchSegments(List<Integer> pending, final StorageObject metadata, final long size, final FileChannel channel) throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, pending.size()), new ThreadFactory() {
+            private int count;
+
+            @Override
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SegmentedDownload-" + (++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        try {
+            List<Future<Void>> segments = new ArrayList<>(pending.size());
+
+            for (final int index : pending) {
+                segments.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        long start = index * segmentSize;
+                        long end = Math.min(start + segmentSize, size) - 1;
+
+                        fetchSegment(metadata, start, end, channel);
+                        markCompleted(index, metadata, channel);
+
+                        return null;
+                    }
+                }));
+            }
+
+            IOException failure = null;
+            for (Future<Void> segment : segments) {
+                try {
+                    segment.get();
+                }
+                catch ( ExecutionException e ) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof IOException
+                                ? (IOException) e.getCause() : new IOException(e.getCause());
+
+                        // Segments in flight finish (and are recorded), the rest never start.
+                        // Not interrupted, as that would close the shared FileChannel.
+                        for (Future<Void> other : segments) {
+                            other.cancel(false);
+                        }
+                    }
+                }
+                catch ( CancellationException e ) {
+                    // Cancelled after an earlier failure.
+                }
+                catch ( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for segments! Error!");
+                }
+            }
+
+            if (failure != null) {
+                throw failure;
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Fetches the given (inclusive) byte range of the pinned generation, and writes it to its
+     * position in the file.
+     */
+    private void fetchSegment(StorageObject metadata, long start, long end, FileChannel channel) throws IOException {
+        Storage.Objects.Get get = googleStorage.getStorage().objects()
+                .get(googleStorage.getBucketName(), objectFullPath)
+                .setGeneration(metadata.getGeneration());
+        get.getRequestHeaders().setRange("bytes=" + start + "-" + end);
+
+        HttpResponse response = get.executeMedia();
+
+        try {
+            if (response.getStatusCode() != STATUS_CODE_PARTIAL_CONTENT
+                    && !(start == 0 && end == metadata.getSize().longValue() - 1)) {
+                // A full response to a ranged request would be written at the wrong position.
+                throw new IOException("Range request for " + objectFullPath + " was not answered with a range! Error!");
+            }
+
+            InputStream in = response.getContent();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = start;
+            int read;
+
+            while ( position <= end && (read = in.read(buffer, 0, (int) Math.min(buffer.length, end - position + 1))) != -1 ) {
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+
+                while ( data.hasRemaining() ) {
+                    position += channel.write(data, position);
+                }
+            }
+
+            if (position != end + 1) {
+                throw new IOException("Segment of " + objectFullPath + " ended early at " + position + "! Error!");
+            }
+        }
+        finally {
+            response.disconnect();
+        }
+    }
+
+    /**
+     * Records the given segment as finished. Its bytes are forced to storage first, so the state
+     * never claims a segment that would be lost by a crash.
+     */
+    private synchronized void markCompleted(int index, StorageObject metadata, FileChannel channel) throws IOException {
+        channel.force(false);
+        completed.set(index);
+        saveState(metadata);
+    }
+
+    /**
+     * Compares the CRC32C of the downloaded file with the one of the object. A mismatch discards
+     * the download, as it can not be known which segment is wrong.
+     */
+    private void verify(StorageObject metadata, long size) throws IOException {
+        if (metadata.getCrc32c() == null) {
+            return;
+        }
+
+        String actual = Crc32c.of(destination, 0, size).toBase64();
+        if (!actual.equals(metadata.getCrc32c())) {
+            deleteState();
+            destination.delete();
+
+            throw new IOException("CRC32C of downloaded " + objectFullPath + " did not match! Error!");
+        }
+
+        if (GcsLog.isDebug()) {
+            Log.d(TAG, "Verified CRC32C of " + objectFullPath);
+        }
+    }
+
+    /**
+     * Loads the recorded segments, if they belong to the same generation of the object and were
+     * made with the same segment size, and the destination file still exists.
+     */
+    private synchronized void loadState(StorageObject metadata) throws IOException {
+        completed = new BitSet();
+
+        if (!stateFile.isFile()) {
+            return;
+        }
+
+        Properties state = new Properties();
+        FileInputStream input = new FileInputStream(stateFile);
+        try {
+            state.load(input);
+        }
+        finally {
+            input.close();
+        }
+
+        if (!googleStorage.getBucketName().equals(state.getProperty(STATE_BUCKET))
+                || !objectFullPath.equals(state.getProperty(STATE_NAME))
+                || !String.valueOf(metadata.getGeneration()).equals(state.getProperty(STATE_GENERATION))
+                || !String.valueOf(metadata.getSize()).equals(state.getProperty(STATE_SIZE))
+                || !String.valueOf(segmentSize).equals(state.getProperty(STATE_SEGMENT_SIZE))
+                || !destination.isFile()) {
+            Log.w(TAG, "Persisted download state does not match " + objectFullPath + ", discarding it.");
+            deleteState();
+            return;
+        }
+
+        try {
+            for (String index : state.getProperty(STATE_COMPLETED, "").split(",")) {
+                if (index.length() > 0) {
+                    completed.set(Integer.parseInt(index));
+                }
+            }
+        }
+        catch ( NumberFormatException e ) {
+            completed = new BitSet();
+        }
+    }
+
+    /**
+     * Persists the finished segments. Written to a temporary file first, so a crash while saving
+     * never leaves a half written state behind.
+     */
+    private void saveState(StorageObject metadata) throws IOException {
+        StringBuilder indexes = new StringBuilder();
+        for (int i = completed.nextSetBit(0); i >= 0; i = completed.nextSetBit(i + 1)) {
+            if (indexes.length() > 0) {
+                indexes.append(',');
+            }
+            indexes.append(i);
+        }
+
+        Properties state = new Properties();
+        state.setProperty(STATE_BUCKET, googleStorage.getBucketName());
+        state.setProperty(STATE_NAME, objectFullPath);
+        state.setProperty(STATE_GENERATION, String.valueOf(metadata.getGeneration()));
+        state.setProperty(STATE_SIZE, String.valueOf(metadata.getSize()));
+        state.setProperty(STATE_SEGMENT_SIZE, String.valueOf(segmentSize));
+        state.setProperty(STATE_COMPLETED, indexes.toString());
+
+        File tempFile = new File(stateFile.getPath() + ".tmp");
+        FileOutputStream output = new FileOutputStream(tempFile);
+        try {
+            state.store(output, null);
+            output.getFD().sync();
+        }
+        finally {
+            output.close();
+        }
+
+        if (!tempFile.renameTo(stateFile)) {
+            throw new IOException("Could not persist download state to " + stateFile + "! Error!");
+        }
+    }
+
+    private void deleteState() {
+        if (stateFile.exists() && !stateFile.delete()) {
+            Log.w(TAG, "Could not delete download state " + stateFile);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package duopoints.com.gcs.core;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.auth.oauth2.CredentialRefreshListener;
+import com.google.api.client.auth.oauth2.TokenErrorResponse;
+import com.google.api.client.auth.oauth2.TokenResponse;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import duopoints.com.gcs.utils.GcsLog;
+
+/**
+ * Refreshes the access token of a {@link Credential} in the background, a configurable margin
+ * before it expires, so no request on the request path has to wait for a token refresh.
+ * <p/>
+ * Refreshes are single-flight: concurrent calls of {@link #refreshNow()} result in one refresh,
+ * and a token refreshed on the request path (for example after a 401) reschedules the
+ * background refresh instead of causing another one.
+ * <p/>
+ * Timing metrics of the background refreshes are available for monitoring.
+ */
+public class TokenRefresher {
+    private static final String TAG = "TokenRefresher";
+
+    // Delay before retrying a failed refresh.
+    private static final long RETRY_DELAY_SECONDS = 30;
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "TokenRefresher");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final long marginSeconds;
+    private final Object refreshLock = new Object();
+    private final CredentialRefreshListener refreshListener = new RescheduleListener();
+
+    private volatile Credential credential;
+    private ScheduledFuture<?> scheduled;
+
+    private volatile long refreshCount;
+    private volatile long failureCount;
+    private volatile long tokenResponseCount;
+    private volatile long lastRefreshMillis;
+    private volatile long totalRefreshMillis;
+
+
+    /**
+     * @param marginSeconds How long before expiry the token is refreshed.
+     */
+    public TokenRefresher(long marginSeconds) {
+        if (marginSeconds < 0) {
+            throw new IllegalArgumentException("Given marginSeconds can not be negative! Error!");
+        }
+
+        this.marginSeconds = marginSeconds;
+    }
+
+    /**
+     * The listener that must be added to the Credential, so refreshes done outside of this
+     * TokenRefresher reschedule the background refresh.
+     *
+     * @return
+     */
+    public CredentialRefreshListener getRefreshListener() {
+        return refreshListener;
+    }
+
+    /**
+     * Starts refreshing the given Credential in the background.
+     *
+     * @param credential
+     */
+    public void start(Credential credential) {
+        if (credential == null) {
+            throw new IllegalArgumentException("Given Credential was null! Error!");
+        }
+
+        this.credential = credential;
+        schedule();
+    }
+
+    /**
+     * Stops the background refreshing.
+     */
+    public synchronized void stop() {
+        credential = null;
+
+        if (scheduled != null) {
+            scheduled.cancel(false);
+            scheduled = null;
+        }
+    }
+
+    /**
+     * Refreshes the token now, unless another refresh finished while this call waited for it
+     * (single-flight). Returns true if the Credential has a fresh token afterwards.
+     *
+     * @return
+     * @throws IOException
+     */
+    public boolean refreshNow() throws IOException {
+        Credential current = credential;
+        if (current == null) {
+            throw new IllegalStateException("TokenRefresher has not been started! Error!");
+        }
+
+        long seenResponses = tokenResponseCount;
+
+        synchronized ( refreshLock ) {
+            if (tokenResponseCount != seenResponses) {
+                // Someone else refreshed while we waited.
+                return true;
+            }
+
+            long start = SystemClock.elapsedRealtime();
+            boolean refreshed = false;
+
+            try {
+                refreshed = current.refreshToken();
+            }
+            finally {
+                long duration = SystemClock.elapsedRealtime() - start;
+                lastRefreshMillis = duration;
+
+                if (refreshed) {
+                    refreshCount++;
+                    totalRefreshMillis += duration;
+                } else {
+                    failureCount++;
+                }
+            }
+
+            return refreshed;
+        }
+    }
+
+    /**
+     * The number of successful refreshes done by this TokenRefresher.
+     */
+    public long getRefreshCount() {
+        return refreshCount;
+    }
+
+    /**
+     * The number of failed refreshes done by this TokenRefresher.
+     */
+    public long getFailureCount() {
+        return failureCount;
+    }
+
+    /**
+     * The number of new tokens the Credential received, including those refreshed on the
+     * request path. More token responses than refreshes means requests still stall on refreshes.
+     */
+    public long getTokenResponseCount() {
+        return tokenResponseCount;
+    }
+
+    /**
+     * The duration of the most recent refresh, in milliseconds.
+     */
+    public long getLastRefreshMillis() {
+        return lastRefreshMillis;
+    }
+
+    /**
+     * The average duration of the successful refreshes, in milliseconds.
+     */
+    public long getAverageRefreshMillis() {
+        long count = refreshCount;
+        return count > 0 ? totalRefreshMillis / count : 0;
+    }
+
+
+    /**
+     * Schedules the next refresh for marginSeconds before the current token expires,
+     * replacing any scheduled refresh.
+     */
+    private synchronized void schedule() {
+        Credential current = credential;
+        if (current == null) {
+            return;
+        }
+
+        Long expiresIn = current.getExpiresInSeconds();
+        long delay = expiresIn != null && current.getAccessToken() != null
+                ? Math.max(0, expiresIn - marginSeconds) : 0;
+
+        scheduleIn(delay);
+    }
+
+    private synchronized void scheduleIn(long delaySeconds) {
+        if (scheduled != null) {
+            scheduled.cancel(false);
+        }
+
+        scheduled = SCHEDULER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                refreshInBackground();
+            }
+        }, delaySeconds, TimeUnit.SECONDS);
+
+        if (GcsLog.isDebug()) {
+            Log.d(TAG, "Scheduled token refresh in " + delaySeconds + " seconds");
+        }
+    }
+
+    private void refreshInBackground() {
+        try {
+            if (credential == null) {
+                return;
+            }
+
+            if (refreshNow()) {
+                // The listener has rescheduled.
+                return;
+            }
+
+            Log.w(TAG, "Token refresh failed, retrying in " + RETRY_DELAY_SECONDS + " seconds");
+        }
+        catch ( Exception e ) {
+            Log.w(TAG, "Token refresh failed, retrying in " + RETRY_DELAY_SECONDS + " seconds: " + e.getMessage());
+        }
+
+        scheduleIn(RETRY_DELAY_SECONDS);
+    }
+
+
+    /**
+     * Counts every new token and schedules the next refresh from its expiry.
+     */
+    private class RescheduleListener implements CredentialRefreshListener {
+        @Override
+        public void onTokenResponse(Credential credential, TokenResponse tokenResponse) throws IOException {
+            tokenResponseCount++;
+            schedule();
+        }
+
+        @Override
+        public void onTokenErrorResponse(Credential credential, TokenErrorResponse tokenErrorResponse) throws IOException {
+        }
+    }
+}
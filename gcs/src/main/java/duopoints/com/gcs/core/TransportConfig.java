@@ -0,0 +1,320 @@
+package duopoints.com.gcs.core;
+
+import android.util.Log;
+
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+
+/**
+ * The configuration of the HTTP communication with the cloud storage: which transport backend
+ * to use, how many idle connections it keeps, how long idle connections are kept alive, the
+ * connect and read timeouts and whether GZip is used.
+ * <p/>
+ * Given to {@link CredentialBuilder#transportConfig(TransportConfig)}, a single transport is
+ * created and shared by the credential (token refreshes) and by every {@link GoogleStorage}
+ * built with that credential (data calls).
+ * <p/>
+ * Built with {@link Builder}. Unset values keep the stock behaviour of the transport.
+ */
+public class TransportConfig {
+    private static final String TAG = "TransportConfig";
+
+    // The timeouts of a google client request, used when none are configured.
+    private static final int DEFAULT_TIMEOUT_MILLIS = 20 * 1000;
+    // The pool defaults of OkHttp.
+    private static final int DEFAULT_MAX_IDLE_CONNECTIONS = 5;
+    private static final long DEFAULT_KEEP_ALIVE_MILLIS = 5 * 60 * 1000;
+
+    /**
+     * The available HTTP transport backends.
+     * <p/>
+     * OKHTTP - {@link OkHttpTransport}, with its own connection pool configured here. Idle
+     * connections are evicted by the pool itself once their keep-alive has passed.
+     * NET_HTTP - {@link NetHttpTransport} over HttpURLConnection, which on Android is backed by
+     * the platform HTTP stack. Its connection pool is process wide and belongs to the app, so
+     * maxConnections, maxConnectionsPerRoute and keepAlive do not apply to it.
+     */
+    public enum Backend {
+        OKHTTP, NET_HTTP
+    }
+
+    private final Backend backend;
+    private final int maxConnections;
+    private final int maxConnectionsPerRoute;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final long keepAliveMillis;
+    private final boolean gzip;
+
+    private final HttpRequestInitializer requestInitializer = new ConfiguredRequestInitializer();
+
+
+    private TransportConfig(Builder builder) {
+        this.backend = builder.backend;
+        this.maxConnections = builder.maxConnections;
+        this.maxConnectionsPerRoute = builder.maxConnectionsPerRoute;
+        this.connectTimeoutMillis = builder.connectTimeoutMillis;
+        this.readTimeoutMillis = builder.readTimeoutMillis;
+        this.keepAliveMillis = builder.keepAliveMillis;
+        this.gzip = builder.gzip;
+    }
+
+    /**
+     * Creates a new HttpTransport according to this configuration.
+     * The transport is meant to be created once and shared.
+     *
+     * @return
+     */
+    public HttpTransport createTransport() {
+        if (backend == Backend.NET_HTTP) {
+            Log.d(TAG, "Created NetHttpTransport");
+            return new NetHttpTransport();
+        }
+
+        Log.d(TAG, "Created pooled OkHttpTransport");
+        return new OkHttpTransport(newOkHttpClient(), maxConnectionsPerRoute);
+    }
+
+    /**
+     * Returns the HttpRequestInitializer that applies the timeouts and GZip setting of this
+     * configuration to a request. Any interceptor already set on the request (like the one of a
+     * Credential) is kept and runs first.
+     *
+     * @return
+     */
+    public HttpRequestInitializer getRequestInitializer() {
+        return requestInitializer;
+    }
+
+    public Backend getBackend() {
+        return backend;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public int getReadTimeoutMillis() {
+        return readTimeoutMillis;
+    }
+
+    public long getKeepAliveMillis() {
+        return keepAliveMillis;
+    }
+
+    public boolean isGzip() {
+        return gzip;
+    }
+
+
+    /**
+     * Builds an OkHttpClient on a connection pool of the configured size. Connections are kept
+     * alive for the configured duration, after which the pool closes them.
+     *
+     * @return
+     */
+    private OkHttpClient newOkHttpClient() {
+        int connectTimeout = connectTimeoutMillis > 0 ? connectTimeoutMillis : DEFAULT_TIMEOUT_MILLIS;
+        int readTimeout = readTimeoutMillis > 0 ? readTimeoutMillis : DEFAULT_TIMEOUT_MILLIS;
+        int maxIdleConnections = maxConnections > 0 ? maxConnections : DEFAULT_MAX_IDLE_CONNECTIONS;
+        long keepAlive = keepAliveMillis > 0 ? keepAliveMillis : DEFAULT_KEEP_ALIVE_MILLIS;
+
+        return new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(maxIdleConnections, keepAlive, TimeUnit.MILLISECONDS))
+                .connectTimeout(connectTimeout, TimeUnit.MILLISECONDS)
+                .readTimeout(readTimeout, TimeUnit.MILLISECONDS)
+                .writeTimeout(readTimeout, TimeUnit.MILLISECONDS)
+                // Redirects and retries are the business of the google client, not of the connection.
+                .followRedirects(false)
+                .followSslRedirects(false)
+                .retryOnConnectionFailure(false)
+                .build();
+    }
+
+
+    /**
+     * Applies the timeouts and GZip setting to every request it initializes.
+     */
+    private class ConfiguredRequestInitializer implements HttpRequestInitializer {
+        @Override
+        public void initialize(HttpRequest request) throws IOException {
+            if (connectTimeoutMillis > 0) {
+                request.setConnectTimeout(connectTimeoutMillis);
+            }
+
+            if (readTimeoutMillis > 0) {
+                request.setReadTimeout(readTimeoutMillis);
+            }
+
+            if (!gzip) {
+                // Applied when executed, as the google client sets up GZip after initializing.
+                final HttpExecuteInterceptor existing = request.getInterceptor();
+
+                request.setInterceptor(new HttpExecuteInterceptor() {
+                    @Override
+                    public void intercept(HttpRequest request) throws IOException {
+                        if (existing != null) {
+                            existing.intercept(request);
+                        }
+
+                        request.setEncoding(null);
+                        request.getHeaders().setAcceptEncoding(null);
+                    }
+                });
+            }
+        }
+    }
+
+
+    /**
+     * Builder for {@link TransportConfig}.
+     */
+    public static class Builder {
+        private Backend backend = Backend.OKHTTP;
+        private int maxConnections;
+        private int maxConnectionsPerRoute;
+        private int connectTimeoutMillis;
+        private int readTimeoutMillis;
+        private long keepAliveMillis;
+        private boolean gzip = true;
+
+
+        /**
+         * The transport backend. Default is {@link Backend#OKHTTP}.
+         *
+         * @param backend
+         *
+         * @return
+         */
+        public Builder backend(Backend backend) {
+            if (backend == null) {
+                throw new IllegalArgumentException("Given Backend was null! Error!");
+            }
+
+            this.backend = backend;
+
+            return this;
+        }
+
+        /**
+         * The maximum number of idle connections kept in the pool.
+         *
+         * @param maxConnections
+         *
+         * @return
+         */
+        public Builder maxConnections(int maxConnections) {
+            if (maxConnections < 1) {
+                throw new IllegalArgumentException("Given maxConnections must be positive! Error!");
+            }
+
+            this.maxConnections = maxConnections;
+
+            return this;
+        }
+
+        /**
+         * The maximum number of requests to a single host in flight at once. Like the
+         * maxRequestsPerHost of an OkHttp Dispatcher, a request counts from when it is sent until
+         * its response arrives; reading the content of the response does not count, so open
+         * media streams never block a new request. Requests beyond this number wait for a
+         * response to arrive, and give up with an InterruptedIOException if interrupted.
+         *
+         * @param maxConnectionsPerRoute
+         *
+         * @return
+         */
+        public Builder maxConnectionsPerRoute(int maxConnectionsPerRoute) {
+            if (maxConnectionsPerRoute < 1) {
+                throw new IllegalArgumentException("Given maxConnectionsPerRoute must be positive! Error!");
+            }
+
+            this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+
+            return this;
+        }
+
+        /**
+         * @param connectTimeoutMillis
+         *
+         * @return
+         */
+        public Builder connectTimeout(int connectTimeoutMillis) {
+            if (connectTimeoutMillis < 0) {
+                throw new IllegalArgumentException("Given connectTimeout can not be negative! Error!");
+            }
+
+            this.connectTimeoutMillis = connectTimeoutMillis;
+
+            return this;
+        }
+
+        /**
+         * @param readTimeoutMillis
+         *
+         * @return
+         */
+        public Builder readTimeout(int readTimeoutMillis) {
+            if (readTimeoutMillis < 0) {
+                throw new IllegalArgumentException("Given readTimeout can not be negative! Error!");
+            }
+
+            this.readTimeoutMillis = readTimeoutMillis;
+
+            return this;
+        }
+
+        /**
+         * How long an idle connection is kept open for reuse (and its TLS session with it),
+         * before it is evicted from the pool.
+         *
+         * @param keepAliveMillis
+         *
+         * @return
+         */
+        public Builder keepAlive(long keepAliveMillis) {
+            if (keepAliveMillis < 0) {
+                throw new IllegalArgumentException("Given keepAlive can not be negative! Error!");
+            }
+
+            this.keepAliveMillis = keepAliveMillis;
+
+            return this;
+        }
+
+        /**
+         * Whether JSON request bodies are GZip compressed and GZip compressed responses are
+         * accepted. Default is true. Media uploads are never GZip compressed.
+         *
+         * @param gzip
+         *
+         * @return
+         */
+        public Builder gzip(boolean gzip) {
+            this.gzip = gzip;
+
+            return this;
+        }
+
+        public TransportConfig build() {
+            return new TransportConfig(this);
+        }
+    }
+}
@@ -0,0 +1,866 @@
+package duopoints.com.gcs.core;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.graphics.Bitmap;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.util.BackOff;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import duopoints.com.gcs.utils.EncodeOptions;
+import duopoints.com.gcs.utils.GcsLog;
+import duopoints.com.gcs.utils.MediaManipulation;
+import duopoints.com.gcs.utils.TransferChecksums;
+
+/**
+ * A persistent queue of uploads (and deletions) of images, for a single bucket, that survives
+ * being offline and process restarts.
+ * <p/>
+ * An enqueued image is encoded once into a staged file, and the operation is appended to a
+ * journal file, before the enqueue returns. Uploads are resumable, so a retried upload neither
+ * encodes the image again nor resends the acknowledged chunks.
+ * <p/>
+ * The queue is drained in the background, at most {@link #setParallelism(int)} operations at a
+ * time, whenever an operation is enqueued and whenever the device gets connected. Only the
+ * latest operation enqueued for an imageFullPath is executed: enqueueing a replacement (or a
+ * deletion) of an image that has not been uploaded yet discards the older upload.
+ * <p/>
+ * Failures the cloud storage reports as transient, and failures to reach it at all, keep the
+ * operation in the queue and pause the draining. The queue resumes after a backoff, with the
+ * intervals of the {@link RetryPolicy} of {@link GoogleStorage} growing up to its maximum
+ * interval, or as soon as the device gets connected (or {@link #drain()} is called). Any other
+ * failure drops the operation.
+ * <p/>
+ * <pre>
+ * UploadQueue queue = UploadQueue.get(context, googleStorage);
+ * queue.addListener(listener);
+ * queue.enqueueUpload("user/album/photo.jpg", bitmap, MediaManipulation.SupportedImageFormats.jpg);
+ * </pre>
+ * Requires the ACCESS_NETWORK_STATE permission, declared by the library.
+ * <p/>
+ * NOTE: See full path explanation:
+ * https://github.com/Mithrandir21/GoogleCloudStorage#object-full-path
+ */
+public class UploadQueue {
+    private static final String TAG = "UploadQueue";
+
+    public static final int DEFAULT_PARALLELISM = 2;
+
+    private static final String QUEUE_DIR = "gcs-upload-queue";
+    private static final String JOURNAL = "journal";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Journal lines: "ADD <id> UPLOAD <contentType> <crc32c> <md5Hash> <path>",
+    // "ADD <id> DELETE - - - <path>" and "DONE <id>".
+    private static final String ADD = "ADD";
+    private static final String DONE = "DONE";
+
+    // The journal is rewritten once it holds this many more lines than there are operations left.
+    private static final int COMPACT_THRESHOLD = 64;
+
+    private static final Map<String, UploadQueue> queues = new HashMap<>();
+
+    // Resumes queues paused by a transient failure once their backoff has passed.
+    private static final ScheduledExecutorService RETRY_SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "UploadQueue-retry");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Context context;
+    private final String bucketName;
+    private final File directory;
+    private final File journalFile;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    // All guarded by this.
+    private final LinkedHashMap<String, Operation> pending = new LinkedHashMap<>();
+    private final Map<String, Operation> running = new HashMap<>();
+    private GoogleStorage googleStorage;
+    private FileOutputStream journal;
+    private int journalLines;
+    private long nextId = 1;
+    private int parallelism = DEFAULT_PARALLELISM;
+    private boolean paused;
+    private BackOff retryBackOff;
+    private ScheduledFuture<?> retryTask;
+    private BroadcastReceiver connectivityReceiver;
+
+
+    /**
+     * Returns the queue of the bucket of the given GoogleStorage, opening it (and resuming the
+     * operations left in it) if necessary. Later operations of the queue are sent with the given
+     * GoogleStorage.
+     * <p/>
+     * Opening a queue reads its journal, so call it off the main thread.
+     *
+     * @param context
+     * @param googleStorage
+     *
+     * @return
+     * @throws IOException If the journal of the queue can not be read or written.
+     */
+    public static UploadQueue get(Context context, GoogleStorage googleStorage) throws IOException {
+        if (context == null) {
+            throw new IllegalArgumentException("Given Context was null! Error!");
+        }
+
+        if (googleStorage == null) {
+            throw new IllegalArgumentException("Given GoogleStorage was null! Error!");
+        }
+
+        UploadQueue queue;
+        synchronized ( UploadQueue.class ) {
+            queue = queues.get(googleStorage.getBucketName());
+
+            if (queue == null) {
+                queue = new UploadQueue(context.getApplicationContext(), googleStorage);
+                queues.put(googleStorage.getBucketName(), queue);
+                queue.registerConnectivityReceiver();
+            }
+        }
+
+        queue.setGoogleStorage(googleStorage);
+        queue.drain();
+
+        return queue;
+    }
+
+
+    private UploadQueue(Context context, GoogleStorage googleStorage) throws IOException {
+        this.context = context;
+        this.bucketName = googleStorage.getBucketName();
+        this.googleStorage = googleStorage;
+        this.directory = new File(context.getFilesDir(), QUEUE_DIR + "/" + MediaManipulation.hashName(bucketName));
+        this.journalFile = new File(directory, JOURNAL);
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create upload queue directory " + directory + "! Error!");
+        }
+
+        load();
+    }
+
+    /**
+     * Encodes the given image into a staged file and queues its upload. Returns once the upload
+     * is persisted, so call it off the main thread. The image can be recycled afterwards.
+     * <p/>
+     * See {@link #enqueueUpload(String, Bitmap, EncodeOptions)}.
+     *
+     * @param imageFullPath
+     * @param image
+     * @param format
+     *
+     * @throws IOException
+     */
+    public void enqueueUpload(String imageFullPath, Bitmap image, MediaManipulation.SupportedImageFormats format) throws IOException {
+        if (format == null) {
+            throw new IllegalArgumentException("Given SupportedImageFormats was null! Error!");
+        }
+
+        enqueueUpload(imageFullPath, image, EncodeOptions.of(format));
+    }
+
+    /**
+     * Encodes the given image with the given EncodeOptions into a staged file and queues its
+     * upload, replacing any image already at the imageFullPath. Any upload or deletion of the
+     * same imageFullPath still waiting in the queue is discarded.
+     * <p/>
+     * Returns once the upload is persisted, so call it off the main thread. The image can be
+     * recycled afterwards.
+     *
+     * @param imageFullPath
+     * @param image
+     * @param options
+     *
+     * @throws IOException
+     */
+    public void enqueueUpload(String imageFullPath, Bitmap image, EncodeOptions options) throws IOException {
+        if ((imageFullPath == null || imageFullPath.length() < 1)) {
+            throw new IllegalArgumentException("Given imageFullPath was null or empty! Error!");
+        }
+
+        if (image == null) {
+            throw new IllegalArgumentException("Given image was null! Error!");
+        }
+
+        if (options == null) {
+            throw new IllegalArgumentException("Given EncodeOptions was null! Error!");
+        }
+
+
+        long id = nextId();
+        TransferChecksums checksums;
+        try {
+            // The checksums are computed while encoding, and sent so the cloud storage rejects a corrupted upload.
+            checksums = CloudImageCRUD.stageImage(image, options, stagedFile(id), stateFile(id));
+        }
+        catch ( IOException e ) {
+            stagedFile(id).delete();
+            throw e;
+        }
+
+        add(new Operation(id, Operation.UPLOAD, imageFullPath, options.getContentType(), checksums.getCrc32c(), checksums.getMd5Hash()));
+    }
+
+    /**
+     * Queues the deletion of the image at the given imageFullPath. Any upload of the same
+     * imageFullPath still waiting in the queue is discarded. An image that does not exist
+     * counts as deleted.
+     *
+     * @param imageFullPath
+     *
+     * @throws IOException
+     */
+    public void enqueueDelete(String imageFullPath) throws IOException {
+        if ((imageFullPath == null || imageFullPath.length() < 1)) {
+            throw new IllegalArgumentException("Given imageFullPath was null or empty! Error!");
+        }
+
+        add(new Operation(nextId(), Operation.DELETE, imageFullPath, null, null, null));
+    }
+
+    /**
+     * Starts executing the queued operations, if the device is connected. Resumes a queue
+     * paused by a transient failure, without waiting for its backoff.
+     */
+    public synchronized void drain() {
+        cancelRetry();
+        retryBackOff = null;
+        paused = false;
+        schedule();
+    }
+
+    /**
+     * The maximum number of operations executed at the same time. Default is
+     * {@link #DEFAULT_PARALLELISM}.
+     *
+     * @param parallelism
+     *
+     * @return
+     */
+    public synchronized UploadQueue setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Given parallelism must be positive! Error!");
+        }
+
+        this.parallelism = parallelism;
+        schedule();
+
+        return this;
+    }
+
+    public synchronized int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * The number of operations not finished yet, running ones included.
+     *
+     * @return
+     */
+    public synchronized int getPendingCount() {
+        return pending.size() + running.size();
+    }
+
+    /**
+     * The imageFullPaths with an operation not finished yet, running ones included.
+     *
+     * @return
+     */
+    public synchronized Set<String> getPendingPaths() {
+        Set<String> paths = new HashSet<>(pending.keySet());
+        paths.addAll(running.keySet());
+        return paths;
+    }
+
+    /**
+     * Adds a Listener, called on the callback Executor of {@link AsyncCloudImageCRUD}
+     * (the main thread by default).
+     *
+     * @param listener
+     */
+    public void addListener(Listener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Given Listener was null! Error!");
+        }
+
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Stops draining and closes the journal. Running operations finish, but are only recorded
+     * as done the next time the queue is opened (and then executed again if they had not
+     * finished).
+     */
+    public void close() {
+        synchronized ( UploadQueue.class ) {
+            if (queues.get(bucketName) == this) {
+                queues.remove(bucketName);
+            }
+        }
+
+        synchronized ( this ) {
+            if (connectivityReceiver != null) {
+                context.unregisterReceiver(connectivityReceiver);
+                connectivityReceiver = null;
+            }
+
+            cancelRetry();
+            closeJournal();
+        }
+    }
+
+
+    private synchronized void setGoogleStorage(GoogleStorage googleStorage) {
+        this.googleStorage = googleStorage;
+    }
+
+    private synchronized long nextId() {
+        return nextId++;
+    }
+
+    private synchronized void add(Operation operation) throws IOException {
+        if (journal == null) {
+            discard(operation);
+            throw new IOException("UploadQueue is closed! Error!");
+        }
+
+        appendJournal(operation.toJournalLine());
+
+        Operation previous = pending.put(operation.path, operation);
+        if (previous != null) {
+            if (GcsLog.isDebug()) {
+                Log.d(TAG, "Replaced queued operation on " + operation.path);
+            }
+            finish(previous);
+        }
+
+        schedule();
+    }
+
+    /**
+     * Starts pending operations until the parallelism is reached. An operation is not started
+     * while an older operation on the same path is still running.
+     */
+    private synchronized void schedule() {
+        if (paused || journal == null || !isConnected()) {
+            return;
+        }
+
+        Executor executor = AsyncCloudImageCRUD.getExecutor();
+
+        Iterator<Operation> iterator = pending.values().iterator();
+        while ( iterator.hasNext() && running.size() < parallelism ) {
+            final Operation operation = iterator.next();
+            if (running.containsKey(operation.path)) {
+                continue;
+            }
+
+            iterator.remove();
+            running.put(operation.path, operation);
+
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    execute(operation);
+                }
+            });
+        }
+    }
+
+    private void execute(final Operation operation) {
+        GoogleStorage storage;
+        synchronized ( this ) {
+            storage = googleStorage;
+        }
+
+        if (GcsLog.isDebug()) {
+            Log.d(TAG, "Executing queued " + operation.type + " of " + operation.path);
+        }
+        Exception failure = null;
+
+        try {
+            if (Operation.UPLOAD.equals(operation.type)) {
+                new ResumableUpload(storage.getStorage(), storage.getBucketName(), operation.path,
+                        stagedFile(operation.id), operation.contentType, stateFile(operation.id))
+                        .setChecksums(operation.crc32c, operation.md5Hash)
+                        .setProgressListener(new ResumableUpload.ProgressListener() {
+                            @Override
+                            public void onProgress(long bytesUploaded, long totalBytes) {
+                                notifyProgress(operation.path, bytesUploaded, totalBytes);
+                            }
+                        })
+                        .upload();
+            }
+            else {
+                try {
+                    CloudImageCRUD.deleteCloudImage(storage, operation.path);
+                }
+                catch ( IOException e ) {
+                    if (!CloudObjectCRUD.isNotFound(e)) {
+                        throw e;
+                    }
+                }
+            }
+        }
+        catch ( Exception e ) {
+            failure = e;
+        }
+
+        finished(operation, failure);
+    }
+
+    private synchronized void finished(Operation operation, Exception failure) {
+        running.remove(operation.path);
+
+        // A newer operation on the same path makes retrying this one pointless.
+        boolean superseded = pending.containsKey(operation.path);
+        boolean retry = failure != null && !superseded && isTransient(operation, failure);
+
+        if (journal == null) {
+            // Closed, the journal decides what happens when the queue is opened again.
+            return;
+        }
+
+        if (retry) {
+            Log.w(TAG, "Queued " + operation.type + " of " + operation.path + " failed, pausing queue.", failure);
+            pending.put(operation.path, operation);
+            paused = true;
+            scheduleRetry();
+        }
+        else {
+            if (failure != null) {
+                Log.w(TAG, "Queued " + operation.type + " of " + operation.path + " failed, dropping it.", failure);
+            }
+            finish(operation);
+        }
+
+        if (failure == null) {
+            // Reachable again, the next transient failure backs off from the start.
+            retryBackOff = null;
+            notifyCompleted(operation.path);
+        }
+        else {
+            notifyFailed(operation.path, failure, retry);
+        }
+
+        schedule();
+    }
+
+    /**
+     * Resumes the paused queue after the next interval of its backoff. Operations failing while
+     * a retry is scheduled do not lengthen the wait.
+     */
+    private void scheduleRetry() {
+        if (retryTask != null) {
+            return;
+        }
+
+        if (retryBackOff == null) {
+            RetryPolicy retryPolicy = GoogleStorage.getRetryPolicy();
+            if (retryPolicy == null) {
+                retryPolicy = new RetryPolicy.Builder().build();
+            }
+
+            // The queue keeps retrying, at the maximum interval once it is reached.
+            retryBackOff = retryPolicy.newBackOff(Integer.MAX_VALUE);
+        }
+
+        long delayMillis;
+        try {
+            delayMillis = retryBackOff.nextBackOffMillis();
+        }
+        catch ( IOException e ) {
+            delayMillis = BackOff.STOP;
+        }
+
+        if (delayMillis == BackOff.STOP) {
+            GcsLog.d(TAG, "Upload queue backoff ended, waiting for connectivity or drain().");
+            return;
+        }
+
+        if (GcsLog.isDebug()) {
+            Log.d(TAG, "Resuming upload queue in " + delayMillis + " ms");
+        }
+
+        retryTask = RETRY_SCHEDULER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                resumeAfterBackOff();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void resumeAfterBackOff() {
+        retryTask = null;
+        paused = false;
+        schedule();
+    }
+
+    private void cancelRetry() {
+        if (retryTask != null) {
+            retryTask.cancel(false);
+            retryTask = null;
+        }
+    }
+
+    /**
+     * Records the given operation as done and deletes its files.
+     */
+    private void finish(Operation operation) {
+        try {
+            appendJournal(DONE + " " + operation.id);
+        }
+        catch ( IOException e ) {
+            // Replayed when the queue is opened again, the cloud storage gets the same result.
+            Log.w(TAG, "Could not record operation " + operation.id + " as done.", e);
+        }
+
+        discard(operation);
+
+        if (journalLines > 2 * (pending.size() + running.size()) + COMPACT_THRESHOLD) {
+            try {
+                compactJournal();
+            }
+            catch ( IOException e ) {
+                Log.w(TAG, "Could not compact upload queue journal.", e);
+            }
+        }
+    }
+
+    private void discard(Operation operation) {
+        stagedFile(operation.id).delete();
+        stateFile(operation.id).delete();
+    }
+
+    private static boolean isTransient(Operation operation, Exception failure) {
+        if (failure instanceof HttpResponseException) {
+            int statusCode = ((HttpResponseException) failure).getStatusCode();
+            return statusCode == 408 || statusCode == 429 || statusCode >= 500;
+        }
+
+        if (operation.stagedFile != null && !operation.stagedFile.isFile()) {
+            // No retry brings the staged image back.
+            return false;
+        }
+
+        // Not reaching the cloud storage at all.
+        return failure instanceof IOException;
+    }
+
+    private boolean isConnected() {
+        try {
+            ConnectivityManager connectivity = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            if (connectivity == null) {
+                return true;
+            }
+
+            NetworkInfo network = connectivity.getActiveNetworkInfo();
+            return network != null && network.isConnected();
+        }
+        catch ( SecurityException e ) {
+            // Without the permission, try anyway and let the request fail if offline.
+            return true;
+        }
+    }
+
+    private synchronized void registerConnectivityReceiver() {
+        connectivityReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (isConnected()) {
+                    GcsLog.d(TAG, "Connected, draining upload queue.");
+                    drain();
+                }
+            }
+        };
+
+        context.registerReceiver(connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+
+    /**
+     * Replays the journal into the pending operations, keeping only the latest operation per
+     * path, then rewrites it and deletes every file no operation refers to.
+     */
+    private void load() throws IOException {
+        LinkedHashMap<Long, Operation> operations = new LinkedHashMap<>();
+
+        if (journalFile.isFile()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), UTF_8));
+            try {
+                String line;
+                while ( (line = reader.readLine()) != null ) {
+                    replay(line, operations);
+                }
+            }
+            finally {
+                reader.close();
+            }
+        }
+
+        for (Operation operation : operations.values()) {
+            nextId = Math.max(nextId, operation.id + 1);
+
+            if (Operation.UPLOAD.equals(operation.type) && !stagedFile(operation.id).isFile()) {
+                Log.w(TAG, "Staged image of queued upload of " + operation.path + " is missing, dropping it.");
+                continue;
+            }
+
+            Operation previous = pending.put(operation.path, operation);
+            if (previous != null) {
+                discard(previous);
+            }
+        }
+
+        compactJournal();
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            Set<String> referenced = new HashSet<>();
+            referenced.add(JOURNAL);
+            for (Operation operation : pending.values()) {
+                referenced.add(stagedFile(operation.id).getName());
+                referenced.add(stateFile(operation.id).getName());
+            }
+
+            for (File file : files) {
+                if (!referenced.contains(file.getName())) {
+                    file.delete();
+                }
+            }
+        }
+
+        if (GcsLog.isDebug()) {
+            Log.d(TAG, "Loaded upload queue of " + bucketName + " with " + pending.size() + " operations.");
+        }
+    }
+
+    /**
+     * Applies a single journal line. A line cut off by a crash, or otherwise unreadable, is skipped.
+     */
+    private void replay(String line, Map<Long, Operation> operations) {
+        try {
+            String[] parts = line.split(" ", 7);
+
+            if (ADD.equals(parts[0]) && parts.length == 7
+                    && (Operation.UPLOAD.equals(parts[2]) || Operation.DELETE.equals(parts[2]))) {
+                long id = Long.parseLong(parts[1]);
+                operations.put(id, new Operation(id, parts[2], parts[6], orNull(parts[3]), orNull(parts[4]), orNull(parts[5])));
+            }
+            else if (DONE.equals(parts[0]) && parts.length == 2) {
+                long id = Long.parseLong(parts[1]);
+                nextId = Math.max(nextId, id + 1);
+
+                Operation done = operations.remove(id);
+                if (done != null) {
+                    discard(done);
+                }
+            }
+            else {
+                Log.w(TAG, "Skipping unreadable upload queue journal line.");
+            }
+        }
+        catch ( NumberFormatException e ) {
+            Log.w(TAG, "Skipping unreadable upload queue journal line.");
+        }
+    }
+
+    /**
+     * Rewrites the journal with only the operations not finished yet, in the order they were
+     * enqueued.
+     */
+    private void compactJournal() throws IOException {
+        List<Operation> live = new ArrayList<>(pending.values());
+        live.addAll(running.values());
+        Collections.sort(live, new Comparator<Operation>() {
+            @Override
+            public int compare(Operation lhs, Operation rhs) {
+                return lhs.id < rhs.id ? -1 : (lhs.id == rhs.id ? 0 : 1);
+            }
+        });
+
+        StringBuilder content = new StringBuilder();
+        for (Operation operation : live) {
+            content.append(operation.toJournalLine()).append('\n');
+        }
+
+        File tempFile = new File(directory, JOURNAL + ".tmp");
+        FileOutputStream output = new FileOutputStream(tempFile);
+        try {
+            output.write(content.toString().getBytes(UTF_8));
+            output.getFD().sync();
+        }
+        finally {
+            output.close();
+        }
+
+        closeJournal();
+        if (!tempFile.renameTo(journalFile)) {
+            throw new IOException("Could not replace upload queue journal " + journalFile + "! Error!");
+        }
+
+        journal = new FileOutputStream(journalFile, true);
+        journalLines = live.size();
+    }
+
+    private void appendJournal(String line) throws IOException {
+        journal.write((line + "\n").getBytes(UTF_8));
+        journal.getFD().sync();
+        journalLines++;
+    }
+
+    private void closeJournal() {
+        if (journal == null) {
+            return;
+        }
+
+        try {
+            journal.close();
+        }
+        catch ( IOException e ) {
+            Log.w(TAG, "Could not close upload queue journal.", e);
+        }
+        journal = null;
+    }
+
+    private static String orNull(String journalValue) {
+        return "-".equals(journalValue) ? null : journalValue;
+    }
+
+    private File stagedFile(long id) {
+        return new File(directory, id + ".upload");
+    }
+
+    private File stateFile(long id) {
+        return new File(directory, id + ".state");
+    }
+
+    private void notifyProgress(final String imageFullPath, final long bytesUploaded, final long totalBytes) {
+        for (final Listener listener : listeners) {
+            AsyncCloudImageCRUD.getCallbackExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onProgress(imageFullPath, bytesUploaded, totalBytes);
+                }
+            });
+        }
+    }
+
+    private void notifyCompleted(final String imageFullPath) {
+        for (final Listener listener : listeners) {
+            AsyncCloudImageCRUD.getCallbackExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onCompleted(imageFullPath);
+                }
+            });
+        }
+    }
+
+    private void notifyFailed(final String imageFullPath, final Exception e, final boolean willRetry) {
+        for (final Listener listener : listeners) {
+            AsyncCloudImageCRUD.getCallbackExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onFailed(imageFullPath, e, willRetry);
+                }
+            });
+        }
+    }
+
+
+    /**
+     * A single queued upload or deletion.
+     */
+    private class Operation {
+        static final String UPLOAD = "UPLOAD";
+        static final String DELETE = "DELETE";
+
+        final long id;
+        final String type;
+        final String path;
+        final String contentType;
+        final String crc32c;
+        final String md5Hash;
+        final File stagedFile;
+
+        Operation(long id, String type, String path, String contentType, String crc32c, String md5Hash) {
+            this.id = id;
+            this.type = type;
+            this.path = path;
+            this.contentType = contentType;
+            this.crc32c = crc32c;
+            this.md5Hash = md5Hash;
+            this.stagedFile = UPLOAD.equals(type) ? stagedFile(id) : null;
+        }
+
+        String toJournalLine() {
+            return ADD + " " + id + " " + type + " " + orDash(contentType) + " " + orDash(crc32c)
+                    + " " + orDash(md5Hash) + " " + path;
+        }
+
+        private String orDash(String value) {
+            return value != null ? value : "-";
+        }
+    }
+
+    /**
+     * Receives the progress and outcome of the operations of an {@link UploadQueue}.
+     */
+    public interface Listener {
+        /**
+         * The number of bytes of the upload to the given path acknowledged so far.
+         */
+        void onProgress(String imageFullPath, long bytesUploaded, long totalBytes);
+
+        /**
+         * The upload to, or deletion of, the given path finished.
+         */
+        void onCompleted(String imageFullPath);
+
+        /**
+         * The upload to, or deletion of, the given path failed. If willRetry, the operation is
+         * still queued and executed again once the queue drains, otherwise it was dropped.
+         */
+        void onFailed(String imageFullPath, Exception e, boolean willRetry);
+    }
+}
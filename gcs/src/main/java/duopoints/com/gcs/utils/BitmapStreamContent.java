@@ -0,0 +1,311 @@
+package duopoints.com.gcs.utils;
+
+import android.graphics.Bitmap;
+
+import com.google.api.client.http.AbstractInputStreamContent;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+/**
+ * An upload body that compresses a {@link Bitmap} straight into the HTTP request, instead of
+ * first compressing it into a byte array and wrapping that array in an InputStream.
+ * <p/>
+ * When the HTTP layer writes the content ({@link #writeTo(OutputStream)}) the Bitmap is
+ * compressed directly into the request stream through a buffer of the given chunk size.
+ * When the HTTP layer pulls the content ({@link #getInputStream()}) the Bitmap is compressed on a
+ * separate thread into a pipe holding at most one chunk. Either way the extra memory used is
+ * bounded by the chunk size, not by the size of the encoded image.
+ * <p/>
+ * The encoded size is not known before the Bitmap has been compressed, so {@link #getLength()}
+ * returns -1 and the body is sent with chunked transfer encoding.
+ */
+public class BitmapStreamContent extends AbstractInputStreamContent {
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+    private final Bitmap bitmap;
+    private final Bitmap.CompressFormat compressFormat;
+    private final int quality;
+    private final int chunkSize;
+
+    private CancellationToken cancellationToken;
+    private TransferMeter transferMeter;
+    private TransferChecksums checksums;
+    private long encodeNanos;
+
+
+    /**
+     * All parameters are mandatory.
+     *
+     * @param type           The content type, like "image/png".
+     * @param bitmap
+     * @param compressFormat
+     * @param quality        Compression quality, 0-100.
+     * @param chunkSize      The number of bytes buffered between the encoder and the HTTP layer.
+     */
+    public BitmapStreamContent(String type, Bitmap bitmap, Bitmap.CompressFormat compressFormat, int quality, int chunkSize) {
+        super(type);
+
+        if (bitmap == null) {
+            throw new IllegalArgumentException("Given Bitmap was null! Error!");
+        }
+
+        if (compressFormat == null) {
+            throw new IllegalArgumentException("Given CompressFormat was null! Error!");
+        }
+
+        if (quality < 0 || quality > 100) {
+            throw new IllegalArgumentException("Given quality must be between 0 and 100! Error!");
+        }
+
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Given chunkSize must be positive! Error!");
+        }
+
+        this.bitmap = bitmap;
+        this.compressFormat = compressFormat;
+        this.quality = quality;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Compresses the Bitmap directly into the given OutputStream, buffering at most one chunk.
+     * The given stream is flushed, but not closed.
+     *
+     * @param out
+     *
+     * @throws IOException
+     */
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        TransferMeter meter = transferMeter;
+        long start = meter != null ? System.nanoTime() : 0;
+        long waited = meter != null ? meter.getNanos() : 0;
+
+        BufferedOutputStream buffered = new BufferedOutputStream(meter != null ? meter.wrap(out) : out, chunkSize);
+        compress(buffered);
+        buffered.flush();
+
+        if (meter != null) {
+            recordEncode(System.nanoTime() - start - (meter.getNanos() - waited));
+        }
+    }
+
+    /**
+     * Returns a stream of the compressed Bitmap. The compression is done on a separate thread
+     * that writes into a pipe holding at most one chunk, so it only runs as fast as the
+     * returned stream is read.
+     *
+     * @return
+     * @throws IOException
+     */
+    @Override
+    public InputStream getInputStream() throws IOException {
+        final PipedInputStream pipeInput = new PipedInputStream(chunkSize);
+        final PipedOutputStream pipeOutput = new PipedOutputStream(pipeInput);
+        final EncoderInputStream encoderInput = new EncoderInputStream(pipeInput);
+
+        Thread encoder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    TransferMeter meter = transferMeter;
+                    long start = meter != null ? System.nanoTime() : 0;
+                    long waited = meter != null ? meter.getNanos() : 0;
+
+                    compress(meter != null ? meter.wrap(pipeOutput) : pipeOutput);
+
+                    if (meter != null) {
+                        recordEncode(System.nanoTime() - start - (meter.getNanos() - waited));
+                    }
+                }
+                catch ( IOException e ) {
+                    encoderInput.failure = e;
+                }
+                finally {
+                    try {
+                        pipeOutput.close();
+                    }
+                    catch ( IOException e ) {
+                        // The reading side is gone, nothing left to report to.
+                    }
+                }
+            }
+        }, "BitmapStreamContent-encoder");
+        encoder.setDaemon(true);
+        encoder.start();
+
+        return encoderInput;
+    }
+
+    @Override
+    public long getLength() throws IOException {
+        return -1;
+    }
+
+    /**
+     * The Bitmap can be compressed again, so the content can be re-sent if a request is retried.
+     *
+     * @return
+     */
+    @Override
+    public boolean retrySupported() {
+        return true;
+    }
+
+    public Bitmap getBitmap() {
+        return bitmap;
+    }
+
+    public Bitmap.CompressFormat getCompressFormat() {
+        return compressFormat;
+    }
+
+    public int getQuality() {
+        return quality;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public CancellationToken getCancellationToken() {
+        return cancellationToken;
+    }
+
+    /**
+     * Once the given CancellationToken is cancelled, the next write of the compressed Bitmap
+     * fails, aborting the request the content is being written to.
+     *
+     * @param cancellationToken Optional, may be null.
+     *
+     * @return
+     */
+    public BitmapStreamContent setCancellationToken(CancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken;
+        return this;
+    }
+
+    public TransferMeter getTransferMeter() {
+        return transferMeter;
+    }
+
+    /**
+     * Measures the bytes written and the time spent waiting on the stream the compressed Bitmap
+     * is written to, and with it the time spent compressing ({@link #getEncodeNanos()}).
+     *
+     * @param transferMeter Optional, may be null to measure nothing.
+     *
+     * @return
+     */
+    public BitmapStreamContent setTransferMeter(TransferMeter transferMeter) {
+        this.transferMeter = transferMeter;
+        return this;
+    }
+
+    public TransferChecksums getChecksums() {
+        return checksums;
+    }
+
+    /**
+     * Computes the checksums of the compressed Bitmap while it is written. Every time the
+     * content is written (again) the checksums start over, so after a request they are those of
+     * the content of its last attempt.
+     *
+     * @param checksums Optional, may be null.
+     *
+     * @return
+     */
+    public BitmapStreamContent setChecksums(TransferChecksums checksums) {
+        this.checksums = checksums;
+        return this;
+    }
+
+    /**
+     * The total time spent compressing the Bitmap, without the time spent waiting on the
+     * stream it was written to. Only measured with a {@link TransferMeter}.
+     *
+     * @return
+     */
+    public synchronized long getEncodeNanos() {
+        return encodeNanos;
+    }
+
+    @Override
+    public BitmapStreamContent setType(String type) {
+        return (BitmapStreamContent) super.setType(type);
+    }
+
+    @Override
+    public BitmapStreamContent setCloseInputStream(boolean closeInputStream) {
+        return (BitmapStreamContent) super.setCloseInputStream(closeInputStream);
+    }
+
+
+    private synchronized void recordEncode(long nanos) {
+        encodeNanos += nanos;
+    }
+
+    private void compress(OutputStream out) throws IOException {
+        CancellationToken token = cancellationToken;
+        if (token != null) {
+            token.throwIfCancelled();
+            out = token.wrap(out);
+        }
+
+        TransferChecksums checksums = this.checksums;
+        if (checksums != null) {
+            checksums.reset();
+            out = checksums.wrap(out);
+        }
+
+        if (!bitmap.compress(compressFormat, quality, out)) {
+            if (token != null) {
+                token.throwIfCancelled();
+            }
+
+            throw new IOException("Bitmap could not be compressed as " + compressFormat + "! Error!");
+        }
+    }
+
+    /**
+     * The reading end of the encoder pipe. Reports a failed compression as an IOException
+     * instead of as a (truncated) end of stream.
+     */
+    private static class EncoderInputStream extends FilterInputStream {
+        volatile IOException failure;
+
+        EncoderInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read == -1) {
+                checkFailure();
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read == -1) {
+                checkFailure();
+            }
+            return read;
+        }
+
+        private void checkFailure() throws IOException {
+            if (failure != null) {
+                throw new IOException("Compression of Bitmap failed! Error!", failure);
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package duopoints.com.gcs.utils;
+
+import java.util.ArrayDeque;
+
+/**
+ * A small, thread-safe pool of equally sized byte arrays.
+ * <p/>
+ * Used for buffers that are needed for every transfer or decode, like the temporary storage of
+ * {@link android.graphics.BitmapFactory.Options#inTempStorage}, so that a steady stream of
+ * images does not allocate a new buffer for each one.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ArrayDeque<byte[]> buffers;
+
+
+    /**
+     * @param bufferSize The size of every buffer handed out by this pool.
+     * @param maxPooled  The maximum number of released buffers kept for reuse.
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Given bufferSize must be positive! Error!");
+        }
+
+        if (maxPooled < 0) {
+            throw new IllegalArgumentException("Given maxPooled can not be negative! Error!");
+        }
+
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.buffers = new ArrayDeque<>(maxPooled);
+    }
+
+    /**
+     * Returns a pooled buffer, or a new one if the pool is empty.
+     *
+     * @return
+     */
+    public byte[] acquire() {
+        synchronized ( buffers ) {
+            byte[] buffer = buffers.pollFirst();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+
+        return new byte[bufferSize];
+    }
+
+    /**
+     * Returns the given buffer to the pool. Buffers of the wrong size, and buffers beyond the
+     * pool capacity, are left for the garbage collector.
+     *
+     * @param buffer
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null || buffer.length != bufferSize) {
+            return;
+        }
+
+        synchronized ( buffers ) {
+            if (buffers.size() < maxPooled) {
+                buffers.offerFirst(buffer);
+            }
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
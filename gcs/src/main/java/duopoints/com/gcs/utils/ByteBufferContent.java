@@ -0,0 +1,139 @@
+package duopoints.com.gcs.utils;
+
+import com.google.api.client.http.AbstractInputStreamContent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An upload body of the remaining bytes of a ByteBuffer, heap, direct or memory-mapped,
+ * without copying them into a byte array first.
+ * <p/>
+ * The bytes between the position and the limit of the buffer at construction are sent. The
+ * buffer itself is never modified, so it can be read again if a request is retried, but its
+ * content must not change until the upload is done.
+ */
+public class ByteBufferContent extends AbstractInputStreamContent {
+    // The size of the copies out of a direct buffer, which has no array to write from.
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final ByteBuffer buffer;
+
+
+    /**
+     * All parameters are mandatory.
+     *
+     * @param type   The content type, like "application/json".
+     * @param buffer
+     */
+    public ByteBufferContent(String type, ByteBuffer buffer) {
+        super(type);
+
+        if (buffer == null) {
+            throw new IllegalArgumentException("Given ByteBuffer was null! Error!");
+        }
+
+        this.buffer = buffer.slice();
+    }
+
+    /**
+     * Writes the bytes straight from the backing array of a heap buffer, or in chunks out of a
+     * direct buffer.
+     *
+     * @param out
+     *
+     * @throws IOException
+     */
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        ByteBuffer source = buffer.duplicate();
+
+        if (source.hasArray()) {
+            out.write(source.array(), source.arrayOffset() + source.position(), source.remaining());
+        }
+        else {
+            byte[] chunk = new byte[Math.min(COPY_BUFFER_SIZE, Math.max(1, source.remaining()))];
+            while ( source.hasRemaining() ) {
+                int count = Math.min(chunk.length, source.remaining());
+                source.get(chunk, 0, count);
+                out.write(chunk, 0, count);
+            }
+        }
+
+        out.flush();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return new ByteBufferInputStream(buffer.duplicate());
+    }
+
+    @Override
+    public long getLength() {
+        return buffer.remaining();
+    }
+
+    /**
+     * The buffer is read through a duplicate, so the content can be re-sent if a request is
+     * retried.
+     *
+     * @return
+     */
+    @Override
+    public boolean retrySupported() {
+        return true;
+    }
+
+    @Override
+    public ByteBufferContent setType(String type) {
+        return (ByteBufferContent) super.setType(type);
+    }
+
+    @Override
+    public ByteBufferContent setCloseInputStream(boolean closeInputStream) {
+        return (ByteBufferContent) super.setCloseInputStream(closeInputStream);
+    }
+
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
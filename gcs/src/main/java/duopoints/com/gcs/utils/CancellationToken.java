@@ -0,0 +1,134 @@
+package duopoints.com.gcs.utils;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Signals the cancellation of a transfer to the code doing the transfer.
+ * <p/>
+ * Streams wrapped by {@link #wrap(InputStream)} and {@link #wrap(OutputStream)} fail with an
+ * InterruptedIOException on their next read or write once cancelled, and Closeables registered
+ * with {@link #onCancel(Closeable)} (like an HTTP connection) are closed right away, so a
+ * transfer blocked on the network is aborted as well.
+ */
+public class CancellationToken {
+    private volatile boolean cancelled;
+    private final List<Closeable> closeables = new ArrayList<>();
+
+
+    /**
+     * Cancels the transfer. Safe to call more than once, and from any thread.
+     */
+    public void cancel() {
+        List<Closeable> toClose;
+
+        synchronized ( closeables ) {
+            if (cancelled) {
+                return;
+            }
+
+            cancelled = true;
+            toClose = new ArrayList<>(closeables);
+            closeables.clear();
+        }
+
+        for (Closeable closeable : toClose) {
+            closeQuietly(closeable);
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Throws an InterruptedIOException if cancelled.
+     *
+     * @throws InterruptedIOException
+     */
+    public void throwIfCancelled() throws InterruptedIOException {
+        if (cancelled) {
+            throw new InterruptedIOException("Transfer was cancelled.");
+        }
+    }
+
+    /**
+     * Registers the given Closeable to be closed on cancellation. Closed immediately if
+     * already cancelled.
+     *
+     * @param closeable
+     */
+    public void onCancel(Closeable closeable) {
+        synchronized ( closeables ) {
+            if (!cancelled) {
+                closeables.add(closeable);
+                return;
+            }
+        }
+
+        closeQuietly(closeable);
+    }
+
+    /**
+     * Returns a stream that fails on the next read after cancellation.
+     *
+     * @param in
+     *
+     * @return
+     */
+    public InputStream wrap(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                throwIfCancelled();
+                return super.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                throwIfCancelled();
+                return super.read(b, off, len);
+            }
+        };
+    }
+
+    /**
+     * Returns a stream that fails on the next write after cancellation.
+     *
+     * @param out
+     *
+     * @return
+     */
+    public OutputStream wrap(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                throwIfCancelled();
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                throwIfCancelled();
+                out.write(b, off, len);
+            }
+        };
+    }
+
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        }
+        catch ( IOException | RuntimeException e ) {
+            // Cancelling, the transfer is going to fail either way.
+        }
+    }
+}
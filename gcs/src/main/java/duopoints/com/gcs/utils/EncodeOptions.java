@@ -0,0 +1,399 @@
+package duopoints.com.gcs.utils;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * How a Bitmap is encoded before it is uploaded: the format, the compression quality, an
+ * optional maximum size the Bitmap is scaled down to, lossless WEBP, and an optional target
+ * size in bytes the quality is searched for.
+ * <p/>
+ * Quality 100 JPEG or WEBP is often several times larger than quality 80-90, without a visible
+ * difference. EncodeBenchmark (an instrumented test of this library) compares the size and
+ * encode time of different options for an actual image on a device.
+ * <p/>
+ * Lossless WEBP needs Android 10, below it lossless images are encoded as PNG instead, see
+ * {@link Builder#lossless(boolean)}.
+ * <p/>
+ * Encoding with a target size encodes the image several times, so it should not be done on the
+ * main thread (see {@link duopoints.com.gcs.core.AsyncCloudImageCRUD}).
+ * <p/>
+ * Built with {@link Builder}.
+ */
+public class EncodeOptions {
+    public static final int DEFAULT_QUALITY = 100;
+    public static final int DEFAULT_MIN_QUALITY = 10;
+
+    // Android 10, from which WEBP at quality 100 is lossless.
+    private static final int LOSSLESS_WEBP_SDK = 29;
+
+    private final MediaManipulation.SupportedImageFormats format;
+    private final int quality;
+    private final int minQuality;
+    private final int maxWidth;
+    private final int maxHeight;
+    private final boolean lossless;
+    private final long targetBytes;
+
+
+    private EncodeOptions(Builder builder) {
+        this.format = builder.format;
+        this.quality = builder.quality;
+        this.minQuality = builder.minQuality;
+        this.maxWidth = builder.maxWidth;
+        this.maxHeight = builder.maxHeight;
+        this.lossless = builder.lossless;
+        this.targetBytes = builder.targetBytes;
+    }
+
+    /**
+     * Returns options encoding in the given format at {@link #DEFAULT_QUALITY}, the behaviour of
+     * the functions only taking a format.
+     *
+     * @param format
+     *
+     * @return
+     */
+    public static EncodeOptions of(MediaManipulation.SupportedImageFormats format) {
+        return new Builder(format).build();
+    }
+
+    /**
+     * Returns the given image scaled down (keeping its aspect ratio) to fit within the maximum
+     * size, or the image itself if it already fits. A scaled copy belongs to the caller, who
+     * should recycle it once the upload is done.
+     *
+     * @param image
+     *
+     * @return
+     */
+    public Bitmap scale(Bitmap image) {
+        if (image == null) {
+            throw new IllegalArgumentException("Given Bitmap was null! Error!");
+        }
+
+        float scale = 1f;
+
+        if (maxWidth > 0 && image.getWidth() > maxWidth) {
+            scale = Math.min(scale, (float) maxWidth / image.getWidth());
+        }
+
+        if (maxHeight > 0 && image.getHeight() > maxHeight) {
+            scale = Math.min(scale, (float) maxHeight / image.getHeight());
+        }
+
+        if (scale >= 1f) {
+            return image;
+        }
+
+        int width = Math.max(1, Math.round(image.getWidth() * scale));
+        int height = Math.max(1, Math.round(image.getHeight() * scale));
+
+        return Bitmap.createScaledBitmap(image, width, height, true);
+    }
+
+    /**
+     * Creates the upload content for the given (already scaled) image. With a target size, the
+     * quality is first searched for, see {@link #findQuality(Bitmap)}.
+     *
+     * @param image
+     * @param chunkSize
+     *
+     * @return
+     * @throws IOException
+     */
+    public BitmapStreamContent createContent(Bitmap image, int chunkSize) throws IOException {
+        return new BitmapStreamContent(getContentType(), image, getCompressFormat(), findQuality(image), chunkSize);
+    }
+
+    /**
+     * Returns the quality to encode the given image with. Without a target size, or for a
+     * lossless format, this is the configured quality. With a target size, it is the highest
+     * quality between the minimum and the configured quality for which the encoded image fits
+     * the target size, found with a binary search. If no quality fits, the minimum quality is
+     * used.
+     *
+     * @param image
+     *
+     * @return
+     * @throws IOException
+     */
+    public int findQuality(Bitmap image) throws IOException {
+        if (targetBytes <= 0 || !isQualityUsed()) {
+            return getEffectiveQuality();
+        }
+
+        if (encodedSize(image, quality) <= targetBytes) {
+            return quality;
+        }
+
+        int low = minQuality;
+        int high = quality - 1;
+        int best = minQuality;
+
+        while ( low <= high ) {
+            int middle = (low + high) >>> 1;
+
+            if (encodedSize(image, middle) <= targetBytes) {
+                best = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Returns the number of bytes the given image encodes to at the given quality, without
+     * keeping the encoded bytes.
+     *
+     * @param image
+     * @param quality
+     *
+     * @return
+     * @throws IOException
+     */
+    public long encodedSize(Bitmap image, int quality) throws IOException {
+        CountingOutputStream counter = new CountingOutputStream();
+
+        if (!image.compress(getCompressFormat(), quality, counter)) {
+            throw new IOException("Bitmap could not be compressed as " + getCompressFormat() + "! Error!");
+        }
+
+        return counter.count;
+    }
+
+    /**
+     * The CompressFormat to encode with. Lossless WEBP uses the WEBP_LOSSLESS format where the
+     * platform has it (Android 11), WEBP at quality 100 on Android 10, and PNG before that, as
+     * WEBP is always lossy there.
+     *
+     * @return
+     */
+    public Bitmap.CompressFormat getCompressFormat() {
+        if (lossless) {
+            Bitmap.CompressFormat losslessFormat = MediaManipulation.getCompressFormat("WEBP_LOSSLESS");
+            if (losslessFormat != null) {
+                return losslessFormat;
+            }
+
+            if (!isLosslessWebpSupported()) {
+                return Bitmap.CompressFormat.PNG;
+            }
+        }
+
+        return MediaManipulation.getCompressFormat(format);
+    }
+
+    /**
+     * The content type of the encoded image, like "image/webp". Lossless images encoded as PNG
+     * (before Android 10) are "image/png".
+     *
+     * @return
+     */
+    public String getContentType() {
+        if (lossless && !isLosslessWebpSupported()) {
+            return "image/" + MediaManipulation.SupportedImageFormats.png;
+        }
+
+        return "image/" + format;
+    }
+
+    public MediaManipulation.SupportedImageFormats getFormat() {
+        return format;
+    }
+
+    public int getQuality() {
+        return quality;
+    }
+
+    public int getMinQuality() {
+        return minQuality;
+    }
+
+    public int getMaxWidth() {
+        return maxWidth;
+    }
+
+    public int getMaxHeight() {
+        return maxHeight;
+    }
+
+    public boolean isLossless() {
+        return lossless;
+    }
+
+    public long getTargetBytes() {
+        return targetBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "EncodeOptions{" + format
+                + (lossless ? ", lossless" : ", quality=" + quality)
+                + (maxWidth > 0 || maxHeight > 0 ? ", max=" + maxWidth + "x" + maxHeight : "")
+                + (targetBytes > 0 ? ", targetBytes=" + targetBytes : "")
+                + "}";
+    }
+
+
+    /**
+     * PNG and lossless WEBP ignore the quality (beyond the compression effort).
+     */
+    private boolean isQualityUsed() {
+        return format != MediaManipulation.SupportedImageFormats.png && !lossless;
+    }
+
+    private int getEffectiveQuality() {
+        if (lossless && getCompressFormat() == Bitmap.CompressFormat.WEBP) {
+            // Quality 100 is what makes WEBP lossless (on Android 10).
+            return 100;
+        }
+
+        return quality;
+    }
+
+    private static boolean isLosslessWebpSupported() {
+        return Build.VERSION.SDK_INT >= LOSSLESS_WEBP_SDK;
+    }
+
+
+    /**
+     * Counts the bytes written to it and discards them.
+     */
+    static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+
+    /**
+     * Builder for {@link EncodeOptions}.
+     */
+    public static class Builder {
+        private final MediaManipulation.SupportedImageFormats format;
+        private int quality = DEFAULT_QUALITY;
+        private int minQuality = DEFAULT_MIN_QUALITY;
+        private int maxWidth;
+        private int maxHeight;
+        private boolean lossless;
+        private long targetBytes;
+
+
+        /**
+         * @param format
+         */
+        public Builder(MediaManipulation.SupportedImageFormats format) {
+            if (format == null) {
+                throw new IllegalArgumentException("Given SupportedImageFormats was null! Error!");
+            }
+
+            this.format = format;
+        }
+
+        /**
+         * The compression quality, 0-100. With a target size, the highest quality searched.
+         * Default is {@link #DEFAULT_QUALITY}.
+         *
+         * @param quality
+         *
+         * @return
+         */
+        public Builder quality(int quality) {
+            if (quality < 0 || quality > 100) {
+                throw new IllegalArgumentException("Given quality must be between 0 and 100! Error!");
+            }
+
+            this.quality = quality;
+
+            return this;
+        }
+
+        /**
+         * The maximum size of the uploaded image. A larger image is scaled down to fit, keeping
+         * its aspect ratio. A dimension of 0 is not constrained.
+         *
+         * @param maxWidth
+         * @param maxHeight
+         *
+         * @return
+         */
+        public Builder maxSize(int maxWidth, int maxHeight) {
+            if (maxWidth < 0 || maxHeight < 0) {
+                throw new IllegalArgumentException("Given max size can not be negative! Error!");
+            }
+
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+
+            return this;
+        }
+
+        /**
+         * Whether WEBP is encoded lossless. Only allowed for the webp format.
+         * <p/>
+         * WEBP is only lossless from Android 10. Before that the image is encoded as PNG (and
+         * uploaded as "image/png"), so it stays lossless, at the cost of a larger upload.
+         *
+         * @param lossless
+         *
+         * @return
+         */
+        public Builder lossless(boolean lossless) {
+            if (lossless && format != MediaManipulation.SupportedImageFormats.webp) {
+                throw new IllegalArgumentException("Lossless is only supported for webp! Error!");
+            }
+
+            this.lossless = lossless;
+
+            return this;
+        }
+
+        /**
+         * Searches for the highest quality, between the given minimum quality and the
+         * configured quality, that encodes the image within the given number of bytes.
+         * Ignored for lossless formats.
+         *
+         * @param targetBytes
+         * @param minQuality
+         *
+         * @return
+         */
+        public Builder targetSize(long targetBytes, int minQuality) {
+            if (targetBytes < 1) {
+                throw new IllegalArgumentException("Given targetBytes must be positive! Error!");
+            }
+
+            if (minQuality < 0 || minQuality > 100) {
+                throw new IllegalArgumentException("Given minQuality must be between 0 and 100! Error!");
+            }
+
+            this.targetBytes = targetBytes;
+            this.minQuality = minQuality;
+
+            return this;
+        }
+
+        public EncodeOptions build() {
+            if (targetBytes > 0 && minQuality > quality) {
+                throw new IllegalArgumentException("Given minQuality is higher than quality! Error!");
+            }
+
+            return new EncodeOptions(this);
+        }
+    }
+}
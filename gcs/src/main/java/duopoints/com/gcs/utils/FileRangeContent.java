@@ -0,0 +1,148 @@
+package duopoints.com.gcs.utils;
+
+import com.google.api.client.http.AbstractInputStreamContent;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An upload body of a range of a local file, so parts of a single file can be uploaded as
+ * separate requests without copying them.
+ */
+public class FileRangeContent extends AbstractInputStreamContent {
+    private final File file;
+    private final long offset;
+    private final long length;
+
+
+    /**
+     * All parameters are mandatory.
+     *
+     * @param type   The content type, like "image/png".
+     * @param file
+     * @param offset The first byte of the range.
+     * @param length The number of bytes in the range.
+     */
+    public FileRangeContent(String type, File file, long offset, long length) {
+        super(type);
+
+        if (file == null) {
+            throw new IllegalArgumentException("Given File was null! Error!");
+        }
+
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Given range can not be negative! Error!");
+        }
+
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        FileInputStream in = new FileInputStream(file);
+
+        try {
+            Crc32c.skipFully(in, offset);
+        }
+        catch ( IOException e ) {
+            in.close();
+            throw e;
+        }
+
+        return new RangeInputStream(in, length);
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * The range can be read again, so the content can be re-sent if a request is retried.
+     *
+     * @return
+     */
+    @Override
+    public boolean retrySupported() {
+        return true;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    @Override
+    public FileRangeContent setType(String type) {
+        return (FileRangeContent) super.setType(type);
+    }
+
+    @Override
+    public FileRangeContent setCloseInputStream(boolean closeInputStream) {
+        return (FileRangeContent) super.setCloseInputStream(closeInputStream);
+    }
+
+
+    /**
+     * Ends the stream after the given number of bytes.
+     */
+    private static class RangeInputStream extends FilterInputStream {
+        private long remaining;
+
+        RangeInputStream(InputStream in, long remaining) {
+            super(in);
+            this.remaining = remaining;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+
+            int read = super.read();
+            if (read != -1) {
+                remaining--;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+
+            int read = super.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package duopoints.com.gcs.utils;
+
+import android.util.Log;
+
+/**
+ * The log level of the library. Debug messages are built from strings concatenated on every
+ * request, so they are only logged (and only built) when the level allows it:
+ * <pre>
+ * if (GcsLog.isDebug()) {
+ *     Log.d(TAG, "Uploaded " + name + " (" + length + " bytes).");
+ * }
+ * </pre>
+ * The level is {@link Log#INFO} by default, so debug messages cost a single field read.
+ * Use {@link #setLevel(int)} with {@link Log#DEBUG} while developing.
+ */
+public final class GcsLog {
+    private static volatile int level = Log.INFO;
+
+
+    private GcsLog() {
+    }
+
+    /**
+     * The lowest priority that is logged, one of the {@link Log} constants like
+     * {@link Log#DEBUG}. Default is {@link Log#INFO}.
+     *
+     * @param level
+     */
+    public static void setLevel(int level) {
+        GcsLog.level = level;
+    }
+
+    public static int getLevel() {
+        return level;
+    }
+
+    /**
+     * Returns true if debug messages are logged.
+     *
+     * @return
+     */
+    public static boolean isDebug() {
+        return level <= Log.DEBUG;
+    }
+
+    /**
+     * Logs the given constant debug message if debug messages are logged. Messages built by
+     * concatenation must be guarded with {@link #isDebug()} instead.
+     *
+     * @param tag
+     * @param message
+     */
+    public static void d(String tag, String message) {
+        if (level <= Log.DEBUG) {
+            Log.d(tag, message);
+        }
+    }
+}
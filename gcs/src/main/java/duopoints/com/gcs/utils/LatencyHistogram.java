@@ -0,0 +1,124 @@
+package duopoints.com.gcs.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies with fixed buckets, from 1 millisecond up to 1 minute, so recording
+ * a latency never allocates and never locks.
+ * <p/>
+ * Percentiles are reported as the upper bound of the bucket they fall in, at most the largest
+ * latency recorded.
+ * <p/>
+ * Thread-safe.
+ */
+public class LatencyHistogram {
+    private static final long[] BUCKET_BOUNDS_MILLIS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 60000
+    };
+
+    // One more bucket than bounds, for everything above the last bound.
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_BOUNDS_MILLIS.length + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+
+    /**
+     * Records a single latency.
+     *
+     * @param nanos
+     */
+    public void record(long nanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+
+        int bucket = 0;
+        while ( bucket < BUCKET_BOUNDS_MILLIS.length && millis >= BUCKET_BOUNDS_MILLIS[bucket] ) {
+            bucket++;
+        }
+
+        counts.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+
+        long max = maxNanos.get();
+        while ( nanos > max && !maxNanos.compareAndSet(max, nanos) ) {
+            max = maxNanos.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMeanMillis() {
+        long recorded = count.get();
+        return recorded > 0 ? TimeUnit.NANOSECONDS.toMillis(totalNanos.get() / recorded) : 0;
+    }
+
+    public long getMaxMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxNanos.get());
+    }
+
+    /**
+     * Returns the latency, in milliseconds, below which the given fraction of the recorded
+     * latencies fall, like 0.99 for the 99th percentile. Returns 0 if nothing was recorded.
+     *
+     * @param fraction Between 0 and 1.
+     *
+     * @return
+     */
+    public long getPercentileMillis(double fraction) {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException("Given fraction must be between 0 and 1! Error!");
+        }
+
+        long recorded = count.get();
+        if (recorded == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(fraction * recorded);
+        long seen = 0;
+
+        for (int bucket = 0; bucket < BUCKET_BOUNDS_MILLIS.length; bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= rank) {
+                return Math.min(BUCKET_BOUNDS_MILLIS[bucket], getMaxMillis());
+            }
+        }
+
+        return getMaxMillis();
+    }
+
+    /**
+     * The upper bounds, in milliseconds, of the buckets. The last bucket, above the last bound,
+     * has no upper bound.
+     *
+     * @return
+     */
+    public static long[] getBucketBoundsMillis() {
+        return BUCKET_BOUNDS_MILLIS.clone();
+    }
+
+    /**
+     * The number of latencies recorded in every bucket, one more than
+     * {@link #getBucketBoundsMillis()}.
+     *
+     * @return
+     */
+    public long[] getBucketCounts() {
+        long[] snapshot = new long[counts.length()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + ", mean=" + getMeanMillis() + "ms, p50=" + getPercentileMillis(0.5)
+                + "ms, p99=" + getPercentileMillis(0.99) + "ms, max=" + getMaxMillis() + "ms";
+    }
+}
@@ -2,6 +2,10 @@ package duopoints.com.gcs.utils;
 
 import android.graphics.Bitmap;
 
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 public class MediaManipulation {
 
     public enum SupportedImageFormats {
@@ -26,5 +30,74 @@ public class MediaManipulation {
 
         return null;
     }
-}
 
+    /**
+     * Returns the CompressFormat with the given name, or null if this platform does not have it
+     * (like WEBP_LOSSLESS before Android 11).
+     *
+     * @param name
+     *
+     * @return
+     */
+    public static Bitmap.CompressFormat getCompressFormat(String name) {
+        try {
+            return Bitmap.CompressFormat.valueOf(name);
+        }
+        catch ( IllegalArgumentException e ) {
+            return null;
+        }
+    }
+
+
+    /**
+     * Returns the largest power of 2 sample size that keeps an image of the given size at least
+     * as large as the given target size, for use as {@link android.graphics.BitmapFactory.Options#inSampleSize}.
+     * A target dimension of 0 or less is not taken into account.
+     *
+     * @param width        The width of the full size image.
+     * @param height       The height of the full size image.
+     * @param targetWidth
+     * @param targetHeight
+     *
+     * @return
+     */
+    public static int calculateInSampleSize(int width, int height, int targetWidth, int targetHeight) {
+        int inSampleSize = 1;
+
+        if (targetWidth <= 0 && targetHeight <= 0) {
+            return inSampleSize;
+        }
+
+        while ( (targetWidth <= 0 || width / (inSampleSize * 2) >= targetWidth)
+                && (targetHeight <= 0 || height / (inSampleSize * 2) >= targetHeight) ) {
+            inSampleSize *= 2;
+        }
+
+        return inSampleSize;
+    }
+
+    /**
+     * Returns a file system safe name for the given key (the hex SHA-1 of the key), used for
+     * naming locally stored files that belong to a cloud object.
+     *
+     * @param key
+     *
+     * @return
+     */
+    public static String hashName(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+
+            StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xF, 16));
+                name.append(Character.forDigit(b & 0xF, 16));
+            }
+
+            return name.toString();
+        }
+        catch ( NoSuchAlgorithmException | IOException e ) {
+            throw new IllegalStateException("SHA-1 not available! Error!", e);
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package duopoints.com.gcs.utils;
+
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.util.Base64;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.zip.Checksum;
+
+/**
+ * The CRC32C and the MD5 hash of the bytes moved through wrapped streams, computed while the
+ * bytes are sent or received instead of in a second pass over them.
+ * <p/>
+ * The checksums are in the format of the cloud storage, as in
+ * {@link com.google.api.services.storage.model.StorageObject#getCrc32c()} and
+ * {@link com.google.api.services.storage.model.StorageObject#getMd5Hash()}. Once read, they are
+ * final until {@link #reset()}.
+ * <p/>
+ * Thread-safe.
+ */
+public class TransferChecksums {
+    // The hashes of the stored object, in a media response, like "crc32c=n03x6A==,md5=Ojk9c3dhfxgoKVVHYwFbHQ==".
+    private static final String HASH_HEADER = "x-goog-hash";
+
+    private final Checksum crc32c = Crc32c.create();
+    private final MessageDigest md5;
+
+    private String crc32cValue;
+    private String md5Value;
+
+
+    public TransferChecksums() {
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        }
+        catch ( NoSuchAlgorithmException e ) {
+            throw new IllegalStateException("MD5 not available! Error!", e);
+        }
+    }
+
+    /**
+     * Returns the content of the given media response, checking the bytes read from it against
+     * the hashes the cloud storage sent along. Reaching the end of the content, or closing it
+     * before, fails with an IOException if they differ; closing reads the rest of the content
+     * to check it. A caller that stops reading early and does not need the check disconnects the
+     * response instead of closing the content. Returns the content as is if it came without
+     * hashes, or was decompressed.
+     *
+     * @param response
+     * @param objectName Only used in the failure message.
+     *
+     * @return
+     * @throws IOException
+     */
+    public static InputStream verify(HttpResponse response, String objectName) throws IOException {
+        InputStream content = response.getContent();
+
+        // The hashes are of the stored bytes, not of the decompressed ones.
+        if (response.getContentEncoding() != null) {
+            return content;
+        }
+
+        String expectedCrc32c = null;
+        String expectedMd5Hash = null;
+
+        List<String> headers = response.getHeaders().getHeaderStringValues(HASH_HEADER);
+        for (String header : headers) {
+            for (String hash : header.split(",")) {
+                hash = hash.trim();
+
+                if (hash.startsWith("crc32c=")) {
+                    expectedCrc32c = hash.substring("crc32c=".length());
+                }
+                else if (hash.startsWith("md5=")) {
+                    expectedMd5Hash = hash.substring("md5=".length());
+                }
+            }
+        }
+
+        if (content == null || (expectedCrc32c == null && expectedMd5Hash == null)) {
+            return content;
+        }
+
+        return new VerifyingInputStream(new TransferChecksums(), content, expectedCrc32c, expectedMd5Hash, objectName);
+    }
+
+    public synchronized void update(byte[] b, int off, int len) {
+        if (crc32cValue != null) {
+            throw new IllegalStateException("Checksums were already read! Error!");
+        }
+
+        crc32c.update(b, off, len);
+        md5.update(b, off, len);
+    }
+
+    /**
+     * Adds the rest of the given stream, and closes it.
+     *
+     * @param in
+     *
+     * @throws IOException
+     */
+    public void update(InputStream in) throws IOException {
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ( (read = in.read(buffer)) != -1 ) {
+                update(buffer, 0, read);
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    public synchronized void reset() {
+        crc32c.reset();
+        md5.reset();
+        crc32cValue = null;
+        md5Value = null;
+    }
+
+    public synchronized String getCrc32c() {
+        finish();
+        return crc32cValue;
+    }
+
+    public synchronized String getMd5Hash() {
+        finish();
+        return md5Value;
+    }
+
+    /**
+     * Returns true if the checksums equal the given ones. A null checksum is not compared.
+     *
+     * @param expectedCrc32c
+     * @param expectedMd5Hash
+     *
+     * @return
+     */
+    public synchronized boolean matches(String expectedCrc32c, String expectedMd5Hash) {
+        return (expectedCrc32c == null || expectedCrc32c.equals(getCrc32c()))
+                && (expectedMd5Hash == null || expectedMd5Hash.equals(getMd5Hash()));
+    }
+
+    /**
+     * Returns a stream that reads from the given stream, adding every byte read (or skipped).
+     *
+     * @param in
+     *
+     * @return
+     */
+    public InputStream wrap(InputStream in) {
+        return new ChecksumInputStream(in);
+    }
+
+    /**
+     * Returns a stream that writes to the given stream, adding every byte written.
+     *
+     * @param out
+     *
+     * @return
+     */
+    public OutputStream wrap(OutputStream out) {
+        return new ChecksumOutputStream(out);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "crc32c=" + getCrc32c() + ", md5=" + getMd5Hash();
+    }
+
+
+    private void finish() {
+        if (crc32cValue == null) {
+            crc32cValue = Crc32c.toBase64(crc32c.getValue());
+            md5Value = Base64.encodeBase64String(md5.digest());
+        }
+    }
+
+
+    private class ChecksumInputStream extends FilterInputStream {
+        ChecksumInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read != -1) {
+                update(new byte[]{(byte) read}, 0, 1);
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                update(b, off, read);
+            }
+            return read;
+        }
+
+        /**
+         * Skipped bytes are read, they count towards the checksums.
+         */
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buffer = new byte[(int) Math.max(1, Math.min(n, 8192))];
+            long skipped = 0;
+
+            while ( skipped < n ) {
+                int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+                if (read == -1) {
+                    break;
+                }
+                skipped += read;
+            }
+
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    private class ChecksumOutputStream extends FilterOutputStream {
+        ChecksumOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            update(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            update(b, off, len);
+        }
+    }
+
+    private static class VerifyingInputStream extends FilterInputStream {
+        private final TransferChecksums checksums;
+        private final String expectedCrc32c;
+        private final String expectedMd5Hash;
+        private final String objectName;
+
+        private boolean verified;
+
+        VerifyingInputStream(TransferChecksums checksums, InputStream in, String expectedCrc32c, String expectedMd5Hash, String objectName) {
+            super(checksums.wrap(in));
+            this.checksums = checksums;
+            this.expectedCrc32c = expectedCrc32c;
+            this.expectedMd5Hash = expectedMd5Hash;
+            this.objectName = objectName;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read == -1) {
+                verifyOnce();
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read == -1) {
+                verifyOnce();
+            }
+            return read;
+        }
+
+        /**
+         * Reads the rest of the content, so all of it is checked.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                if (!verified) {
+                    byte[] buffer = new byte[8192];
+                    while ( super.read(buffer, 0, buffer.length) != -1 ) {
+                        // Only read for the checksums.
+                    }
+                    verifyOnce();
+                }
+            }
+            finally {
+                super.close();
+            }
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void verifyOnce() throws IOException {
+            if (verified) {
+                return;
+            }
+            verified = true;
+
+            if (!checksums.matches(expectedCrc32c, expectedMd5Hash)) {
+                throw new IOException("Checksums of downloaded " + objectName + " (" + checksums
+                        + ") did not match crc32c=" + expectedCrc32c + ", md5=" + expectedMd5Hash + "! Error!");
+            }
+        }
+    }
+}
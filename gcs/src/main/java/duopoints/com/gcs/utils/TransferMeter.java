@@ -0,0 +1,138 @@
+package duopoints.com.gcs.utils;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Measures the bytes moved through wrapped streams and the time spent inside their reads and
+ * writes, that is the time spent waiting on the network.
+ * <p/>
+ * When an image is encoded into (or decoded from) a network stream, the time of the whole
+ * operation minus {@link #getNanos()} is the time spent encoding (or decoding).
+ * <p/>
+ * Thread-safe, a single meter can wrap several streams.
+ */
+public class TransferMeter {
+    private long nanos;
+    private long bytes;
+
+
+    /**
+     * Returns a stream that reads from the given stream, measuring every read.
+     *
+     * @param in
+     *
+     * @return
+     */
+    public InputStream wrap(InputStream in) {
+        return new MeteredInputStream(in);
+    }
+
+    /**
+     * Returns a stream that writes to the given stream, measuring every write.
+     *
+     * @param out
+     *
+     * @return
+     */
+    public OutputStream wrap(OutputStream out) {
+        return new MeteredOutputStream(out);
+    }
+
+    /**
+     * Adds time spent waiting on the network outside of the wrapped streams, like waiting for
+     * the response to a request, and the bytes moved meanwhile.
+     *
+     * @param nanos
+     * @param bytes
+     */
+    public synchronized void add(long nanos, long bytes) {
+        this.nanos += nanos;
+        this.bytes += bytes;
+    }
+
+    /**
+     * The total time spent inside reads and writes of the wrapped streams, and added with
+     * {@link #add(long, long)}.
+     *
+     * @return
+     */
+    public synchronized long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * The total number of bytes read from and written to the wrapped streams.
+     *
+     * @return
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+
+    private void record(long start, long count) {
+        add(System.nanoTime() - start, Math.max(0, count));
+    }
+
+
+    private class MeteredInputStream extends FilterInputStream {
+        MeteredInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            int read = super.read();
+            record(start, read != -1 ? 1 : 0);
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            int read = super.read(b, off, len);
+            record(start, read);
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long start = System.nanoTime();
+            long skipped = super.skip(n);
+            record(start, skipped);
+            return skipped;
+        }
+    }
+
+    private class MeteredOutputStream extends FilterOutputStream {
+        MeteredOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            long start = System.nanoTime();
+            out.write(b);
+            record(start, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            out.write(b, off, len);
+            record(start, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            long start = System.nanoTime();
+            out.flush();
+            record(start, 0);
+        }
+    }
+}
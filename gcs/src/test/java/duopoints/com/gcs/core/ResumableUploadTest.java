@@ -0,0 +1,373 @@
+package duopoints.com.gcs.core;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.StorageObject;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs {@link ResumableUpload} against a fake resumable upload endpoint, failing it mid-stream.
+ */
+public class ResumableUploadTest {
+    private static final String BUCKET = "bucket";
+    private static final String NAME = "uploads/file.bin";
+    private static final String CONTENT_TYPE = "application/octet-stream";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeUploadServer server;
+    private Storage storage;
+    private byte[] data;
+    private File source;
+    private File stateFile;
+
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeUploadServer();
+        storage = new Storage.Builder(server, JacksonFactory.getDefaultInstance(), null)
+                .setApplicationName("ResumableUploadTest")
+                .build();
+
+        // Two and a half chunks.
+        data = new byte[ResumableUpload.MINIMUM_CHUNK_SIZE * 5 / 2];
+        new Random(7).nextBytes(data);
+
+        source = folder.newFile("source.bin");
+        FileOutputStream output = new FileOutputStream(source);
+        try {
+            output.write(data);
+        }
+        finally {
+            output.close();
+        }
+
+        stateFile = new File(folder.getRoot(), "upload.state");
+    }
+
+    @Test
+    public void uploadsAllChunksAndDeletesState() throws IOException {
+        final List<Long> progress = new ArrayList<>();
+
+        StorageObject uploaded = newUpload()
+                .setProgressListener(new ResumableUpload.ProgressListener() {
+                    @Override
+                    public void onProgress(long bytesUploaded, long totalBytes) {
+                        progress.add(bytesUploaded);
+                    }
+                })
+                .upload();
+
+        assertEquals(NAME, uploaded.getName());
+        assertArrayEquals(data, server.stored);
+        assertEquals(1, server.initiations);
+        assertEquals(Arrays.asList((long) ResumableUpload.MINIMUM_CHUNK_SIZE,
+                (long) ResumableUpload.MINIMUM_CHUNK_SIZE * 2, (long) data.length), progress);
+        assertFalse(stateFile.exists());
+    }
+
+    @Test
+    public void continuesFromRangeOfPartiallyReceivedChunk() throws IOException {
+        // Only the first 1000 bytes of the first chunk arrive, the upload continues from there.
+        server.acceptLimit = 1000;
+
+        newUpload().upload();
+
+        assertArrayEquals(data, server.stored);
+        assertEquals(1, server.initiations);
+        assertEquals(1000, server.offsets.get(1).longValue());
+    }
+
+    @Test
+    public void resumesPersistedSessionAfterMidStreamFailure() throws IOException {
+        server.failAtChunk = 2;
+
+        ResumableUpload first = newUpload();
+        try {
+            first.upload();
+            fail("The second chunk should have failed.");
+        }
+        catch ( IOException e ) {
+            // Expected.
+        }
+
+        assertEquals(ResumableUpload.MINIMUM_CHUNK_SIZE, first.getBytesUploaded());
+        Properties state = loadState();
+        assertEquals(server.sessionUri(), state.getProperty("sessionUri"));
+        assertEquals(String.valueOf(ResumableUpload.MINIMUM_CHUNK_SIZE), state.getProperty("offset"));
+
+        // A new instance, as after a process restart, queries the session and continues.
+        server.failAtChunk = -1;
+        server.offsets.clear();
+        newUpload().upload();
+
+        assertArrayEquals(data, server.stored);
+        assertEquals(1, server.initiations);
+        assertEquals(1, server.statusQueries);
+        assertEquals(ResumableUpload.MINIMUM_CHUNK_SIZE, server.offsets.get(0).longValue());
+        assertFalse(stateFile.exists());
+    }
+
+    @Test
+    public void restartsSessionNotFound() throws IOException {
+        assertRestartsExpiredSession(404);
+    }
+
+    @Test
+    public void restartsSessionGone() throws IOException {
+        assertRestartsExpiredSession(410);
+    }
+
+    @Test
+    public void restartsSessionExpiringDuringUpload() throws IOException {
+        server.expireAtChunk = 2;
+
+        newUpload().upload();
+
+        assertArrayEquals(data, server.stored);
+        assertEquals(2, server.initiations);
+    }
+
+    @Test
+    public void returnsObjectOfSessionFinishedBeforeRestart() throws IOException {
+        newUpload().upload();
+        server.completeOnQuery = true;
+
+        // The state of a finished upload, as if the process died before deleting it.
+        Properties state = new Properties();
+        state.setProperty("bucket", BUCKET);
+        state.setProperty("name", NAME);
+        state.setProperty("length", String.valueOf(data.length));
+        state.setProperty("sessionUri", server.sessionUri());
+        state.setProperty("offset", String.valueOf(ResumableUpload.MINIMUM_CHUNK_SIZE));
+        saveState(state);
+
+        StorageObject uploaded = newUpload().upload();
+
+        assertNotNull(uploaded);
+        assertEquals(1, server.initiations);
+        assertEquals(1, server.statusQueries);
+        assertFalse(stateFile.exists());
+    }
+
+    @Test
+    public void discardsStateOfOtherSource() throws IOException {
+        Properties state = new Properties();
+        state.setProperty("bucket", BUCKET);
+        state.setProperty("name", NAME);
+        state.setProperty("length", String.valueOf(data.length + 1));
+        state.setProperty("sessionUri", "https://fake-gcs/upload/session/stale");
+        state.setProperty("offset", "262144");
+        saveState(state);
+
+        newUpload().upload();
+
+        assertArrayEquals(data, server.stored);
+        assertEquals(0, server.statusQueries);
+        assertEquals(0, server.offsets.get(0).longValue());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsChunkSizeNotMultipleOfMinimum() {
+        newUpload().setChunkSize(ResumableUpload.MINIMUM_CHUNK_SIZE + 1);
+    }
+
+
+    private void assertRestartsExpiredSession(int statusCode) throws IOException {
+        server.failAtChunk = 2;
+        try {
+            newUpload().upload();
+            fail("The second chunk should have failed.");
+        }
+        catch ( IOException e ) {
+            // Expected.
+        }
+
+        server.failAtChunk = -1;
+        server.expireWith = statusCode;
+        newUpload().upload();
+
+        assertArrayEquals(data, server.stored);
+        assertEquals(2, server.initiations);
+        assertEquals(1, server.statusQueries);
+        assertFalse(stateFile.exists());
+    }
+
+    private ResumableUpload newUpload() {
+        return new ResumableUpload(storage, BUCKET, NAME, source, CONTENT_TYPE, stateFile)
+                .setChunkSize(ResumableUpload.MINIMUM_CHUNK_SIZE);
+    }
+
+    private Properties loadState() throws IOException {
+        Properties state = new Properties();
+        FileInputStream input = new FileInputStream(stateFile);
+        try {
+            state.load(input);
+        }
+        finally {
+            input.close();
+        }
+        return state;
+    }
+
+    private void saveState(Properties state) throws IOException {
+        FileOutputStream output = new FileOutputStream(stateFile);
+        try {
+            state.store(output, null);
+        }
+        finally {
+            output.close();
+        }
+    }
+
+
+    /**
+     * The resumable upload protocol of the cloud storage, for a single object at a time.
+     */
+    private static class FakeUploadServer extends MockHttpTransport {
+        private static final String SESSION_URL = "https://fake-gcs/upload/session/";
+
+        final List<Long> offsets = new ArrayList<>();
+
+        int initiations;
+        int statusQueries;
+
+        // The number of the PUT with content that throws an IOException, or -1.
+        int failAtChunk = -1;
+        // The number of the PUT with content that answers once with an expired session, or -1.
+        int expireAtChunk = -1;
+        // The status a status query answers with, 0 to answer normally.
+        int expireWith;
+        // The maximum number of bytes taken from the first chunk, 0 for all of them.
+        int acceptLimit;
+        boolean completeOnQuery;
+
+        byte[] stored;
+
+        private ByteArrayOutputStream received = new ByteArrayOutputStream();
+        private int chunks;
+
+        String sessionUri() {
+            return SESSION_URL + initiations;
+        }
+
+        @Override
+        public LowLevelHttpRequest buildRequest(final String method, final String url) {
+            return new MockLowLevelHttpRequest(url) {
+                @Override
+                public LowLevelHttpResponse execute() throws IOException {
+                    if ("POST".equals(method)) {
+                        return initiate(this);
+                    }
+
+                    if (!url.equals(sessionUri())) {
+                        return new MockLowLevelHttpResponse().setStatusCode(404);
+                    }
+
+                    return put(this);
+                }
+            };
+        }
+
+        private LowLevelHttpResponse initiate(MockLowLevelHttpRequest request) {
+            assertTrue(request.getUrl().contains("uploadType=resumable"));
+            assertEquals(CONTENT_TYPE, request.getFirstHeaderValue("X-Upload-Content-Type"));
+
+            initiations++;
+            received = new ByteArrayOutputStream();
+            chunks = 0;
+
+            return new MockLowLevelHttpResponse().addHeader("Location", sessionUri());
+        }
+
+        private LowLevelHttpResponse put(MockLowLevelHttpRequest request) throws IOException {
+            String contentRange = request.getFirstHeaderValue("Content-Range");
+            long total = Long.parseLong(contentRange.substring(contentRange.lastIndexOf('/') + 1));
+
+            if (contentRange.startsWith("bytes */")) {
+                statusQueries++;
+
+                if (expireWith != 0) {
+                    return new MockLowLevelHttpResponse().setStatusCode(expireWith);
+                }
+
+                if (completeOnQuery) {
+                    return finished();
+                }
+
+                return incomplete();
+            }
+
+            chunks++;
+            if (chunks == failAtChunk) {
+                throw new IOException("Connection reset");
+            }
+
+            if (chunks == expireAtChunk) {
+                expireAtChunk = -1;
+                return new MockLowLevelHttpResponse().setStatusCode(410);
+            }
+
+            long first = Long.parseLong(contentRange.substring("bytes ".length(), contentRange.indexOf('-')));
+            assertEquals("Chunk must continue at the acknowledged offset", received.size(), first);
+            offsets.add(first);
+
+            ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+            request.getStreamingContent().writeTo(chunk);
+            byte[] bytes = chunk.toByteArray();
+
+            int accepted = acceptLimit > 0 && chunks == 1 ? Math.min(acceptLimit, bytes.length) : bytes.length;
+            received.write(bytes, 0, accepted);
+
+            if (received.size() < total) {
+                return incomplete();
+            }
+
+            stored = received.toByteArray();
+            return finished();
+        }
+
+        private LowLevelHttpResponse incomplete() {
+            MockLowLevelHttpResponse response = new MockLowLevelHttpResponse().setStatusCode(308);
+            if (received.size() > 0) {
+                response.addHeader("Range", "bytes=0-" + (received.size() - 1));
+            }
+            return response;
+        }
+
+        private LowLevelHttpResponse finished() {
+            return new MockLowLevelHttpResponse()
+                    .setContentType("application/json; charset=UTF-8")
+                    .setContent("{\"name\":\"" + NAME + "\",\"bucket\":\"" + BUCKET + "\",\"size\":\""
+                            + received.size() + "\",\"generation\":\"1\"}");
+        }
+    }
+}
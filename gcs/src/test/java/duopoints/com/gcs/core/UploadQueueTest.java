@@ -0,0 +1,472 @@
+package duopoints.com.gcs.core;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.storage.model.StorageObject;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import duopoints.com.gcs.utils.MediaManipulation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs an {@link UploadQueue} against a fake cloud storage, with its journal in a temporary
+ * files directory: replaying a journal cut off by a crash, a newer operation superseding a
+ * running one, and the journal after it has been compacted.
+ */
+public class UploadQueueTest {
+    private static final String BUCKET = "bucket";
+    private static final String CONTENT_TYPE = "image/png";
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeStorageServer server;
+    private QueueContext context;
+    private GoogleStorage googleStorage;
+    private File directory;
+    private RetryPolicy retryPolicy;
+
+    private final List<String> completed = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> failed = Collections.synchronizedList(new ArrayList<String>());
+    private final Semaphore finished = new Semaphore(0);
+
+    private UploadQueue queue;
+
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeStorageServer();
+        context = new QueueContext(folder.newFolder("files"));
+
+        Credential credential = new Credential.Builder(BearerToken.authorizationHeaderAccessMethod())
+                .setTransport(server)
+                .setJsonFactory(JacksonFactory.getDefaultInstance())
+                .build()
+                .setAccessToken("test")
+                .setExpiresInSeconds(Long.valueOf(24 * 60 * 60));
+        googleStorage = GoogleStorage.build(BUCKET, credential);
+
+        directory = new File(context.getFilesDir(), "gcs-upload-queue/" + MediaManipulation.hashName(BUCKET));
+        assertTrue(directory.mkdirs());
+
+        // A failed request fails the operation right away, instead of being retried by the request itself.
+        retryPolicy = GoogleStorage.getRetryPolicy();
+        GoogleStorage.setRetryPolicy(null);
+
+        AsyncCloudImageCRUD.setCallbackExecutor(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                runnable.run();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        if (queue != null) {
+            queue.close();
+        }
+
+        GoogleStorage.setRetryPolicy(retryPolicy);
+    }
+
+    @Test
+    public void replaysJournalCutOffMidLine() throws Exception {
+        stage(1);
+        stage(2);
+        stage(4);
+        writeJournal("ADD 1 UPLOAD " + CONTENT_TYPE + " - - images/done.png\n"
+                + "ADD 2 UPLOAD " + CONTENT_TYPE + " - - images/queued.png\n"
+                + "DONE 1\n"
+                + "ADD 3 DELETE - - - images/deleted.png\n"
+                // The process died while this line was written.
+                + "ADD 4 UPLOAD ima");
+
+        server.gate = new CountDownLatch(1);
+        open();
+        awaitRequests(2);
+
+        assertEquals(new HashSet<>(Arrays.asList("images/queued.png", "images/deleted.png")), queue.getPendingPaths());
+        assertEquals(Arrays.asList(
+                "ADD 2 UPLOAD " + CONTENT_TYPE + " - - images/queued.png",
+                "ADD 3 DELETE - - - images/deleted.png"), readJournal());
+        // The staged image of the finished upload and the one of the cut off line are deleted.
+        assertEquals(new HashSet<>(Arrays.asList("journal", "2.upload")), listDirectory());
+
+        // Appended after the rewritten journal, not to the cut off line.
+        queue.enqueueDelete("images/later.png");
+
+        server.gate.countDown();
+        awaitFinished(3);
+
+        assertEquals(new HashSet<>(Arrays.asList("images/queued.png", "images/deleted.png", "images/later.png")),
+                new HashSet<>(completed));
+        assertEquals(Arrays.asList("images/queued.png"), server.uploaded);
+        assertEquals(new HashSet<>(Arrays.asList("images/deleted.png", "images/later.png")), new HashSet<>(server.deleted));
+        assertEquals(Collections.singleton("journal"), listDirectory());
+
+        reopen();
+        assertEquals(0, queue.getPendingCount());
+        assertEquals(0, readJournal().size());
+        assertEquals(3, server.requests());
+    }
+
+    @Test
+    public void replayKeepsLatestOperationOfPath() throws Exception {
+        stage(1);
+        stage(2);
+        writeJournal("ADD 1 UPLOAD " + CONTENT_TYPE + " - - images/image.png\n"
+                + "ADD 2 UPLOAD " + CONTENT_TYPE + " - - images/image.png\n");
+
+        open();
+        awaitFinished(1);
+
+        assertEquals(Arrays.asList("images/image.png"), server.uploaded);
+        assertEquals(2, server.stagedSizes.get(0).intValue());
+        assertEquals(Collections.singleton("journal"), listDirectory());
+    }
+
+    @Test
+    public void replaceSupersedesRunningUpload() throws Exception {
+        stage(1);
+        writeJournal("ADD 1 UPLOAD " + CONTENT_TYPE + " - - images/image.png\n");
+
+        server.gate = new CountDownLatch(1);
+        server.failUploads = true;
+        open();
+        awaitRequests(1);
+
+        // Replaces the image while its upload is running, the deletion waits for the upload.
+        queue.enqueueDelete("images/image.png");
+        assertEquals(2, queue.getPendingCount());
+        assertEquals(1, server.requests());
+
+        server.gate.countDown();
+        awaitFinished(2);
+
+        // The failed upload is not retried, it would only be deleted again.
+        assertEquals(Arrays.asList("images/image.png"), failed);
+        assertEquals(Arrays.asList("images/image.png"), completed);
+        assertEquals(Arrays.asList("images/image.png"), server.deleted);
+        assertEquals(0, queue.getPendingCount());
+        assertFalse(new File(directory, "1.upload").exists());
+
+        reopen();
+        assertEquals(0, queue.getPendingCount());
+        assertEquals(2, server.requests());
+    }
+
+    @Test
+    public void recordsDoneAfterCompaction() throws Exception {
+        int count = 70;
+
+        server.gate = new CountDownLatch(1);
+        open();
+        queue.setParallelism(1);
+
+        for (int i = 0; i < count; i++) {
+            queue.enqueueDelete("images/" + i + ".png");
+        }
+        assertEquals(count, readJournal().size());
+
+        server.gate.countDown();
+        awaitFinished(count);
+
+        // Compacted once, when 45 of the 70 were done: the 25 live ones, and later their DONE lines.
+        List<String> journal = readJournal();
+        assertEquals(50, journal.size());
+
+        List<String> added = new ArrayList<>();
+        for (String line : journal) {
+            String[] parts = line.split(" ");
+            if ("ADD".equals(parts[0])) {
+                added.add(parts[1]);
+            }
+            else {
+                assertEquals("DONE", parts[0]);
+                assertTrue("DONE " + parts[1] + " without its ADD", added.contains(parts[1]));
+            }
+        }
+        assertEquals(25, added.size());
+        assertEquals("46", added.get(0));
+
+        // Nothing is executed again.
+        reopen();
+        assertEquals(0, queue.getPendingCount());
+        assertEquals(count, server.requests());
+    }
+
+
+    private void open() throws IOException {
+        queue = UploadQueue.get(context, googleStorage);
+        queue.addListener(new UploadQueue.Listener() {
+            @Override
+            public void onProgress(String imageFullPath, long bytesUploaded, long totalBytes) {
+            }
+
+            @Override
+            public void onCompleted(String imageFullPath) {
+                completed.add(imageFullPath);
+                finished.release();
+            }
+
+            @Override
+            public void onFailed(String imageFullPath, Exception e, boolean willRetry) {
+                failed.add(willRetry ? imageFullPath + " (retrying)" : imageFullPath);
+                finished.release();
+            }
+        });
+    }
+
+    private void reopen() throws IOException {
+        queue.close();
+        open();
+    }
+
+    private void awaitRequests(int count) throws InterruptedException {
+        assertTrue("Requests did not arrive", server.started.tryAcquire(count, TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    private void awaitFinished(int count) throws InterruptedException {
+        assertTrue("Operations did not finish", finished.tryAcquire(count, TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Writes a staged image for the operation with the given id, of id bytes.
+     */
+    private void stage(long id) throws IOException {
+        FileOutputStream output = new FileOutputStream(new File(directory, id + ".upload"));
+        try {
+            output.write(new byte[(int) id]);
+        }
+        finally {
+            output.close();
+        }
+    }
+
+    private void writeJournal(String content) throws IOException {
+        FileOutputStream output = new FileOutputStream(new File(directory, "journal"));
+        try {
+            output.write(content.getBytes("UTF-8"));
+        }
+        finally {
+            output.close();
+        }
+    }
+
+    private List<String> readJournal() throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        FileInputStream input = new FileInputStream(new File(directory, "journal"));
+        try {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ( (read = input.read(buffer)) != -1 ) {
+                content.write(buffer, 0, read);
+            }
+        }
+        finally {
+            input.close();
+        }
+
+        List<String> lines = new ArrayList<>();
+        for (String line : content.toString("UTF-8").split("\n")) {
+            if (line.length() > 0) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    private HashSet<String> listDirectory() {
+        HashSet<String> names = new HashSet<>();
+        for (String name : directory.list()) {
+            names.add(name);
+        }
+        return names;
+    }
+
+
+    /**
+     * A Context with only a files directory. It has no ConnectivityManager, so the queue counts
+     * as connected.
+     */
+    private static class QueueContext extends ContextWrapper {
+        private final File filesDir;
+
+        QueueContext(File filesDir) {
+            super(null);
+            this.filesDir = filesDir;
+        }
+
+        @Override
+        public Context getApplicationContext() {
+            return this;
+        }
+
+        @Override
+        public File getFilesDir() {
+            return filesDir;
+        }
+
+        @Override
+        public Object getSystemService(String name) {
+            return null;
+        }
+
+        @Override
+        public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+            return null;
+        }
+
+        @Override
+        public void unregisterReceiver(BroadcastReceiver receiver) {
+        }
+    }
+
+    /**
+     * The resumable uploads and deletions of the cloud storage. Every upload initiation and
+     * deletion counts as a request, and waits for the gate if there is one.
+     */
+    private static class FakeStorageServer extends MockHttpTransport {
+        private static final String SESSION_URL = "https://fake-gcs/upload/session/";
+
+        final Semaphore started = new Semaphore(0);
+        final List<String> uploaded = Collections.synchronizedList(new ArrayList<String>());
+        final List<Integer> stagedSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<String> deleted = Collections.synchronizedList(new ArrayList<String>());
+
+        volatile CountDownLatch gate;
+        // Fails the content of every upload, as a dropped connection.
+        volatile boolean failUploads;
+
+        private final Map<String, String> sessions = new HashMap<>();
+        private int requests;
+
+        synchronized int requests() {
+            return requests;
+        }
+
+        @Override
+        public LowLevelHttpRequest buildRequest(final String method, final String url) {
+            return new MockLowLevelHttpRequest(url) {
+                @Override
+                public LowLevelHttpResponse execute() throws IOException {
+                    if (url.startsWith(SESSION_URL)) {
+                        return put(this);
+                    }
+
+                    arrive();
+
+                    if ("POST".equals(method)) {
+                        return initiate(this);
+                    }
+
+                    if ("DELETE".equals(method)) {
+                        deleted.add(objectName(url));
+                        return new MockLowLevelHttpResponse().setStatusCode(204);
+                    }
+
+                    return new MockLowLevelHttpResponse().setStatusCode(404);
+                }
+            };
+        }
+
+        private void arrive() throws IOException {
+            synchronized ( this ) {
+                requests++;
+            }
+            started.release();
+
+            CountDownLatch gate = this.gate;
+            try {
+                if (gate != null && !gate.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    throw new IOException("Gate was not opened");
+                }
+            }
+            catch ( InterruptedException e ) {
+                throw new IOException(e);
+            }
+        }
+
+        private LowLevelHttpResponse initiate(MockLowLevelHttpRequest request) throws IOException {
+            assertTrue(request.getUrl().contains("uploadType=resumable"));
+
+            StorageObject metadata = JacksonFactory.getDefaultInstance()
+                    .fromString(request.getContentAsString(), StorageObject.class);
+
+            String sessionUri;
+            synchronized ( this ) {
+                sessionUri = SESSION_URL + sessions.size();
+                sessions.put(sessionUri, metadata.getName());
+            }
+
+            return new MockLowLevelHttpResponse().addHeader("Location", sessionUri);
+        }
+
+        private LowLevelHttpResponse put(MockLowLevelHttpRequest request) throws IOException {
+            if (failUploads) {
+                throw new IOException("Connection reset");
+            }
+
+            String name;
+            synchronized ( this ) {
+                name = sessions.get(request.getUrl());
+            }
+
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            request.getStreamingContent().writeTo(content);
+            uploaded.add(name);
+            stagedSizes.add(content.size());
+
+            return new MockLowLevelHttpResponse()
+                    .setContentType("application/json; charset=UTF-8")
+                    .setContent("{\"name\":\"" + name + "\",\"bucket\":\"" + BUCKET + "\",\"size\":\""
+                            + content.size() + "\",\"generation\":\"1\"}");
+        }
+
+        private static String objectName(String url) throws IOException {
+            String path = url.substring(url.indexOf("/o/") + "/o/".length());
+            int query = path.indexOf('?');
+            return URLDecoder.decode(query != -1 ? path.substring(0, query) : path, "UTF-8");
+        }
+    }
+}